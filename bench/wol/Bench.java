@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Properties;
+
+/**
+ * Runs the hot path benchmarks and reports time and allocation per operation
+ * <p>
+ * Every benchmark is warmed up first and then measured in fixed length
+ * batches. Allocation is read from the per-thread allocation counter of the
+ * JVM so it only covers the benchmark thread.
+ * <p>
+ * Usage: wol.Bench [name filter] [-Dbench.time=ms] [-Dbench.batches=n]
+ *
+ * @author Toni Spets
+ */
+public class Bench {
+
+    private static com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    /**
+     * All benchmarks in the order they are run
+     *
+     * @return
+     */
+    static ArrayList<Benchmark> all() {
+        ArrayList<Benchmark> list = new ArrayList<Benchmark>();
+
+        list.add(new LineSplitBench());
+        list.add(new LineTrickleBench(512));
+        list.add(new LineTrickleBench(8192));
+        list.add(new TokenizeBench(true));
+        list.add(new TokenizeBench(false));
+        list.add(new CommandParseBench());
+        list.add(new FanoutBench(100));
+        list.add(new FanoutBench(1000));
+        list.add(new FanoutBench(10000));
+        list.add(new ListBench(1000));
+        list.add(new ListBench(5000));
+        list.add(new MembershipBench(100));
+        list.add(new MembershipBench(10000));
+        list.add(new GameresParseBench());
+
+        return list;
+    }
+
+    /**
+     * Run batches of a benchmark for a while
+     *
+     * @param b         the benchmark
+     * @param millis    how long to run
+     * @param batches   amount of batches
+     * @param report    print the result
+     * @throws Exception
+     */
+    static void measure(Benchmark b, long millis, int batches, boolean report) throws Exception {
+        long thread = Thread.currentThread().getId();
+        long ops = 0, nanos = 0, bytes = 0;
+        int batchOps = 1;
+
+        // find a batch size that takes about a millisecond
+        while (true) {
+            long start = System.nanoTime();
+            b.run(batchOps);
+            b.cleanup();
+            if (System.nanoTime() - start > 1000000 || batchOps >= 1 << 20)
+                break;
+            batchOps *= 2;
+        }
+
+        for (int i = 0; i < batches; i++) {
+            long end = System.nanoTime() + millis * 1000000 / batches;
+
+            while (System.nanoTime() < end) {
+                long allocated = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+
+                b.run(batchOps);
+
+                nanos += System.nanoTime() - start;
+                bytes += threads.getThreadAllocatedBytes(thread) - allocated;
+                ops += batchOps;
+
+                b.cleanup();
+            }
+        }
+
+        if (report) {
+            System.out.println(String.format("%-28s %12.1f %14.0f %12.1f %10.1f",
+                    b.getName(), (double)nanos / ops, ops * 1e9 / nanos, (double)bytes / ops, bytes / 1048576.0 / (nanos / 1e9)));
+        }
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        String filter = args.length > 0 ? args[0] : "";
+        long millis = Long.getLong("bench.time", 5000);
+        int batches = Integer.getInteger("bench.batches", 5);
+
+        // quiet and without limits that would get in the way
+        WOL.config = new Properties();
+        WOL.config.setProperty("Log.level", "error");
+        WOL.config.setProperty("WOL.writeHighWater", "1073741824");
+        WOL.config.setProperty("WOL.bufferPoolMax", "1024");
+        WOL.hostname = "irc.bench";
+        Log.configure();
+
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        System.out.println(String.format("%-28s %12s %14s %12s %10s", "benchmark", "ns/op", "ops/s", "bytes/op", "MB/s"));
+
+        for (Iterator<Benchmark> i = all().iterator(); i.hasNext();) {
+            Benchmark b = i.next();
+
+            if (!b.getName().contains(filter))
+                continue;
+
+            try {
+                b.setup();
+                measure(b, millis / 2, batches, false);
+                measure(b, millis, batches, true);
+            } catch (Exception e) {
+                System.out.println(b.getName() + " failed: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+}
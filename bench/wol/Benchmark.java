@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A single benchmark run by Bench
+ * <p>
+ * Only run() is timed and accounted for allocation, cleanup() is called
+ * between batches to throw away output that piled up.
+ *
+ * @author Toni Spets
+ */
+abstract public class Benchmark {
+
+    /**
+     * Results are added here so the work can not be optimized away
+     */
+    static volatile long sink;
+
+    /**
+     * Channel shared by all fake clients, never connected
+     */
+    private static SocketChannel channel;
+
+    /**
+     * Chat server shared by the benchmarks, its reactor is never run
+     */
+    private static ChatServer server;
+
+    private String name;
+
+    /**
+     * Creates a new Benchmark
+     *
+     * @param name  name shown in the results
+     */
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get benchmark name
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get a channel for fake clients
+     * <p>
+     * An unconnected channel is in blocking mode so clients never touch a
+     * selector, and sharing one keeps thousands of clients to a single file
+     * descriptor.
+     *
+     * @return
+     * @throws IOException
+     */
+    static synchronized SocketChannel getChannel() throws IOException {
+
+        if (channel == null)
+            channel = SocketChannel.open();
+
+        return channel;
+    }
+
+    /**
+     * Get a chat server on a loopback port of its own
+     *
+     * @return
+     * @throws IOException
+     */
+    static synchronized ChatServer getChatServer() throws IOException {
+
+        if (server == null)
+            server = new ChatServer(InetAddress.getByName("127.0.0.1"), 0, new ReactorGroup(1));
+
+        return server;
+    }
+
+    /**
+     * Create a registered chat client that is not connected anywhere
+     *
+     * @param server    server of the client
+     * @param index     makes the nick and address unique
+     * @return
+     * @throws IOException
+     */
+    static ChatClient newChatClient(ChatServer server, int index) throws IOException {
+        ChatClient client = new ChatClient(getChannel(), server.reactors.getAcceptor(), server);
+
+        setAddress(client, index);
+        client.setNick("u" + index);
+        client.havePassword = true;
+        client.registered = true;
+        server.clients.put(client.getNick(), client);
+
+        return client;
+    }
+
+    /**
+     * Give a fake client a remote address
+     *
+     * @param client    the client
+     * @param index     makes the address unique
+     * @throws IOException
+     */
+    static void setAddress(TCPClient client, int index) throws IOException {
+        client.address = InetAddress.getByAddress(new byte[] { 10, (byte)(index >> 16), (byte)(index >> 8), (byte)index });
+        client.port = 1024 + index % 60000;
+    }
+
+    /**
+     * Prepare the state, not timed
+     *
+     * @throws Exception
+     */
+    abstract public void setup() throws Exception;
+
+    /**
+     * Run the measured operation a number of times
+     *
+     * @param ops   amount of operations
+     * @throws Exception
+     */
+    abstract public void run(int ops) throws Exception;
+
+    /**
+     * Throw away output of the previous batch, not timed
+     */
+    public void cleanup() {}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+/**
+ * ChatClient.onString parsing and dispatching a command
+ * <p>
+ * One operation is one command out of a mix of chat, time and option
+ * commands sent by a client on #Chat with one other user.
+ *
+ * @author Toni Spets
+ */
+public class CommandParseBench extends Benchmark {
+
+    private static final String[] COMMANDS = {
+        "PRIVMSG #Chat :anyone up for a game?",
+        "PRIVMSG u2 :hello there",
+        "TIME",
+        "SETOPT 17,33",
+    };
+
+    private ChatClient client;
+    private ChatClient other;
+
+    /**
+     * Creates a new CommandParseBench
+     */
+    public CommandParseBench() {
+        super("onString dispatch");
+    }
+
+    public void setup() throws Exception {
+        ChatServer server = getChatServer();
+        ChatChannel channel = server.channels.get("#Chat");
+
+        client = newChatClient(server, 1);
+        other = newChatClient(server, 2);
+
+        channel.join(client, "");
+        channel.join(other, "");
+    }
+
+    public void run(int ops) {
+        for (int i = 0; i < ops; i++) {
+            client.onString(COMMANDS[i % COMMANDS.length]);
+        }
+    }
+
+    public void cleanup() {
+        client.outbuf.clear();
+        other.outbuf.clear();
+    }
+}
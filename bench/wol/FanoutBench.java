@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.util.ArrayList;
+
+/**
+ * ChatServer.putReplyChannel sending a message to everyone on a channel
+ * <p>
+ * One operation is one message to all users of the channel.
+ *
+ * @author Toni Spets
+ */
+public class FanoutBench extends Benchmark {
+
+    private int users;
+    private ChatServer server;
+    private ChatChannel channel;
+    private ArrayList<ChatClient> clients;
+
+    /**
+     * Creates a new FanoutBench
+     *
+     * @param users     amount of users on the channel
+     */
+    public FanoutBench(int users) {
+        super("putReplyChannel " + users + " users");
+        this.users = users;
+    }
+
+    public void setup() throws Exception {
+        server = getChatServer();
+        channel = new ChatChannel("#Fanout" + users, null, "", 0, 0, 0, false, 0, ChatChannel.ChannelFlags.CHAN_LOBBY);
+        clients = new ArrayList<ChatClient>();
+
+        for (int i = 0; i < users; i++) {
+            ChatClient client = newChatClient(server, 100000 + users * 10 + i);
+            channel.join(client, "");
+            clients.add(client);
+        }
+    }
+
+    public void run(int ops) {
+        ChatClient from = clients.get(0);
+
+        for (int i = 0; i < ops; i++) {
+            server.putReplyChannel(channel, from, "PRIVMSG", channel.getName() + " :anyone up for a game?", true);
+        }
+    }
+
+    public void cleanup() {
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).outbuf.clear();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * GameresPacket.parse on the results of a four player game
+ * <p>
+ * One operation is one complete packet.
+ *
+ * @author Toni Spets
+ */
+public class GameresParseBench extends Benchmark {
+
+    private byte[] packet;
+    private ByteBuffer buf;
+
+    /**
+     * Creates a new GameresParseBench
+     */
+    public GameresParseBench() {
+        super("GameresPacket.parse");
+    }
+
+    /**
+     * Append a field
+     *
+     * @param out       packet body
+     * @param tag       four letter tag
+     * @param type      field type
+     * @param data      field data, padded to four bytes
+     * @throws IOException
+     */
+    private static void field(DataOutputStream out, String tag, int type, byte[] data) throws IOException {
+        out.writeBytes(tag);
+        out.writeShort(type);
+        out.writeShort(data.length);
+        out.write(data);
+
+        for (int i = data.length; i % 4 > 0; i++) {
+            out.write(0);
+        }
+    }
+
+    /**
+     * Append a four byte field
+     *
+     * @param out       packet body
+     * @param tag       four letter tag
+     * @param type      field type
+     * @param value     big endian value
+     * @throws IOException
+     */
+    private static void field(DataOutputStream out, String tag, int type, int value) throws IOException {
+        field(out, tag, type, new byte[] { (byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value });
+    }
+
+    public void setup() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+
+        field(out, "IDNO", GameresValue.TYPE_INT, 123456);
+        field(out, "GSKU", GameresValue.TYPE_INT, 0x1500);
+        field(out, "DURA", GameresValue.TYPE_INT, 1820);
+        field(out, "STRT", GameresValue.TYPE_TIME, (int)(System.currentTimeMillis() / 1000));
+        field(out, "TRNY", GameresValue.TYPE_BOOLEAN, 0);
+        field(out, "OOSY", GameresValue.TYPE_BOOLEAN, 0);
+        field(out, "NPLR", GameresValue.TYPE_BYTE, 4);
+        field(out, "SCEN", GameresValue.TYPE_STRING, "SCG01EA.INI\0".getBytes("US-ASCII"));
+        field(out, "CMPL", GameresValue.TYPE_RAW, new byte[] { 1, 0, 0, 0, 2, 0, 0, 0 });
+
+        for (int i = 0; i < 4; i++) {
+            field(out, "NAM" + i, GameresValue.TYPE_STRING, ("player" + i + "\0").getBytes("US-ASCII"));
+            field(out, "SID" + i, GameresValue.TYPE_INT, i);
+            field(out, "CMP" + i, GameresValue.TYPE_INT, i == 0 ? 256 : 512);
+            field(out, "COL" + i, GameresValue.TYPE_INT, i);
+            field(out, "UNB" + i, GameresValue.TYPE_RAW, new byte[40]);
+            field(out, "BLB" + i, GameresValue.TYPE_RAW, new byte[40]);
+        }
+
+        out.flush();
+
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(all);
+        header.writeShort(body.size() + 4);
+        header.writeShort(0);
+        body.writeTo(all);
+
+        packet = all.toByteArray();
+        buf = ByteBuffer.wrap(packet);
+
+        // make sure it is a valid packet
+        GameresPacket.parse(buf);
+    }
+
+    public void run(int ops) throws Exception {
+        for (int i = 0; i < ops; i++) {
+            buf.clear();
+            sink += GameresPacket.parse(buf).size();
+        }
+    }
+}
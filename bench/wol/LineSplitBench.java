@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+/**
+ * StringTCPClient.onRead splitting a full input buffer into lines
+ * <p>
+ * One operation is one read worth of typical client traffic.
+ *
+ * @author Toni Spets
+ */
+public class LineSplitBench extends Benchmark {
+
+    private static final String[] LINES = {
+        "PRIVMSG #Lob_21_0 :anyone up for a game?",
+        "TIME",
+        "LIST 0 21",
+        "GAMEOPT #someone :G1,1,0,0,0,0,1,0,0,0,3,1,1,0,0,0,0,0,0,0,0,0,0",
+        "PAGE friend :hello there",
+        "JOINGAME #Lob_21_0 1 1",
+    };
+
+    private byte[] data;
+    private StringTCPClient client;
+
+    /**
+     * Creates a new LineSplitBench
+     */
+    public LineSplitBench() {
+        super("onRead " + lines() + " lines");
+    }
+
+    /**
+     * Amount of lines that fit a single read
+     *
+     * @return
+     */
+    private static int lines() {
+        int length = 0, lines = 0;
+
+        while (length + LINES[lines % LINES.length].length() + 2 <= TCPClient.INBUF_SIZE) {
+            length += LINES[lines % LINES.length].length() + 2;
+            lines++;
+        }
+
+        return lines;
+    }
+
+    public void setup() throws Exception {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < lines(); i++) {
+            sb.append(LINES[i % LINES.length]).append("\r\n");
+        }
+
+        data = sb.toString().getBytes("US-ASCII");
+
+        client = new StringTCPClient(getChannel(), null) {
+            protected void onString(String message) {
+                sink += message.length();
+            }
+        };
+    }
+
+    public void run(int ops) {
+        for (int i = 0; i < ops; i++) {
+            client.inbuf.clear();
+            client.inbuf.put(data);
+            client.inbuf.flip();
+            client.onRead();
+        }
+    }
+}
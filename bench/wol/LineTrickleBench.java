@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+/**
+ * StringTCPClient.onRead with a line arriving a few bytes per read
+ * <p>
+ * One operation is one line of the given length delivered in 8 byte reads,
+ * compacting the input buffer after every read like TCPClient.canRead.
+ *
+ * @author Toni Spets
+ */
+public class LineTrickleBench extends Benchmark {
+
+    private static final int CHUNK = 8;
+
+    private int size;
+    private byte[] data;
+    private StringTCPClient client;
+
+    /**
+     * Creates a new LineTrickleBench
+     *
+     * @param size      line length with its terminator
+     */
+    public LineTrickleBench(int size) {
+        super("onRead trickle " + size + " bytes");
+        this.size = size;
+    }
+
+    public void setup() throws Exception {
+        data = new byte[size];
+
+        for (int i = 0; i < size - 2; i++) {
+            data[i] = (byte)('a' + i % 26);
+        }
+
+        data[size - 2] = '\r';
+        data[size - 1] = '\n';
+
+        client = new StringTCPClient(getChannel(), null) {
+            protected void onString(String message) {
+                sink += message.length();
+            }
+        };
+    }
+
+    public void run(int ops) {
+        for (int i = 0; i < ops; i++) {
+            for (int offset = 0; offset < size; offset += CHUNK) {
+                client.inbuf.put(data, offset, Math.min(CHUNK, size - offset));
+                client.inbuf.flip();
+                client.onRead();
+                client.inbuf.compact();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.util.Iterator;
+
+/**
+ * ChatServer.onList listing the open games of a game type
+ * <p>
+ * One operation is one LIST 21 21 on a server with the given amount of
+ * game channels, a third of them of another game type.
+ *
+ * @author Toni Spets
+ */
+public class ListBench extends Benchmark {
+
+    private static final String[] PARAMS = { "21", "21" };
+
+    private int games;
+    private ChatServer server;
+    private ChatClient client;
+
+    /**
+     * Creates a new ListBench
+     *
+     * @param games     amount of game channels
+     */
+    public ListBench(int games) {
+        super("onList " + games + " games");
+        this.games = games;
+    }
+
+    public void setup() throws Exception {
+        server = getChatServer();
+        client = newChatClient(server, 400000 + games);
+
+        // games of a previous run would be listed too
+        for (Iterator<String> i = server.channels.keySet().iterator(); i.hasNext();) {
+            if (i.next().startsWith("#Game_"))
+                i.remove();
+        }
+
+        for (int i = 0; i < games; i++) {
+            ChatClient owner = newChatClient(server, 300000 + i);
+            ChatChannel game = new ChatChannel("#Game_" + i, owner, "", i % 3 == 0 ? 18 : 21, 2, 8, false, 0, ChatChannel.ChannelFlags.CHAN_LOBBY);
+            game.join(owner, "");
+            game.setTopic(owner, "g1P3 " + i);
+            server.channels.put(game.getName(), game);
+        }
+    }
+
+    public void run(int ops) {
+        for (int i = 0; i < ops; i++) {
+            client.lastList = 0;
+            server.onList(client, PARAMS);
+        }
+    }
+
+    public void cleanup() {
+        client.outbuf.clear();
+    }
+}
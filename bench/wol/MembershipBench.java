@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.util.ArrayList;
+
+/**
+ * ChatChannel membership checks and churn on a crowded lobby
+ * <p>
+ * One operation is what a member costs per command and per rejoin: a
+ * membership check, a lookup by nick, a part and a join again.
+ *
+ * @author Toni Spets
+ */
+public class MembershipBench extends Benchmark {
+
+    private int users;
+    private ChatChannel channel;
+    private ArrayList<ChatClient> clients;
+    private int next;
+
+    /**
+     * Creates a new MembershipBench
+     *
+     * @param users     amount of users on the channel
+     */
+    public MembershipBench(int users) {
+        super("membership " + users + " users");
+        this.users = users;
+    }
+
+    public void setup() throws Exception {
+        ChatServer server = getChatServer();
+        channel = new ChatChannel("#Members" + users, null, "", 0, 0, 0, false, 0, ChatChannel.ChannelFlags.CHAN_LOBBY);
+        clients = new ArrayList<ChatClient>();
+
+        for (int i = 0; i < users; i++) {
+            ChatClient client = newChatClient(server, 200000 + users * 10 + i);
+            channel.join(client, "");
+            clients.add(client);
+        }
+    }
+
+    public void run(int ops) {
+        try {
+            for (int i = 0; i < ops; i++) {
+                // spread over the whole list, a linear scan pays half of it on average
+                next = (next + 7919) % users;
+                ChatClient client = clients.get(next);
+
+                if (channel.getUsers().contains(client))
+                    sink += channel.getUser(client.getNick()).getNick().length();
+
+                channel.part(client);
+                channel.join(client, "");
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splitting a line into command and parameters
+ * <p>
+ * Compares the regex and split() path ChatClient used to take with
+ * IrcTokenizer, both starting from the raw bytes and ending with decoded
+ * parameters. One operation is one line.
+ *
+ * @author Toni Spets
+ */
+public class TokenizeBench extends Benchmark {
+
+    private static final String[] LINES = {
+        "PRIVMSG #Lob_21_0 :anyone up for a game?",
+        "GAMEOPT #someone :G1,1,0,0,0,0,1,0,0,0,3,1,1,0,0,0,0,0,0,0,0,0,0",
+        "LIST 0 21",
+        "JOINGAME #someone 1 8 21 3 1 0 0 :",
+        "TIME",
+        "PONG :irc.test",
+    };
+
+    private static final Charset CHARSET = StandardCharsets.US_ASCII;
+
+    private TextCodec codec = new TextCodec(CHARSET);
+
+    private boolean regex;
+    private Pattern pattern;
+    private byte[][] lines;
+    private ByteSlice slice;
+    private IrcMessage message;
+
+    /**
+     * Creates a new TokenizeBench
+     *
+     * @param regex     use the old regex path
+     */
+    public TokenizeBench(boolean regex) {
+        super(regex ? "tokenize regex" : "tokenize IrcTokenizer");
+        this.regex = regex;
+    }
+
+    public void setup() throws Exception {
+        pattern = Pattern.compile("^(:([^ ]+) )?([^ ]+) ?(.*)");
+        lines = new byte[LINES.length][];
+        slice = new ByteSlice();
+        message = new IrcMessage();
+
+        for (int i = 0; i < LINES.length; i++) {
+            lines[i] = LINES[i].getBytes(CHARSET);
+
+            // both have to agree
+            String[] expected = parseRegex(lines[i]);
+            String[] got = parseTokenizer(lines[i]);
+            if (!Arrays.equals(expected, got))
+                throw new IllegalStateException(LINES[i] + ": " + Arrays.toString(expected) + " != " + Arrays.toString(got));
+        }
+    }
+
+    /**
+     * The old path, command followed by parameters
+     *
+     * @param data      line
+     * @return
+     */
+    private String[] parseRegex(byte[] data) {
+        Matcher m = pattern.matcher(new String(data, 0, data.length, CHARSET));
+
+        if (!m.matches())
+            return null;
+
+        MatchResult mr = m.toMatchResult();
+        ArrayList<String> tmp = new ArrayList<String>();
+        tmp.add(mr.group(3));
+
+        String[] parts = m.group(4).split(":", 2);
+
+        for (String param : parts[0].split(" ")) {
+            if (param.length() > 0)
+                tmp.add(param);
+        }
+
+        if (parts.length > 1) {
+            tmp.add(parts[1]);
+        }
+
+        String[] params = new String[tmp.size()];
+        tmp.toArray(params);
+        return params;
+    }
+
+    /**
+     * IrcTokenizer, command followed by parameters
+     *
+     * @param data      line
+     * @return
+     */
+    private String[] parseTokenizer(byte[] data) {
+        slice.set(data, 0, data.length);
+
+        if (!IrcTokenizer.parse(slice, message))
+            return null;
+
+        String[] params = new String[message.getParamCount() + 1];
+        params[0] = message.getCommand();
+        System.arraycopy(message.getParams(codec), 0, params, 1, message.getParamCount());
+        return params;
+    }
+
+    public void run(int ops) {
+        for (int i = 0; i < ops; i++) {
+            byte[] data = lines[i % lines.length];
+
+            if (regex) {
+                sink += parseRegex(data).length;
+            } else {
+                slice.set(data, 0, data.length);
+                IrcTokenizer.parse(slice, message);
+                sink += message.getParams(codec).length + message.getCommand().length();
+            }
+        }
+    }
+}
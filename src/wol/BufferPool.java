@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Pool of direct ByteBuffers for connection I/O
+ * <p>
+ * Buffers come in fixed size classes that are carved out of large direct
+ * slabs, so the channel reads and writes straight from native memory and a
+ * connection churn does not create garbage. Slabs are never returned to
+ * the system, a released buffer goes back to the free list of its class.
+ * <p>
+ * Every pooled buffer is known to be leased or free, so releasing a buffer
+ * twice or one that never came from the pool is caught and refused instead
+ * of putting a buffer that is still in use on the free list.
+ * <p>
+ * When leak checking is enabled every lease is tracked together with the
+ * channel that owns it, buffers still leased after their owner has been
+ * closed are reported as leaks.
+ * <p>
+ * Thread safe, every size class has its own lock.
+ *
+ * @author Toni Spets
+ */
+public class BufferPool {
+
+    public static final int SLAB_SIZE = 1048576;
+    public static final int[] SIZE_CLASSES = { 1024, 4096, 8192 };
+
+    /**
+     * A single size class with its free list
+     */
+    private static class SizeClass {
+        int size;
+        ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+        /**
+         * Every buffer of the class, TRUE while leased
+         */
+        IdentityHashMap<ByteBuffer, Boolean> states = new IdentityHashMap<ByteBuffer, Boolean>();
+
+        int total;
+        int leased;
+        long leases;
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+    }
+
+    private static BufferPool instance;
+
+    private SizeClass[] classes;
+
+    /**
+     * Maximum amount of bytes allocated as slabs
+     */
+    private long maxBytes;
+
+    /**
+     * Amount of bytes allocated as slabs
+     */
+    private long slabBytes;
+
+    /**
+     * Amount of leases that did not fit any class or the pool limit
+     */
+    private long unpooled;
+
+    /**
+     * Amount of released buffers that did not belong to the pool
+     */
+    private long foreign;
+
+    /**
+     * Amount of releases of buffers that were already free
+     */
+    private long doubleReleases;
+
+    /**
+     * Leased buffers and their owners, null if leak checking is disabled
+     */
+    private IdentityHashMap<ByteBuffer, Channel> owners;
+
+    /**
+     * Get the process wide pool
+     *
+     * @return
+     */
+    public static synchronized BufferPool getDefault() {
+        if (instance == null) {
+            instance = new BufferPool(WOL.getInt("WOL.bufferPoolMax", 256) * 1048576L, WOL.getInt("WOL.bufferLeakCheck", 0) > 0);
+            instance.registerMetrics();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Creates a new BufferPool
+     *
+     * @param maxBytes      maximum amount of memory for slabs
+     * @param leakCheck     track owners of leased buffers
+     */
+    public BufferPool(long maxBytes, boolean leakCheck) {
+        this.maxBytes = maxBytes;
+
+        classes = new SizeClass[SIZE_CLASSES.length];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(SIZE_CLASSES[i]);
+        }
+
+        if (leakCheck)
+            owners = new IdentityHashMap<ByteBuffer, Channel>();
+    }
+
+    /**
+     * Find the smallest class that fits
+     *
+     * @param size      requested size
+     * @return          size class or null if too big
+     */
+    private SizeClass classFor(int size) {
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i].size >= size)
+                return classes[i];
+        }
+
+        return null;
+    }
+
+    /**
+     * Carve a new slab into buffers of the given class
+     *
+     * @param sc    target class
+     * @return      false if the pool limit was reached
+     */
+    private boolean grow(SizeClass sc) {
+
+        synchronized (this) {
+            if (slabBytes + SLAB_SIZE > maxBytes)
+                return false;
+            slabBytes += SLAB_SIZE;
+        }
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+
+        for (int offset = 0; offset + sc.size <= SLAB_SIZE; offset += sc.size) {
+            slab.limit(offset + sc.size);
+            slab.position(offset);
+            ByteBuffer buf = slab.slice();
+            sc.free.add(buf);
+            sc.states.put(buf, Boolean.FALSE);
+            sc.total++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Lease a cleared buffer of at least the requested size
+     *
+     * @param size      minimum capacity
+     * @param owner     channel the buffer is used for, can be null
+     * @return
+     */
+    public ByteBuffer lease(int size, Channel owner) {
+        SizeClass sc = classFor(size);
+        ByteBuffer buf = null;
+
+        if (sc != null) {
+            synchronized (sc) {
+                if (!sc.free.isEmpty() || grow(sc)) {
+                    buf = sc.free.poll();
+                    sc.states.put(buf, Boolean.TRUE);
+                    sc.leased++;
+                    sc.leases++;
+                }
+            }
+        }
+
+        if (buf == null) {
+            synchronized (this) {
+                unpooled++;
+            }
+            return ByteBuffer.allocate(size);
+        }
+
+        buf.clear();
+
+        if (owners != null) {
+            synchronized (owners) {
+                owners.put(buf, owner);
+            }
+        }
+
+        return buf;
+    }
+
+    /**
+     * Return a buffer to the pool
+     * <p>
+     * Heap buffers handed out when the pool was exhausted are simply
+     * dropped.
+     *
+     * @param buf       leased buffer
+     */
+    public void release(ByteBuffer buf) {
+
+        if (!buf.isDirect())
+            return;
+
+        SizeClass sc = classFor(buf.capacity());
+
+        if (sc == null || sc.size != buf.capacity()) {
+            synchronized (this) {
+                foreign++;
+            }
+            return;
+        }
+
+        synchronized (sc) {
+            Boolean leased = sc.states.get(buf);
+
+            if (leased == null) {
+                synchronized (this) {
+                    foreign++;
+                }
+                return;
+            }
+
+            // already free, pushing it again would hand it out twice
+            if (!leased) {
+                synchronized (this) {
+                    doubleReleases++;
+                }
+                Log.log(Log.CORE, Log.ERROR, "BufferPool: released a buffer that is not leased (double release?)", new Exception());
+                return;
+            }
+
+            // before it can be leased again
+            if (owners != null) {
+                synchronized (owners) {
+                    owners.remove(buf);
+                }
+            }
+
+            sc.states.put(buf, Boolean.FALSE);
+            sc.free.push(buf);
+            sc.leased--;
+        }
+    }
+
+    /**
+     * Report buffers whose owner channel has been closed
+     *
+     * @return          amount of leaked buffers
+     */
+    public int checkLeaks() {
+
+        if (owners == null)
+            return 0;
+
+        int leaks = 0;
+
+        synchronized (owners) {
+            for (Iterator<Map.Entry<ByteBuffer, Channel>> i = owners.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<ByteBuffer, Channel> e = i.next();
+                if (e.getValue() != null && !e.getValue().isOpen()) {
+                    leaks++;
+                }
+            }
+        }
+
+        if (leaks > 0)
+            Log.log(Log.CORE, Log.WARN, "BufferPool: " + leaks + " buffers still leased by closed channels");
+
+        return leaks;
+    }
+
+    /**
+     * Register gauges of the pool occupancy
+     */
+    private void registerMetrics() {
+        Metrics metrics = Metrics.getDefault();
+
+        for (int i = 0; i < classes.length; i++) {
+            final int index = i;
+            String labels = "size=\"" + classes[i].size + "\"";
+
+            metrics.gauge("wol_buffer_leased", labels, "Leased pool buffers per size class", new Metrics.Gauge() {
+                public long get() {
+                    return getLeased(index);
+                }
+            });
+
+            metrics.gauge("wol_buffer_free", labels, "Free pool buffers per size class", new Metrics.Gauge() {
+                public long get() {
+                    return getFree(index);
+                }
+            });
+        }
+
+        metrics.gauge("wol_buffer_slab_bytes", "", "Bytes allocated as slabs", new Metrics.Gauge() {
+            public long get() {
+                return getSlabBytes();
+            }
+        });
+
+        metrics.gauge("wol_buffer_unpooled", "", "Leases that fell back to heap buffers", new Metrics.Gauge() {
+            public long get() {
+                return getUnpooled();
+            }
+        });
+    }
+
+    /**
+     * Amount of leased buffers of a size class
+     *
+     * @param index     size class index
+     * @return
+     */
+    public int getLeased(int index) {
+        SizeClass sc = classes[index];
+        synchronized (sc) {
+            return sc.leased;
+        }
+    }
+
+    /**
+     * Amount of free buffers of a size class
+     *
+     * @param index     size class index
+     * @return
+     */
+    public int getFree(int index) {
+        SizeClass sc = classes[index];
+        synchronized (sc) {
+            return sc.free.size();
+        }
+    }
+
+    /**
+     * Amount of bytes allocated as slabs
+     *
+     * @return
+     */
+    public synchronized long getSlabBytes() {
+        return slabBytes;
+    }
+
+    /**
+     * Amount of leases that fell back to heap buffers
+     *
+     * @return
+     */
+    public synchronized long getUnpooled() {
+        return unpooled;
+    }
+
+    /**
+     * Occupancy summary for logging
+     *
+     * @return
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder("BufferPool:");
+
+        for (int i = 0; i < classes.length; i++) {
+            SizeClass sc = classes[i];
+            synchronized (sc) {
+                sb.append(" ").append(sc.size).append("=").append(sc.leased).append("/").append(sc.total);
+            }
+        }
+
+        synchronized (this) {
+            sb.append(" slabs=").append(slabBytes / SLAB_SIZE).append(" unpooled=").append(unpooled).append(" foreign=").append(foreign).append(" doubleReleases=").append(doubleReleases);
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable view of a range of bytes
+ * <p>
+ * Lines are handed to handlers as a slice of a shared array, the bytes are
+ * only valid until the handler returns. Nothing is decoded until a String
+ * is asked for.
+ *
+ * @author Toni Spets
+ */
+public class ByteSlice {
+
+    private static final VarHandle WORDS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private byte[] data;
+    private int offset;
+    private int length;
+
+    /**
+     * Creates a new empty ByteSlice
+     */
+    public ByteSlice() {
+        data = new byte[0];
+    }
+
+    /**
+     * Point to a new range
+     *
+     * @param data      backing array
+     * @param offset    index of the first byte
+     * @param length    amount of bytes
+     */
+    public void set(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Get backing array
+     *
+     * @return
+     */
+    public byte[] array() {
+        return data;
+    }
+
+    /**
+     * Get index of the first byte in the backing array
+     *
+     * @return
+     */
+    public int offset() {
+        return offset;
+    }
+
+    /**
+     * Get amount of bytes
+     *
+     * @return
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Get a byte
+     *
+     * @param index     index relative to the slice
+     * @return
+     */
+    public byte byteAt(int index) {
+        return data[offset + index];
+    }
+
+    /**
+     * Compare to an ASCII string ignoring case
+     *
+     * @param s         ASCII string
+     * @return
+     */
+    public boolean equalsIgnoreCase(String s) {
+        return s.length() == length && startMatches(s);
+    }
+
+    /**
+     * Does the slice start with an ASCII string, ignoring case?
+     *
+     * @param s         ASCII string
+     * @return
+     */
+    public boolean startsWithIgnoreCase(String s) {
+        return s.length() <= length && startMatches(s);
+    }
+
+    /**
+     * Compare the start of the slice to a shorter ASCII string ignoring case
+     */
+    private boolean startMatches(String s) {
+
+        for (int i = 0; i < s.length(); i++) {
+            int a = data[offset + i], c = s.charAt(i);
+
+            if (a == c)
+                continue;
+
+            // only letters differ by the case bit
+            int folded = a | 0x20;
+            if (folded != (c | 0x20) || folded < 'a' || folded > 'z')
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Find the first occurrence of a byte
+     *
+     * @param b         byte to look for
+     * @param from      index relative to the slice to start from
+     * @return          index relative to the slice or -1
+     */
+    public int indexOf(byte b, int from) {
+        int i = indexOf(data, offset + from, offset + length, b);
+        return i < 0 ? -1 : i - offset;
+    }
+
+    /**
+     * Find the first occurrence of a byte in an array
+     * <p>
+     * Eight bytes are tested at a time: xor turns matching bytes into zero
+     * and the zero byte test sets the high bit of them. Borrows only travel
+     * towards higher addresses in little endian order so the lowest set bit
+     * is always a real match.
+     *
+     * @param data      the array
+     * @param from      index to start from
+     * @param to        index to stop at, exclusive
+     * @param b         byte to look for
+     * @return          index or -1
+     */
+    public static int indexOf(byte[] data, int from, int to, byte b) {
+        long pattern = (b & 0xFF) * ONES;
+        int i = from;
+
+        for (; i + 8 <= to; i += 8) {
+            long x = (long)WORDS.get(data, i) ^ pattern;
+            long found = (x - ONES) & ~x & HIGHS;
+            if (found != 0)
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+
+        for (; i < to; i++) {
+            if (data[i] == b)
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Decode the bytes
+     *
+     * @param charset   character set
+     * @return
+     */
+    public String toString(Charset charset) {
+        return new String(data, offset, length, charset);
+    }
+
+    /**
+     * Decode the bytes as ISO-8859-1, one char per byte
+     *
+     * @return
+     */
+    public String toString() {
+        return new String(data, offset, length, StandardCharsets.ISO_8859_1);
+    }
+}
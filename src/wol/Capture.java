@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records connection traffic into memory mapped capture segments
+ * <p>
+ * Segments are append-only files named prefix.0, prefix.1 and so on. Each
+ * starts with a header of the magic and the capture start time, followed by
+ * records of:
+ * <pre>
+ *   long    nanoseconds since capture start
+ *   int     connection id
+ *   byte    record type
+ *   int     length
+ *   byte[]  data
+ * </pre>
+ * An open record carries the local port as data. A zero type byte marks
+ * the end of a segment. Enabled with WOL.capture set to the file prefix,
+ * segment size is WOL.captureSegment megabytes.
+ *
+ * @author Toni Spets
+ */
+public class Capture {
+
+    public static final long MAGIC = 0x574f4c4341503031L;
+
+    public static final byte OPEN = 1;
+    public static final byte IN = 2;
+    public static final byte OUT = 3;
+    public static final byte CLOSE = 4;
+
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 17;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64;
+
+    private static Capture instance;
+    private static boolean configured;
+
+    private String prefix;
+    private int segmentSize;
+    private int segment;
+    private MappedByteBuffer map;
+    private long start;
+    private AtomicInteger nextId;
+
+    /**
+     * Creates a new Capture
+     *
+     * @param prefix        file name prefix of the segments
+     * @param segmentSize   size of a segment in bytes
+     * @throws IOException
+     */
+    public Capture(String prefix, int segmentSize) throws IOException {
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        start = System.nanoTime();
+        nextId = new AtomicInteger();
+        segment = -1;
+        nextSegment();
+    }
+
+    /**
+     * Get the capture of this process, null when capturing is off
+     *
+     * @return
+     */
+    public static synchronized Capture getDefault() {
+
+        if (!configured) {
+            configured = true;
+
+            String prefix = WOL.getString("WOL.capture", null);
+            if (prefix != null) {
+                try {
+                    instance = new Capture(prefix, WOL.getInt("WOL.captureSegment", DEFAULT_SEGMENT_SIZE) * 1048576);
+                    Log.log(Log.CORE, Log.INFO, "Capturing traffic to ", prefix);
+                } catch (IOException e) {
+                    Log.log(Log.CORE, Log.ERROR, "Capture: Failed to open ", prefix, ": ", e.getMessage());
+                }
+            }
+        }
+
+        return instance;
+    }
+
+    /**
+     * Map the next segment file
+     *
+     * @throws IOException
+     */
+    private void nextSegment() throws IOException {
+
+        if (map != null)
+            map.force();
+
+        segment++;
+
+        RandomAccessFile file = new RandomAccessFile(new File(prefix + "." + segment), "rw");
+        try {
+            file.setLength(0);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            // the mapping stays valid without the file handle
+            file.close();
+        }
+
+        map.putLong(MAGIC);
+        map.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Get an id for a new connection
+     *
+     * @param localPort     port the connection was accepted on
+     * @return
+     */
+    public int open(int localPort) {
+        int id = nextId.incrementAndGet();
+        byte[] port = { (byte)(localPort >> 8), (byte)localPort };
+        append(id, OPEN, port, 0, port.length);
+        return id;
+    }
+
+    /**
+     * Record received bytes
+     *
+     * @param id        connection id
+     * @param buf       buffer holding the bytes
+     * @param from      position of the first byte
+     * @param to        position after the last byte
+     */
+    public synchronized void in(int id, ByteBuffer buf, int from, int to) {
+
+        if (!reserve(to - from))
+            return;
+
+        // copy through a view so the position of the caller is untouched
+        ByteBuffer view = buf.duplicate();
+        view.limit(to).position(from);
+
+        header(id, IN, to - from);
+        map.put(view);
+    }
+
+    /**
+     * Record sent bytes
+     *
+     * @param id        connection id
+     * @param data      the bytes
+     */
+    public void out(int id, byte[] data) {
+        append(id, OUT, data, 0, data.length);
+    }
+
+    /**
+     * Record sent bytes from part of an array
+     *
+     * @param id        connection id
+     * @param data      source array
+     * @param off       index of the first byte
+     * @param len       amount of bytes
+     */
+    public void out(int id, byte[] data, int off, int len) {
+        append(id, OUT, data, off, len);
+    }
+
+    /**
+     * Record a closed connection
+     *
+     * @param id        connection id
+     */
+    public void close(int id) {
+        append(id, CLOSE, null, 0, 0);
+    }
+
+    /**
+     * Append a record
+     */
+    private synchronized void append(int id, byte type, byte[] data, int off, int len) {
+
+        if (!reserve(len))
+            return;
+
+        header(id, type, len);
+        if (len > 0)
+            map.put(data, off, len);
+    }
+
+    /**
+     * Make room for a record, moving to the next segment when needed
+     *
+     * @param len       data length
+     * @return          false if the record can not be captured
+     */
+    private boolean reserve(int len) {
+
+        // one byte always stays free for the end marker
+        if (map.remaining() > RECORD_HEADER_SIZE + len)
+            return true;
+
+        if (HEADER_SIZE + RECORD_HEADER_SIZE + len >= segmentSize)
+            return false;
+
+        try {
+            nextSegment();
+        } catch (IOException e) {
+            Log.log(Log.CORE, Log.ERROR, "Capture: Failed to open next segment: ", e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Write a record header
+     */
+    private void header(int id, byte type, int len) {
+        map.putLong(System.nanoTime() - start);
+        map.putInt(id);
+        map.put(type);
+        map.putInt(len);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Users of a channel in the order they joined
+ * <p>
+ * Membership is found by client and by nick in constant time. Iterating
+ * goes over a snapshot array that is rebuilt on the first use after a
+ * change, so a broadcast neither allocates nor sees users that join or
+ * leave while it runs.
+ * <p>
+ * Not thread safe, used while holding the ChatServer lock.
+ *
+ * @author Toni Spets
+ */
+public class ChannelMembers implements Iterable<ChatClient> {
+
+    private static final ChatClient[] EMPTY = new ChatClient[0];
+
+    private LinkedHashSet<ChatClient> clients;
+    private HashMap<String, ChatClient> nicks;
+
+    /**
+     * Members in join order, null when it has to be rebuilt
+     */
+    private ChatClient[] snapshot;
+
+    /**
+     * Creates a new empty ChannelMembers
+     */
+    public ChannelMembers() {
+        clients = new LinkedHashSet<ChatClient>();
+        nicks = new HashMap<String, ChatClient>();
+        snapshot = EMPTY;
+    }
+
+    /**
+     * Add a user to the end
+     *
+     * @param client    the user
+     * @return          false if already a member
+     */
+    public boolean add(ChatClient client) {
+
+        if (!clients.add(client))
+            return false;
+
+        nicks.put(client.getNick(), client);
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * Remove a user
+     *
+     * @param client    the user
+     * @return          false if not a member
+     */
+    public boolean remove(ChatClient client) {
+
+        if (!clients.remove(client))
+            return false;
+
+        if (nicks.get(client.getNick()) == client)
+            nicks.remove(client.getNick());
+
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * Is the client a member?
+     *
+     * @param client    the user
+     * @return
+     */
+    public boolean contains(ChatClient client) {
+        return clients.contains(client);
+    }
+
+    /**
+     * Find a member by nick
+     *
+     * @param nick      nickname
+     * @return          the member or null
+     */
+    public ChatClient get(String nick) {
+        return nicks.get(nick);
+    }
+
+    /**
+     * Move a member to its new nick after it has changed
+     *
+     * @param client    the user
+     * @param oldNick   nick it had before
+     */
+    public void rename(ChatClient client, String oldNick) {
+
+        if (!clients.contains(client))
+            return;
+
+        if (nicks.get(oldNick) == client)
+            nicks.remove(oldNick);
+
+        nicks.put(client.getNick(), client);
+    }
+
+    /**
+     * Get amount of members
+     *
+     * @return
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Are there no members?
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return clients.isEmpty();
+    }
+
+    /**
+     * Get members in join order
+     * <p>
+     * The array is shared and must not be modified, it stays the same
+     * until the next change.
+     *
+     * @return
+     */
+    public ChatClient[] snapshot() {
+
+        if (snapshot == null)
+            snapshot = clients.toArray(new ChatClient[clients.size()]);
+
+        return snapshot;
+    }
+
+    /**
+     * Iterate over a snapshot of the members
+     *
+     * @return
+     */
+    public Iterator<ChatClient> iterator() {
+        return Arrays.asList(snapshot()).iterator();
+    }
+}
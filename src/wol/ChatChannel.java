@@ -15,8 +15,7 @@
  */
 package wol;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashSet;
 
 /**
  * Acts as any channel in WOL: chat, lobby and game
@@ -53,12 +52,12 @@ public class ChatChannel {
     /**
      * Current user list
      */
-    ArrayList<ChatClient> users;
+    ChannelMembers users;
 
     /**
      * Current ban list, just nicknames
      */
-    ArrayList<String> bans;
+    HashSet<String> bans;
 
     /**
      * Game type
@@ -193,8 +192,8 @@ public class ChatChannel {
         this.tournament = tournament;
         this.reserved = reserved;
         this.flags = flags;
-        users = new ArrayList<ChatClient>();
-        bans = new ArrayList<String>();
+        users = new ChannelMembers();
+        bans = new HashSet<String>();
     }
 
     /**
@@ -301,7 +300,7 @@ public class ChatChannel {
      * 
      * @return 
      */
-    public ArrayList<ChatClient> getUsers() {
+    public ChannelMembers getUsers() {
         return users;
     }
 
@@ -327,15 +326,12 @@ public class ChatChannel {
      * @throws wol.ChatChannel.UserNotOnChannelException 
      */
     public ChatClient getUser(String nick) throws UserNotOnChannelException {
+        ChatClient client = users.get(nick);
 
-        for (Iterator<ChatClient> i = users.iterator(); i.hasNext();) {
-            ChatClient client = i.next();
-            if (client.getNick().equals(nick)) {
-                return client;
-            }
-        }
+        if (client == null)
+            throw new UserNotOnChannelException();
 
-        throw new UserNotOnChannelException();
+        return client;
     }
 
     /**
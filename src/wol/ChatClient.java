@@ -1,421 +1,446 @@
-/*
- * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
- * 
- * Permission to use, copy, modify, and distribute this software for any
- * purpose with or without fee is hereby granted, provided that the above
- * copyright notice and this permission notice appear in all copies.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
- * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
- * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
- * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
- * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
- * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
- * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
- */
-package wol;
-
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.regex.MatchResult;
-import java.util.regex.Matcher;
-import static wol.ChatClient.UserOptions.*;
-
-/**
- * Client that is connected to ChatServer
- *
- * @author Toni Spets
- */
-public class ChatClient extends StringTCPClient {
-
-    private String nick;
-
-    /**
-     * Set when NICK, APGAR and USER command have succeeded
-     */
-    protected boolean registered;
-
-    /**
-     * Set when PASS command is sent and acccepted
-     */
-    protected boolean havePassword;
-
-    /**
-     * Timestamp when the last message was received
-     */
-    private long lastMessage;
-
-    /**
-     * Set when the client is considered idle
-     */
-    private boolean idle;
-
-    /**
-     * The ChatServer this client is tied to
-     */
-    private ChatServer server;
-
-    /**
-     * Red Alert self GAMEOPT sent flag (hack)
-     */
-    private boolean sentGameopt;
-
-    /**
-     * Message queue that can be moved to output buffer at any time (hack)
-     */
-    private ArrayList<String> queue;
-
-    /**
-     * SETOPT command values
-     */
-    private int opt1;
-    private int opt2;
-
-    /**
-     * SETOPT command flags
-     */
-    public class UserOptions {
-        final static public int OPT1_ALLOWFIND = 1;
-        final static public int OPT2_ALLOWPAGE = 1;
-    }
-    
-    /**
-     * Client's LOCALE
-     */
-    private int locale;
-
-    /**
-     * Create a new ChatClient that is tied to given ChatServer
-     * 
-     * @param channel   the open channel used for I/O
-     * @param selector  main selector for events
-     * @param server    the ChatServer we are tied to
-     */
-    protected ChatClient(SocketChannel channel, Selector selector, ChatServer server) {
-        this(channel, selector);
-        this.server = server;
-        this.queue = new ArrayList<String>();
-    }
-
-    protected ChatClient(SocketChannel channel, Selector selector) {
-        super(channel, selector);
-    }
-
-    /**
-     * Write a single WOL chat string to output buffer
-     * 
-     * @param message   non-terminated line
-     */
-    public void putString(String message) {
-        System.out.println(address + ":" + port + " <- " + message);
-        super.putString(message + "\r");
-    }
-
-    /**
-     * Get nickname
-     * 
-     * @return          current nickname
-     */
-    public String getNick() {
-        return nick;
-    }
-
-    /**
-     * Set nickname
-     * 
-     * @param newNick   new nickname
-     */
-    public void setNick(String newNick) {
-        nick = newNick;
-    }
-
-    /**
-     * Get ip address as string
-     * 
-     * @return          ip address
-     */
-    public String getIp() {
-        return address.getHostAddress();
-    }
-
-    /**
-     * Get ip address as long
-     * 
-     * @return          ip address
-     */
-    public long getLongIp() {
-        byte[] raw = address.getAddress();
-        return raw[3] + (raw[2] << 8) + (raw[1] << 16) + (raw[0] << 24);
-    }
-    
-    /**
-     * Can this user be found by FIND command?
-     * 
-     * @return 
-     */
-    public boolean canFind() {
-        return (opt1 & OPT1_ALLOWFIND) > 0;
-    }
-
-    /**
-     * Can this user be PAGEd?
-     * 
-     * @return 
-     */
-    public boolean canPage() {
-        return (opt2 & OPT2_ALLOWPAGE) > 0;
-    }
-
-    /**
-     * Set private options (SETOPT command)
-     * 
-     * @param newOpt1   opt1 integer
-     * @param newOpt2   opt2 integer
-     */
-    public void setOptions(int newOpt1, int newOpt2) {
-        opt1 = newOpt1;
-        opt2 = newOpt2;
-    }
-   
-    /**
-     * Get locale
-     * 
-     * @return          locale
-     */
-    public int getLocale() {
-        return locale;
-    }
-
-    /**
-     * Set locale
-     * 
-     * @param locale   new locale
-     */
-    public void setLocale(int newLocale) {
-        locale = newLocale;
-    }
-
-    public void onString(String message) {
-
-        System.out.println(address + ":" + port + " -> " + message);
-
-        lastMessage = System.currentTimeMillis();
-        idle = false;
-        Matcher m = server.ircPattern.matcher(message);
-
-        if (m.matches()) {
-            MatchResult mr = m.toMatchResult();
-
-            String prefix = mr.group(2);
-            String command = mr.group(3);
-
-            ArrayList<String> tmp = new ArrayList<String>();
-            String[] parts = m.group(4).split(":", 2);
-
-            for (String param : parts[0].split(" ")) {
-                if (param.length() > 0)
-                    tmp.add(param);
-            }
-
-            if (parts.length > 1) {
-                tmp.add(parts[1]);
-            }
-
-            String[] params = new String[tmp.size()];
-            tmp.toArray(params);
-
-            if (command.equalsIgnoreCase("CVERS")) {
-                server.onCvers(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("PASS")) {
-                server.onPass(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("NICK")) {
-                server.onNick(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("APGAR")) {
-                server.onApgar(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("SERIAL")) {
-                server.onSerial(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("USER")) {
-                server.onUser(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("VERCHK")) {
-                server.onVerchk(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("SETOPT")) {
-                server.onSetOpt(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("SETCODEPAGE")) {
-                server.onSetCodepage(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("LIST")) {
-                server.onList(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("JOIN")) {
-                server.onJoin(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("JOINGAME")) {
-                server.onJoinGame(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("TOPIC")) {
-                server.onTopic(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("GAMEOPT")) {
-                server.onGameopt(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("KICK")) {
-                server.onKick(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("MODE")) {
-                server.onMode(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("PRIVMSG")) {
-                server.onPrivmsg(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("PAGE")) {
-                server.onPage(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("GETCODEPAGE")) {
-                server.onGetCodepage(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("SETLOCALE")) {
-                server.onSetLocale(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("GETLOCALE")) {
-                server.onGetLocale(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("FINDUSEREX")) {
-                server.onFindUserEx(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("USERIP")) {
-                server.onUserIp(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("STARTG")) {
-                server.onStartG(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("NAMES")) {
-                server.onNames(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("SQUADINFO")) {
-                server.onSquadInfo(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("TIME")) {
-                server.onTime(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("PART")) {
-                server.onPart(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("QUIT")) {
-                server.onQuit(this, params);
-            }
-
-            else if (command.equalsIgnoreCase("PONG")) {
-                // ignore PONG, we don't keep track of them
-            }
-
-            else {
-                System.out.println("Client sent unknown command: " + command);
-            }
-        }
-    }
-
-    protected void onConnect() {
-        lastMessage = System.currentTimeMillis();
-        System.out.println(address + ":" + port + " connected to ChatServer");
-    }
-
-    protected void onDisconnect() {
-        System.out.println(address + ":" + port + " disconnected from ChatServer");
-        server.clientDisconnect(this);
-    }
-
-    /**
-     * Called to set if this client has sent his GAMEOPT (hack)
-     * 
-     * @param newSentGameopt    new setting
-     */
-    public void sentGameopt(boolean newSentGameopt) {
-        sentGameopt = newSentGameopt;
-    }
-
-    /**
-     * Has this client sent his GAMEOPT? (hack)
-     * 
-     * @return 
-     */
-    public boolean sentGameopt() {
-        return sentGameopt;
-    }
-
-    /**
-     * Add a new message to manually flushed queue (hack)
-     * 
-     * @param message non-terminated message
-     */
-    public void putQueue(String message) {
-        queue.add(message);
-    }
-
-    /**
-     * Flush current output queue to output buffer, queue is cleared
-     */
-    public void flushQueue() {
-        for (Iterator<String> i = queue.iterator(); i.hasNext();) {
-            String message = i.next();
-            putString(message);
-            i.remove();
-        }
-    }
-
-    /**
-     * Discard current output queue
-     */
-    public void discardQueue() {
-        queue.clear();
-    }
-
-    public void think(long now) {
-
-        if (now - lastMessage > 30000 && !idle) {
-            server.clientIdle(this);
-            idle = true;
-        }
-
-        if (now - lastMessage > 60000) {
-            server.clientTimeout(this);
-        }
-    }
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import static wol.ChatClient.UserOptions.*;
+import static wol.ChatServer.NumericReplies.*;
+
+/**
+ * Client that is connected to ChatServer
+ *
+ * @author Toni Spets
+ */
+public class ChatClient extends StringTCPClient {
+
+    private String nick;
+
+    /**
+     * Encoded nick and ":nick!u@h " for ReplyWriter, null until needed or
+     * when the nick is not ASCII
+     */
+    private byte[] nickBytes;
+    private byte[] userPrefix;
+
+    /**
+     * Address as a number, set on connect
+     */
+    private long longIp = -1;
+
+    /**
+     * Set when NICK, APGAR and USER command have succeeded
+     */
+    protected boolean registered;
+
+    /**
+     * Set when PASS command is sent and acccepted
+     */
+    protected boolean havePassword;
+
+    /**
+     * Timestamp when the last message was received, written by the reader
+     * and read by the idle timer
+     */
+    private volatile long lastMessage;
+
+    /**
+     * Set when the client is considered idle, only touched under the
+     * server lock
+     */
+    private boolean idle;
+
+    /**
+     * The line being handled
+     */
+    private IrcMessage message = new IrcMessage();
+
+    /**
+     * View of a line passed to onString
+     */
+    private ByteSlice decoded = new ByteSlice();
+
+    /**
+     * Timestamp of the last LIST request
+     */
+    long lastList;
+
+    /**
+     * The ChatServer this client is tied to
+     */
+    private ChatServer server;
+
+    /**
+     * Red Alert self GAMEOPT sent flag (hack)
+     */
+    private boolean sentGameopt;
+
+    /**
+     * Message queue that can be moved to output buffer at any time (hack)
+     */
+    private ArrayList<String> queue;
+
+    /**
+     * SETOPT command values
+     */
+    private int opt1;
+    private int opt2;
+
+    /**
+     * SETOPT command flags
+     */
+    public class UserOptions {
+        final static public int OPT1_ALLOWFIND = 1;
+        final static public int OPT2_ALLOWPAGE = 1;
+    }
+    
+    /**
+     * Client's LOCALE
+     */
+    private int locale;
+
+    /**
+     * Create a new ChatClient that is tied to given ChatServer
+     * 
+     * @param channel   the open channel used for I/O
+     * @param reactor   reactor for events
+     * @param server    the ChatServer we are tied to
+     */
+    protected ChatClient(SocketChannel channel, Reactor reactor, ChatServer server) {
+        this(channel, reactor);
+        this.server = server;
+        this.queue = new ArrayList<String>();
+    }
+
+    protected ChatClient(SocketChannel channel, Reactor reactor) {
+        super(channel, reactor);
+        newline = "\r\n";
+    }
+
+    /**
+     * Write a single WOL chat string to output buffer
+     * 
+     * @param message   non-terminated line
+     */
+    public void putString(String message) {
+        if (Log.isEnabled(Log.PROTO, Log.TRACE))
+            Log.log(Log.PROTO, Log.TRACE, this, " <- ", message);
+
+        super.putString(message);
+    }
+
+    /**
+     * Queue a line that was encoded once for many clients
+     *
+     * @param message   the line, for logging
+     * @param line      the line and newline in the encoding of this client
+     */
+    public void putString(String message, SharedBuffer line) {
+        if (Log.isEnabled(Log.PROTO, Log.TRACE))
+            Log.log(Log.PROTO, Log.TRACE, this, " <- ", message);
+
+        write(line);
+    }
+
+    /**
+     * Get nickname
+     * 
+     * @return          current nickname
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    /**
+     * Set nickname
+     * 
+     * @param newNick   new nickname
+     */
+    public void setNick(String newNick) {
+        nick = newNick;
+        nickBytes = null;
+        userPrefix = null;
+    }
+
+    /**
+     * Get nickname as it is sent in replies
+     *
+     * @return          ASCII bytes or null if not available
+     */
+    byte[] getNickBytes() {
+
+        if (nickBytes == null && nick != null)
+            nickBytes = ReplyWriter.ascii(nick);
+
+        return nickBytes;
+    }
+
+    /**
+     * Get ":nick!u@h " prefix of messages from this client
+     *
+     * @return          ASCII bytes or null if not available
+     */
+    byte[] getUserPrefix() {
+
+        if (userPrefix == null && nick != null)
+            userPrefix = ReplyWriter.ascii(":" + nick + "!u@h ");
+
+        return userPrefix;
+    }
+
+    /**
+     * Get ip address as string
+     * 
+     * @return          ip address
+     */
+    public String getIp() {
+        return address.getHostAddress();
+    }
+
+    /**
+     * Get ip address as long
+     * 
+     * @return          ip address
+     */
+    public long getLongIp() {
+
+        if (longIp < 0) {
+            byte[] raw = address.getAddress();
+            longIp = (raw[3] & 0xFFL) | (raw[2] & 0xFFL) << 8 | (raw[1] & 0xFFL) << 16 | (raw[0] & 0xFFL) << 24;
+        }
+
+        return longIp;
+    }
+    
+    /**
+     * Can this user be found by FIND command?
+     * 
+     * @return 
+     */
+    public boolean canFind() {
+        return (opt1 & OPT1_ALLOWFIND) > 0;
+    }
+
+    /**
+     * Can this user be PAGEd?
+     * 
+     * @return 
+     */
+    public boolean canPage() {
+        return (opt2 & OPT2_ALLOWPAGE) > 0;
+    }
+
+    /**
+     * Set private options (SETOPT command)
+     * 
+     * @param newOpt1   opt1 integer
+     * @param newOpt2   opt2 integer
+     */
+    public void setOptions(int newOpt1, int newOpt2) {
+        opt1 = newOpt1;
+        opt2 = newOpt2;
+    }
+   
+    /**
+     * Get locale
+     * 
+     * @return          locale
+     */
+    public int getLocale() {
+        return locale;
+    }
+
+    /**
+     * Set locale
+     * 
+     * @param locale   new locale
+     */
+    public void setLocale(int newLocale) {
+        locale = newLocale;
+    }
+
+    /**
+     * Tokenizes the line in place and dispatches it through the command
+     * table, parameters are only decoded for a handler that runs
+     *
+     * @param line  a line without NL or CRNL
+     */
+    protected void onLine(ByteSlice line) {
+
+        if (Log.isEnabled(Log.PROTO, Log.TRACE))
+            Log.log(Log.PROTO, Log.TRACE, this, " -> ", line.toString(charset));
+
+        lastMessage = System.currentTimeMillis();
+        idle = false;
+
+        if (!IrcTokenizer.parse(line, message))
+            return;
+
+        long start = System.nanoTime();
+        CommandTable.Command command = server.commands.lookup(message);
+
+        if (command == null) {
+            if (Log.isEnabled(Log.CHAT, Log.DEBUG))
+                Log.log(Log.CHAT, Log.DEBUG, "Client sent unknown command: ", message.getCommand());
+
+            server.otherLatency.record(System.nanoTime() - start);
+            return;
+        }
+
+        reactor.setCommand(command.name);
+
+        if (command.needsRegistration && !registered) {
+            server.putReply(this, ERR_NOTREGISTERED, ":You have not registered");
+        }
+
+        else if (message.getParamCount() < command.minParams) {
+            server.putReply(this, ERR_NEEDMOREPARAMS, command.name, "Not enough parameters");
+        }
+
+        else if (command.handler != null) {
+            command.handler.handle(this, message.getParams(codec));
+        }
+
+        command.latency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Handle a line that has already been decoded
+     *
+     * @param message   a line without NL or CRNL
+     */
+    public void onString(String message) {
+        byte[] data = message.getBytes(charset);
+        decoded.set(data, 0, data.length);
+        onLine(decoded);
+    }
+
+    /**
+     * Tell the client its line was dropped instead of disconnecting it
+     */
+    protected void onLineTooLong() {
+        super.onLineTooLong();
+        server.putReply(this, ERR_INPUTTOOLONG, ":Input line was too long");
+    }
+
+    /**
+     * Lines are handled while holding the ChatServer lock as the shared chat
+     * state is accessed from every reactor thread
+     */
+    protected void onRead() {
+        server.lock.lock();
+        try {
+            super.onRead();
+        } finally {
+            server.lock.unlock();
+        }
+    }
+
+    protected void onConnect() {
+        getLongIp();
+        lastMessage = System.currentTimeMillis();
+        reactor.schedule(idleTimer, 30000);
+        Log.log(Log.NET, Log.DEBUG, this, " connected to ChatServer");
+    }
+
+    protected void onDisconnect() {
+        Log.log(Log.NET, Log.DEBUG, this, " disconnected from ChatServer");
+        reactor.cancel(idleTimer);
+        server.clientDisconnect(this);
+    }
+
+    /**
+     * Called to set if this client has sent his GAMEOPT (hack)
+     * 
+     * @param newSentGameopt    new setting
+     */
+    public void sentGameopt(boolean newSentGameopt) {
+        sentGameopt = newSentGameopt;
+    }
+
+    /**
+     * Has this client sent his GAMEOPT? (hack)
+     * 
+     * @return 
+     */
+    public boolean sentGameopt() {
+        return sentGameopt;
+    }
+
+    /**
+     * Add a new message to manually flushed queue (hack)
+     * 
+     * @param message non-terminated message
+     */
+    public void putQueue(String message) {
+        queue.add(message);
+    }
+
+    /**
+     * Flush current output queue to output buffer, queue is cleared
+     */
+    public void flushQueue() {
+        for (Iterator<String> i = queue.iterator(); i.hasNext();) {
+            String message = i.next();
+            putString(message);
+            i.remove();
+        }
+    }
+
+    /**
+     * Discard current output queue
+     */
+    public void discardQueue() {
+        queue.clear();
+    }
+
+    /**
+     * Idle and timeout checks, expires at the next deadline
+     * <p>
+     * Incoming lines only update lastMessage, the deadline is recalculated
+     * lazily when the timer expires. Lines are handled under the server
+     * lock, so taking it here keeps a line from resetting idle between the
+     * check and the PING.
+     */
+    private TimerWheel.Timer idleTimer = new TimerWheel.Timer() {
+        public void expire(long now) {
+            long elapsed;
+            boolean pinged;
+
+            server.lock.lock();
+            try {
+                elapsed = now - lastMessage;
+
+                if (elapsed >= 60000) {
+                    server.clientTimeout(ChatClient.this);
+                    return;
+                }
+
+                if (elapsed >= 30000 && !idle) {
+                    server.clientIdle(ChatClient.this);
+                    idle = true;
+                }
+
+                pinged = idle;
+            } finally {
+                server.lock.unlock();
+            }
+
+            reactor.getTimers().schedule(this, (pinged ? 60000 : 30000) - elapsed);
+        }
+    };
 }
\ No newline at end of file
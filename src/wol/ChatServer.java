@@ -1,1020 +1,1307 @@
-/*
- * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
- * 
- * Permission to use, copy, modify, and distribute this software for any
- * purpose with or without fee is hereby granted, provided that the above
- * copyright notice and this permission notice appear in all copies.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
- * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
- * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
- * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
- * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
- * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
- * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
- */
-package wol;
-
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.InetAddress;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.regex.Pattern;
-import wol.ChatChannel.GameFullException;
-import wol.ChatChannel.InvalidKeyException;
-import wol.ChatChannel.UserBannedException;
-import wol.ChatChannel.UserExistsException;
-import wol.ChatChannel.UserNotOperatorException;
-import static wol.ChatServer.NumericReplies.*;
-import static wol.ChatChannel.ChannelFlags.*;
-import wol.ChatChannel.UserNotOnChannelException;
-
-/**
- * The Westwood Online Chat server
- *
- * @author Toni Spets
- */
-public class ChatServer extends TCPServer {
-
-    public class NumericReplies {
-        final static public int RPL_LOCALE              = 309;
-        final static public int RPL_LOCALESET           = 310;
-        final static public int RPL_LISTSTART           = 321;
-        final static public int RPL_LISTGAME            = 326;
-        final static public int RPL_LIST                = 327;
-        final static public int RPL_CODEPAGE            = 328;
-        final static public int RPL_CODEPAGESET         = 329;
-        final static public int RPL_ENDOFLIST           = 323;
-        final static public int RPL_TOPIC               = 332;
-        final static public int RPL_NAMREPLY            = 353;
-        final static public int RPL_SQUADINFO           = 358;
-        final static public int RPL_ENDOFNAMES          = 366;
-        final static public int RPL_MOTDSTART           = 375;
-        final static public int RPL_MOTD                = 372;
-        final static public int RPL_ENDOFMOTD           = 376;
-        final static public int RPL_PAGE                = 389;
-        final static public int RPL_TIME                = 391;
-        final static public int RPL_FINDUSEREX          = 398;
-        final static public int ERR_NOSUCHNICK          = 401;
-        final static public int ERR_NOSUCHCHANNEL       = 403;
-        final static public int ERR_NONICKNAMEGIVEN     = 431;
-        final static public int ERR_ERRORNEUSNICKNAME   = 432;
-        final static public int ERR_NICKNAMEINUSE       = 433;
-        final static public int ERR_SQUADIDNOEXIST      = 439;
-        final static public int ERR_USERNOTINCHANNEL    = 441;
-        final static public int ERR_NOTONCHANNEL        = 442;
-        final static public int ERR_NEEDMOREPARAMS      = 461;
-        final static public int ERR_ALREADYREGISTERED   = 462;
-        final static public int ERR_PASSWDMISMATCH      = 464;
-        final static public int ERR_CHANNELISFULL       = 471;
-        final static public int ERR_BANNEDFROMCHAN      = 474;
-        final static public int ERR_BADCHANNELKEY       = 475;
-        final static public int ERR_CHANOPRIVSNEEDED    = 482;
-    }
-
-    Pattern ircPattern;
-
-    HashMap<String, ChatChannel> channels;
-    HashMap<String, ChatClient> clients;
-
-    protected ChatServer(InetAddress address, int port, Selector selector) throws IOException {
-        super(address, port, selector);
-        ircPattern = Pattern.compile("^(:([^ ]+) )?([^ ]+) ?(.*)");
-
-        clients = new HashMap<String, ChatClient>();
-        channels = new HashMap<String, ChatChannel>();
-
-        // Red Alert lobbies
-        channels.put("#Lob_21_0", new ChatChannel("#Lob_21_0", null, "zotclot9", 21, 0, 0, false, 0, CHAN_LOBBY|CHAN_OFFICIAL|CHAN_PERMANENT));
-        channels.put("#Lob_21_1", new ChatChannel("#Lob_21_1", null, "progamer", 21, 0, 0, false, 0, CHAN_LOBBY|CHAN_OFFICIAL|CHAN_PERMANENT));
-        // TiberianSun lobbies
-        channels.put("#Lob_18_0", new ChatChannel("#Lob_18_0", null, "zotclot9", 18, 0, 0, false, 0, CHAN_LOBBY|CHAN_OFFICIAL|CHAN_PERMANENT));
-        // Official chat channel
-        channels.put("#Chat", new ChatChannel("#Chat", null, "", 0, 0, 0, false, 0, CHAN_LOBBY|CHAN_OFFICIAL|CHAN_PERMANENT));
-        
-        System.out.println("ChatServer listening on " + address + ":" + port);
-    }
-
-    /**
-     * Write channel user list to client
-     * 
-     * @param client    target client
-     * @param channel   source channel
-     */
-    void putChannelNames(ChatClient client, ChatChannel channel) {
-
-        ArrayList<ChatClient> clients = channel.getUsers();
-        for (Iterator<ChatClient> i = clients.iterator(); i.hasNext();) {
-            ChatClient c = i.next();
-            // FIXME: highly inefficient, concat up to 512 bytes
-            putReply(client, RPL_NAMREPLY, ((channel.getFlags() & CHAN_OFFICIAL) > 0 ? "* " : "= ") + channel.getName() + " :" + (channel.getOwner() == c ? "@" : "") + c.getNick() + ",0," + c.getLongIp());
-        }
-
-        putReply(client, RPL_ENDOFNAMES, channel.getName() + " :End of names");
-    }
-
-    /**
-     * Write a server reply to client without any params
-     * 
-     * @param client    target client
-     * @param code      RPL/ERR code
-     */
-    protected void putReply(ChatClient client, int code) {
-        client.putString(":" + WOL.hostname + " " + code + " " + client.getNick());
-    }
-
-    /**
-     * Write a server reply to client with params
-     * 
-     * @param client    target client
-     * @param code      RPL/ERR code
-     * @param params    pre-formatted params
-     */
-    protected void putReply(ChatClient client, int code, String params) {
-        client.putString(":" + WOL.hostname + " " + code + " " + client.getNick() + " " + params);
-    }
-
-    /**
-     * Write a command reply to client with params
-     * 
-     * @param client    target client
-     * @param command   command name
-     * @param params    pre-formatted params
-     */
-    protected void putReply(ChatClient client, String command, String params) {
-        client.putString(":" + client.getNick() + "!u@h " + command + " " + params);
-    }
-
-    /**
-     * Write a command reply from one client to another
-     * 
-     * @param from      source client
-     * @param to        target client
-     * @param command   command name
-     * @param params    pre-formatted params
-     */
-    protected void putMessage(ChatClient from, ChatClient to, String command, String params) {
-        to.putString(":" + from.getNick() + "!u@h " + command + " " + params);
-    }
-
-    /**
-     * Write a command reply from one client to channel including the sender
-     * 
-     * @param channel   target channel
-     * @param client    source client
-     * @param command   command name
-     * @param params    pre-formatted params
-     */
-    protected void putReplyChannel(ChatChannel channel, ChatClient client, String command, String params) {
-        putReplyChannel(channel, client, command, params, false);
-    }
-
-    /**
-     * Write a command reply from one client to channel
-     * 
-     * @param channel   target channel
-     * @param client    source client
-     * @param command   command name
-     * @param params    pre-formatted params
-     * @param skipFrom  skip source client
-     */
-    protected void putReplyChannel(ChatChannel channel, ChatClient client, String command, String params, boolean skipFrom) {
-        String message = ":" + client.getNick() + "!u@h " + command + " " + params;
-        ArrayList<ChatClient> clients = channel.getUsers();
-        for (Iterator<ChatClient> i = clients.iterator(); i.hasNext();) {
-            ChatClient to = i.next();
-            if (!skipFrom || to != client) {
-                to.putString(message);
-            }
-        }
-    }
-
-    /**
-     * Write a raw command to client
-     * 
-     * @param client    target client
-     * @param command   command name
-     * @param params    pre-formatted params
-     */
-    protected void putCommand(ChatClient client, String command, String params) {
-        client.putString(command + " " + params);
-    }
-
-    /**
-     * Called when client sends CVERS command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onCvers(ChatClient client, String[] params) { }
-
-    /**
-     * Called when client sends PASS command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onPass(ChatClient client, String[] params) {
-
-        if (params.length < 1) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        if (!params[0].equals("supersecret")) {
-            putReply(client, ERR_PASSWDMISMATCH, ":Password incorrect ("+params[0]+")");
-            client.disconnect();
-            return;
-        }
-
-        client.havePassword = true;
-    }
-
-    /**
-     * Called when client sends NICK command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onNick(ChatClient client, String[] params) {
-
-        if (params.length < 1) {
-            putReply(client, ERR_NEEDMOREPARAMS, "NICK :Not enough parameters");
-            return;
-        }
-
-        if (params[0].length() == 0) {
-            putReply(client, ERR_NONICKNAMEGIVEN, ":No nickname given");
-            return;
-        }
-
-        if (params[0].length() > 9) {
-            putReply(client, ERR_ERRORNEUSNICKNAME, params[0] + " :Errorneus nickname");
-            return;
-        }
-
-        if (clients.containsKey(params[0])) {
-            putReply(client, ERR_NICKNAMEINUSE, params[0] + " :Nickname is already in use");
-            return;
-        }
-
-        client.setNick(params[0]);
-    }
-
-    /**
-     * Called when client sends APGAR command (login password)
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onApgar(ChatClient client, String[] params) { }
-
-    /**
-     * Called when client sends SERIAL command (cd-key)
-     * <p>
-     * Note: We should probably never implement this as we can't validate them
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onSerial(ChatClient client, String[] params) { }
-
-    /**
-     * Called when client sends USER command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onUser(ChatClient client, String[] params) {
-
-        if (params.length < 4) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        if (client.registered) {
-            putReply(client, ERR_ALREADYREGISTERED, ":You have already registered");
-            return;
-        }
-
-        if (!client.havePassword) {
-            putReply(client, ERR_PASSWDMISMATCH, ":Password incorrect");
-            client.disconnect();
-            return;
-        }
-
-        if (client.getNick() != null) {
-            client.registered = true;
-            clients.put(client.getNick(), client);
-
-            putReply(client, RPL_MOTDSTART, ":- Welcome to Westwood Online!");
-            putReply(client, RPL_ENDOFMOTD);
-        }
-    }
-
-    /**
-     * Called when client sends VERCHK command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onVerchk(ChatClient client, String[] params) { }
-
-    /**
-     * Called when client sends SETOPT command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onSetOpt(ChatClient client, String[] params) {
-        if (params.length < 1) {
-            putReply(client, ERR_NEEDMOREPARAMS, "SETOPT :Not enough parameters");
-            return;
-        }
-
-        String[] options = params[0].split(",");
-        if (options.length == 2) {
-            client.setOptions(Integer.valueOf(options[0]), Integer.valueOf(options[1]));
-        }
-    }
-
-    /**
-     * Called when client sends GETCODEPAGE command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onGetCodepage(ChatClient client, String[] params) {
-        String temp = "";
-
-        if (params.length < 1) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-        
-        for (int i = 0; i < params.length; i++) {
-            if (clients.containsKey(params[i])) {
-                String encoding = clients.get(params[i]).getEncoding();
-                if (encoding.startsWith("Cp"))
-                    temp = temp + params[i] + "`" + encoding.substring(2);
-                else
-                    temp = temp + params[i] + "`1252";
-            } else {
-                // FIXME: lie if no codepage set
-                temp = temp + params[i] + "`1252";
-            }
-            if (i < params.length-1)
-                temp = temp + "`";
-        }
-        putReply(client, RPL_CODEPAGE, temp);
-    }
-
-    /**
-     * Called when client send SETCODEPAGE command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onSetCodepage(ChatClient client, String[] params) {
-        try {
-            client.setEncoding("Cp" + params[0]);
-            putReply(client, RPL_CODEPAGESET, params[0]);
-        } catch (UnsupportedEncodingException e) {
-             //FIXME: unsupported codepage error reply?
-        }
-    }
-
-    protected void onGetLocale(ChatClient client, String[] params) {
-        String temp = "";
-
-        if (params.length < 1) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-        
-        for (int i = 0; i < params.length; i++) {
-            // FIXME: lie if no codepage set
-            int locale = 0;
-            if (clients.containsKey(params[i]))
-                locale = clients.get(params[i]).getLocale();
-
-            temp = temp + params[i] + "`" + locale;
-
-            if (i < params.length-1)
-                temp = temp + "`";
-        }
-        putReply(client, RPL_LOCALE, temp);
-    }
-
-    /**
-     * Called when client send SETLOCALE command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onSetLocale(ChatClient client, String[] params) {
-        try {
-            client.setLocale(Integer.valueOf(params[0]));
-            putReply(client, RPL_LOCALESET, params[0]);
-        } catch (Exception e) {
-             //FIXME: unknown locale error reply?
-            System.out.println("Unexpected exception when SetLocale");
-        }
-    }
-
-    /**
-     * Called when client sends LIST command (channel/lobby list)
-     * @param client
-     * @param params 
-     */
-    protected void onList(ChatClient client, String[] params) {
-        if (params.length < 2) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        int listType = Integer.valueOf(params[0]);
-        int gameType = Integer.valueOf(params[1]);
-
-        putReply(client, RPL_LISTSTART);
-
-        if (listType == 0) {
-            for (Iterator<ChatChannel> i = channels.values().iterator(); i.hasNext();) {
-                ChatChannel channel = i.next();
-                if ((channel.getFlags() & CHAN_LOBBY|CHAN_OFFICIAL|CHAN_PERMANENT) > 0 && (channel.getType() == gameType || channel.getType() == 0))  {
-                    putReply(client, RPL_LIST, channel.getName() + " " + channel.getUsers().size() + " " + (((channel.getFlags() & CHAN_OFFICIAL) > 0) ? 1 : 0) + " " + channel.getFlags());
-                }
-            }
-        }
-        else if (listType == gameType) {
-            for (Iterator<ChatChannel> i = channels.values().iterator(); i.hasNext();) {
-                ChatChannel channel = i.next();
-                if ((channel.getFlags() & CHAN_LOBBY) > 0 && (channel.getFlags() & CHAN_OFFICIAL) == 0 && channel.getType() == gameType)  {
-                    putReply(client, RPL_LISTGAME, String.format(
-                        "%s %d %d %d %d %d %d %d::%s",
-                        channel.getName(),
-                        channel.getUsers().size(),
-                        channel.getMaxUsers(),
-                        channel.getType(),
-                        channel.getTournament() ? 1 : 0,
-                        channel.getReserved(),
-                        channel.getLongIp(),
-                        channel.getFlags(),
-                        channel.getTopic()
-                    ));
-                }
-            }
-        }
-
-        putReply(client, RPL_ENDOFLIST);
-    }
-
-    /**
-     * Called when client sends JOINGAME command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onJoinGame(ChatClient client, String[] params) {
-
-        // normal join
-        if (params.length == 3 && params[0].startsWith("#Lob_")) {
-            String[] newParams = new String[2];
-            newParams[0] = params[0];
-            newParams[1] = params[2];
-            onJoin(client, newParams);
-            return;
-        }
-
-        // game join
-        if (params.length == 2 || params.length == 3) {
-            if (channels.containsKey(params[0])) {
-                ChatChannel game = channels.get(params[0]);
-                try {
-                    game.join(client, params.length == 3 ? params[2] : "");
-                    putReplyChannel(game, client, "JOINGAME", game.getMinUsers() + " " + game.getMaxUsers() + " " + game.getType() + " " + (game.getTournament() ? 1 : 0) + " 0 " + client.getLongIp() + " 0 " + ":" + game.getName());
-                    putReply(client, RPL_TOPIC, ":" + game.getTopic());
-                    putChannelNames(client, game);
-                    // handle buggy RA
-                    client.sentGameopt(false);
-                    client.discardQueue();
-                } catch(UserExistsException e) {
-                    putReply(client, "JOINGAME", game.getMinUsers() + " " + game.getMaxUsers() + " " + game.getType() + " " + (game.getTournament() ? 1 : 0) + " 0 " + client.getLongIp() + " 0 " + ":" + game.getName());
-                } catch(UserBannedException e) {
-                    putReply(client, ERR_BANNEDFROMCHAN, game.getName() + " :Cannot join channel (banned)");
-                } catch(GameFullException e) {
-                    putReply(client, ERR_CHANNELISFULL, game.getName() + " :Cannot join channel (game is full)");
-                } catch(InvalidKeyException e) {
-                    putReply(client, ERR_BADCHANNELKEY, game.getName() + " :Cannot join channel (invalid key)");
-                }
-            } else {
-                putReply(client, ERR_NOSUCHCHANNEL, params[0] + " :No such channel");
-            }
-        }
-
-        // game create
-        if (params.length < 8) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        String name = params[0];
-        String minUsers = params[1];
-        String maxUsers = params[2];
-        String gameType = params[3];
-        String tournament = params[6];
-        String reserved = params[7];
-        String key = params.length > 8 ? params[8] : "";
-
-        try {
-            ChatChannel game = new ChatChannel(name, client, key, Integer.valueOf(gameType), Integer.valueOf(minUsers), Integer.valueOf(maxUsers), Integer.valueOf(tournament) > 0, Long.valueOf(reserved), CHAN_LOBBY);
-            game.join(client, key);
-            channels.put(name, game);
-            putReply(client, RPL_TOPIC, ":");
-            putReply(client, "JOINGAME", minUsers + " " + maxUsers + " " + gameType + " " + tournament + " 0 " + client.getLongIp() + " 0 " + ":" + game.getName());
-            putChannelNames(client, game);
-            client.sentGameopt(true);
-        } catch (Exception e) {
-            System.out.println("Unexpected exception when joining a fresly created channel");
-        }
-    }
-
-    /**
-     * Called when client sends TOPIC command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onTopic(ChatClient client, String params[]) {
-        if (params.length < 2) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        if (channels.containsKey(params[0])) {
-            ChatChannel channel = channels.get(params[0]);
-            try {
-                channel.setTopic(client, params[1]);
-            } catch (UserNotOperatorException e) {
-                putReply(client, ERR_CHANOPRIVSNEEDED, params[0] + " :You're not channel operator");
-            }
-        } else {
-            putReply(client, ERR_NOSUCHCHANNEL, params[0] + " :No such channel");
-        }
-    }
-
-    /**
-     * Called when client sends GAMEOPT command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onGameopt(ChatClient client, String params[]) {
-        if (params.length < 2) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        if (params[0].startsWith("#")) {
-            if (channels.containsKey(params[0])) {
-                ChatChannel channel = channels.get(params[0]);
-                if (channel.getUsers().contains(client)) {
-                    for (Iterator<ChatClient> i = channel.getUsers().iterator(); i.hasNext();) {
-                        ChatClient current = i.next();
-                        // handle buggy RA
-                        if (!current.sentGameopt()) {
-                            current.putQueue(":" + client.getNick() + "!u@h GAMEOPT " + channel.getName() + " :" + params[1]);
-                        } else {
-                            putMessage(client, current, "GAMEOPT", channel.getName() + " :" + params[1]);
-                        }
-                    }
-                } else {
-                    putReply(client, ERR_NOTONCHANNEL, params[0] + " :You're not on that channel");
-                }
-            } else {
-                putReply(client, ERR_NOSUCHCHANNEL, params[0] + " :No such channel");
-            }
-        } else {
-            if (clients.containsKey(params[0])) {
-                ChatClient current = clients.get(params[0]);
-                // handle buggy RA
-                if (!current.sentGameopt()) {
-                    current.putQueue(":" + client.getNick() + "!u@h GAMEOPT " + current.getNick() + " :" + params[1]);
-                } else {
-                    putMessage(client, current, "GAMEOPT", current.getNick() + " :" + params[1]);
-                }
-                client.sentGameopt(true);
-                client.flushQueue();
-            } else {
-                putReply(client, ERR_NOSUCHNICK, params[0] + " :No such nick/channel");
-            }
-        }
-    }
-
-    /**
-     * Called when client sends JOIN command (to join a lobby or channel)
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onJoin(ChatClient client, String[] params) {
-        ChatChannel channel;
-        boolean newchannel = false;
-
-        if (params.length < 1) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        if (channels.containsKey(params[0])) {
-            channel = channels.get(params[0]);
-        } else {
-            if (params[0].length() > 18) {
-                //ERROR: Channel length exceeded
-                putReply(client, ERR_NOSUCHCHANNEL, params[0] + " :No such channel");
-                return;
-            }
-            //FIXME: Check for unsupported chars here
-            channel = new ChatChannel(params[0], client, params.length > 1 ? params[1] : "", 0, 0, 0, false, 0, CHAN_LOBBY);
-            newchannel = true;
-        }
-
-        try {
-            channel.join(client, params.length > 1 ? params[1] : "");
-            putReplyChannel(channel, client, "JOIN", ":0," + client.getLongIp() + " " + channel.getName());
-            putChannelNames(client, channel);
-            if (newchannel)
-                channels.put(params[0], channel);
-        } catch(UserExistsException e) {
-            putReply(client, "JOIN", ":0," + client.getLongIp() + " " + channel.getName());
-        } catch(UserBannedException e) {
-            putReply(client, ERR_BANNEDFROMCHAN, channel.getName() + " :Cannot join channel (banned)");
-        } catch(GameFullException e) {
-            putReply(client, ERR_CHANNELISFULL, channel.getName() + " :Cannot join channel (channel is full)");
-        } catch(InvalidKeyException e) {
-            putReply(client, ERR_BADCHANNELKEY, channel.getName() + " :Cannot join channel (invalid key)");
-        }           
-    }
-
-    /**
-     * Called when client sends PRIVMSG command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onPrivmsg(ChatClient client, String[] params) {
-
-        if (params.length < 2) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        if (params[0].startsWith("#")) {
-            if (channels.containsKey(params[0])) {
-                ChatChannel channel = channels.get(params[0]);
-                if (channel.getUsers().contains(client)) {
-                    putReplyChannel(channel, client, "PRIVMSG", params[0] + " :" + params[1], true);
-                } else {
-                    putReply(client, ERR_NOTONCHANNEL, params[0] + " :You're not on that channel");
-                }
-            } else {
-                putReply(client, ERR_NOSUCHCHANNEL, params[0] + " :No such channel");
-            }
-        } else {
-            if (clients.containsKey(params[0])) {
-                putMessage(client, clients.get(params[0]), "PRIVMSG", params[0] + " :" + params[1]);
-            } else {
-                putReply(client, ERR_NOSUCHNICK, params[0] + " :No such nick/channel");
-            }
-        }
-    }
-
-    /**
-     * Called when client sends PAGE command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onPage(ChatClient client, String[] params) {
-
-        if (params.length < 2) {
-            putReply(client, ERR_NEEDMOREPARAMS, "PAGE :Not enough parameters");
-            return;
-        }
-
-        if (!clients.containsKey(params[0])) {
-            putReply(client, RPL_PAGE, "1 :No such nick");
-            return;
-        }
-
-        ChatClient target = clients.get(params[0]);
-
-        if (!target.canPage()) {
-            putReply(client, RPL_PAGE, "1 :No such nick");
-            return;
-        }
-
-        putMessage(client, target, "PAGE", params[0] + " :" + params[1]);
-        putReply(client, RPL_PAGE, "0 :Ok");
-    }
-
-    /**
-     * Called when client sends FINDUSEREX command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onFindUserEx(ChatClient client, String[] params) {
-
-        if (params.length < 2) {
-            putReply(client, ERR_NEEDMOREPARAMS, "FINDUSEREX :Not enough parameters");
-            return;
-        }
-
-        if (!clients.containsKey(params[0])) {
-            putReply(client, RPL_FINDUSEREX, "1 :No such nick (not connected)");
-            return;
-        }
-
-        ChatClient target = clients.get(params[0]);
-
-        if (!target.canFind()) {
-            putReply(client, RPL_FINDUSEREX, "1 :No such nick (not connected)");
-            return;
-        }
-
-        for (Iterator<ChatChannel> i = channels.values().iterator(); i.hasNext();) {
-            ChatChannel channel = i.next();
-            if (channel.getUsers().contains(target)) {
-                putReply(client, RPL_FINDUSEREX, "0 :" + channel.getName() + ",0");
-                return;
-            }
-        }
-
-        putReply(client, RPL_FINDUSEREX, "1 :No such nick (not in any channel)");
-    }
-
-    /**
-     * Called when client sends USERIP command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onUserIp(ChatClient client, String[] params) {
-        if (params.length < 1) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        // not needed for RA
-    }
-
-    /**
-     * Called when client sends STARTG command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onStartG(ChatClient client, String[] params) {
-
-        if (params.length < 2) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        String message = "";
-
-        if (channels.containsKey(params[0])) {
-            ChatChannel channel = channels.get(params[0]);
-            if (channel.getOwner() == client) {
-                for (String player : params[1].split(",")) {
-                    try {
-                        ChatClient user = channel.getUser(player);
-                        message += user.getNick() + " " + user.getIp() + " ";
-                    } catch(UserNotOnChannelException e) {
-                        // ignore?
-                    }
-                }
-                message+= ":1 " + (int)(System.currentTimeMillis() / 1000);
-
-                putReplyChannel(channel, client, "STARTG", client.getNick() + " :" + message);
-            } else {
-                putReply(client, ERR_CHANOPRIVSNEEDED, params[0] + " :You're not channel operator");
-            }
-        } else {
-            putReply(client, ERR_NOSUCHCHANNEL, params[0] + " :No such channel");
-        }
-    }
-
-    /**
-     * Called when client sends KICK command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onKick(ChatClient client, String[] params) {
-        if (params.length < 2) {
-            putReply(client, ERR_NEEDMOREPARAMS, "KICK :Not enough parameters");
-            return;
-        }
-
-        if (channels.containsKey(params[0])) {
-            ChatChannel channel = channels.get(params[0]);
-            ChatClient target = clients.get(params[1]);
-
-            try {
-                channel.kick(client, target);
-                putReplyChannel(channel, client, "KICK", channel.getName() + " " + target.getNick() + " :Kicked");
-                putMessage(client, target, "KICK", channel.getName() + " " + target.getNick() + " :Kicked");
-            } catch (UserNotOperatorException e) {
-                putReply(client, ERR_CHANOPRIVSNEEDED, params[0] + " :You're not channel operator");
-            } catch (UserNotOnChannelException e) {
-                putReply(client, ERR_NOSUCHNICK, params[1] + " :No such nick/channel");
-            }
-        } else {
-            putReply(client, ERR_NOSUCHCHANNEL, params[0] + " :No such channel");
-        }
-    }
-
-    /**
-     * Called when client sends MODE command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onMode(ChatClient client, String[] params) {
-        // we're not supporting any standard IRC modes, except +b, so 3 params for now
-        if (params.length < 3) {
-            putReply(client, ERR_NEEDMOREPARAMS, "MODE :Not enough parameters");
-            return;
-        }
-
-        if (channels.containsKey(params[0])) {
-            ChatChannel channel = channels.get(params[0]);
-
-            // just a single ban, ok?
-            if (params[1].equals("+b")) {
-                ChatClient target = clients.get(params[2]);
-
-                try {
-                    channel.ban(client, target);
-                    putReplyChannel(channel, client, "MODE", channel.getName() + " +b " + target.getNick());
-                } catch (UserNotOperatorException e) {
-                    putReply(client, ERR_CHANOPRIVSNEEDED, params[0] + " :You're not channel operator");
-                } catch (UserNotOnChannelException e) {
-                    putReply(client, ERR_NOSUCHNICK, params[1] + " :No such nick/channel");
-                }
-            }
-        } else {
-            putReply(client, ERR_NOSUCHCHANNEL, params[0] + " :No such channel");
-        }
-    }
-    
-    /**
-     * Called when client sends NAMES command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-     protected void onNames(ChatClient client, String[] params) {
-
-        if (params.length < 1) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        if (channels.containsKey(params[0])) {
-            ChatChannel channel = channels.get(params[0]);
-            //Fixme: Should we send list only when client is in channel?
-            putChannelNames(client, channel);
-        } else {
-            putReply(client, ERR_NOSUCHCHANNEL, params[0] + " :No such channel");
-        }
-    }
-
-    /**
-     * Called when client sends SQUADINFO command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-     protected void onSquadInfo(ChatClient client, String[] params) {
-
-        if (params.length < 1) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        //FIXME: In params[0] is ID of squad, if is 0 it wants info for client
-        putReply(client, ERR_SQUADIDNOEXIST, ":ID does not exist");
-    }
-
-    /**
-     * Called when client sends TIME command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-     protected void onTime(ChatClient client, String[] params) {
-
-        putReply(client, RPL_TIME, WOL.hostname + " :" + (int)(System.currentTimeMillis() / 1000));
-    }
-
-    /**
-     * Called when client sends PART command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onPart(ChatClient client, String[] params) {
-
-        if (params.length < 1) {
-            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
-            return;
-        }
-
-        if (channels.containsKey(params[0])) {
-            ChatChannel channel = channels.get(params[0]);
-            try {
-                channel.part(client);
-                putReply(client, "PART", channel.getName());
-                putReplyChannel(channel, client, "PART", channel.getName());
-                // remove empty channel from list
-                if ((channel.getFlags() & CHAN_PERMANENT) == 0 && channel.getUsers().isEmpty()) {
-                    channels.remove(channel.getName());
-                }
-            } catch(UserNotOnChannelException e) {
-                putReply(client, ERR_NOTONCHANNEL, params[0] + " :You aren't on that channel");
-            }
-        } else {
-            putReply(client, ERR_NOSUCHCHANNEL, params[0] + " :No such channel");
-        }
-    }
-
-    /**
-     * Called when client sends QUIT command
-     * 
-     * @param client    source client
-     * @param params    params
-     */
-    protected void onQuit(ChatClient client, String[] params) {
-        putCommand(client, "ERROR", ":Quit");
-        client.disconnect();
-    }
-
-    /**
-     * Called when the client is considered idle and should be pinged
-     * 
-     * @param client    target client
-     */
-    public void clientIdle(ChatClient client) {
-        putCommand(client, "PING", ":" + WOL.hostname);
-    }
-
-    /**
-     * Called when the client is considered timed out and should be disconnected
-     * 
-     * @param client    target client
-     */
-    public void clientTimeout(ChatClient client) {
-        putCommand(client, "ERROR", ":Ping timeout");
-        // desparately try to send the last command out
-        try {
-            client.canWrite();
-        } catch(Exception e) {}
-        client.disconnect(true);
-    }
-
-    /**
-     * Called when a client disconnect is finalized
-     * 
-     * @param client    source client
-     */
-    public void clientDisconnect(ChatClient client) {
-        if (clients.containsValue(client)) {
-            for (Iterator<ChatChannel> i = channels.values().iterator(); i.hasNext();) {
-                ChatChannel channel = i.next();
-                ArrayList<ChatClient> users = channel.getUsers();
-
-                if (users.contains(client)) {
-                    putReplyChannel(channel, client, "QUIT", channel.getName() + " :Disconnected", true);
-                    users.remove(client);
-                }
-
-                if ((channel.getFlags() & CHAN_PERMANENT) == 0 && users.isEmpty()) {
-                    i.remove();
-                }
-            }
-            clients.remove(client.getNick());
-        }
-    }
-
-    protected void onAccept(SocketChannel clientChannel) {
-        ChatClient client = new ChatClient(clientChannel, selector, this);
-        client.onConnect();
-    }
-
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+import wol.ChatChannel.GameFullException;
+import wol.ChatChannel.InvalidKeyException;
+import wol.ChatChannel.UserBannedException;
+import wol.ChatChannel.UserExistsException;
+import wol.ChatChannel.UserNotOperatorException;
+import static wol.ChatServer.NumericReplies.*;
+import static wol.ChatChannel.ChannelFlags.*;
+import wol.ChatChannel.UserNotOnChannelException;
+
+/**
+ * The Westwood Online Chat server
+ * <p>
+ * Clients live in different reactors or threads, all access to the chat
+ * state is serialized by the ChatServer lock.
+ *
+ * @author Toni Spets
+ */
+public class ChatServer extends TCPServer {
+
+    public static final int DEFAULT_PORT = 5000;
+
+    public class NumericReplies {
+        final static public int RPL_LOCALE              = 309;
+        final static public int RPL_LOCALESET           = 310;
+        final static public int RPL_LISTSTART           = 321;
+        final static public int RPL_LISTGAME            = 326;
+        final static public int RPL_LIST                = 327;
+        final static public int RPL_CODEPAGE            = 328;
+        final static public int RPL_CODEPAGESET         = 329;
+        final static public int RPL_ENDOFLIST           = 323;
+        final static public int RPL_TOPIC               = 332;
+        final static public int RPL_NAMREPLY            = 353;
+        final static public int RPL_SQUADINFO           = 358;
+        final static public int RPL_ENDOFNAMES          = 366;
+        final static public int RPL_MOTDSTART           = 375;
+        final static public int RPL_MOTD                = 372;
+        final static public int RPL_ENDOFMOTD           = 376;
+        final static public int RPL_PAGE                = 389;
+        final static public int RPL_TIME                = 391;
+        final static public int RPL_FINDUSEREX          = 398;
+        final static public int ERR_NOSUCHNICK          = 401;
+        final static public int ERR_NOSUCHCHANNEL       = 403;
+        final static public int ERR_INPUTTOOLONG        = 417;
+        final static public int ERR_NONICKNAMEGIVEN     = 431;
+        final static public int ERR_ERRORNEUSNICKNAME   = 432;
+        final static public int ERR_NICKNAMEINUSE       = 433;
+        final static public int ERR_SQUADIDNOEXIST      = 439;
+        final static public int ERR_USERNOTINCHANNEL    = 441;
+        final static public int ERR_NOTONCHANNEL        = 442;
+        final static public int ERR_NOTREGISTERED       = 451;
+        final static public int ERR_NEEDMOREPARAMS      = 461;
+        final static public int ERR_ALREADYREGISTERED   = 462;
+        final static public int ERR_PASSWDMISMATCH      = 464;
+        final static public int ERR_CHANNELISFULL       = 471;
+        final static public int ERR_BANNEDFROMCHAN      = 474;
+        final static public int ERR_BADCHANNELKEY       = 475;
+        final static public int ERR_CHANOPRIVSNEEDED    = 482;
+    }
+
+    /**
+     * Guards all chat state, clients of every reactor or thread take it
+     * before touching channels or other clients
+     */
+    final ReentrantLock lock = new ReentrantLock();
+
+    HashMap<String, ChatChannel> channels;
+    HashMap<String, ChatClient> clients;
+
+    /**
+     * Game types whose lobbies this process hosts, empty for all
+     */
+    HashSet<Integer> gameTypes;
+
+    /**
+     * Commands clients can send
+     */
+    CommandTable commands;
+
+    /**
+     * Handler latency of unknown commands
+     */
+    Metrics.Latency otherLatency;
+
+    protected ChatServer(InetAddress address, int port, ReactorGroup reactors) throws IOException {
+        super(address, port, reactors);
+
+        clients = new HashMap<String, ChatClient>();
+        channels = new HashMap<String, ChatChannel>();
+        gameTypes = new HashSet<Integer>();
+
+        // a chat process per game type, like ChatServer.gameTypes=21
+        for (String type : WOL.getString("ChatServer.gameTypes", "").split(",")) {
+            if (type.trim().length() == 0)
+                continue;
+
+            try {
+                gameTypes.add(Integer.valueOf(type.trim()));
+            } catch (NumberFormatException e) {
+                Log.log(Log.CORE, Log.WARN, "ChatServer: Invalid game type ", type);
+            }
+        }
+
+        // Red Alert lobbies
+        if (hostsGameType(21)) {
+            channels.put("#Lob_21_0", new ChatChannel("#Lob_21_0", null, "zotclot9", 21, 0, 0, false, 0, CHAN_LOBBY|CHAN_OFFICIAL|CHAN_PERMANENT));
+            channels.put("#Lob_21_1", new ChatChannel("#Lob_21_1", null, "progamer", 21, 0, 0, false, 0, CHAN_LOBBY|CHAN_OFFICIAL|CHAN_PERMANENT));
+        }
+        // TiberianSun lobbies
+        if (hostsGameType(18)) {
+            channels.put("#Lob_18_0", new ChatChannel("#Lob_18_0", null, "zotclot9", 18, 0, 0, false, 0, CHAN_LOBBY|CHAN_OFFICIAL|CHAN_PERMANENT));
+        }
+        // Official chat channel
+        channels.put("#Chat", new ChatChannel("#Chat", null, "", 0, 0, 0, false, 0, CHAN_LOBBY|CHAN_OFFICIAL|CHAN_PERMANENT));
+
+        registerCommands();
+        registerMetrics();
+
+        Log.log(Log.NET, Log.INFO, "ChatServer listening on " + address + ":" + port);
+    }
+
+    /**
+     * Register the handlers of all known commands, everything but the
+     * login sequence needs a registered client
+     */
+    private void registerCommands() {
+        commands = new CommandTable();
+
+        commands.register("CVERS", 0, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onCvers(client, params);
+            }
+        });
+        commands.register("PASS", 1, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onPass(client, params);
+            }
+        });
+        commands.register("NICK", 1, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onNick(client, params);
+            }
+        });
+        commands.register("APGAR", 0, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onApgar(client, params);
+            }
+        });
+        commands.register("SERIAL", 0, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onSerial(client, params);
+            }
+        });
+        commands.register("USER", 4, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onUser(client, params);
+            }
+        });
+        commands.register("VERCHK", 0, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onVerchk(client, params);
+            }
+        });
+        commands.register("SETOPT", 1, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onSetOpt(client, params);
+            }
+        });
+        commands.register("SETCODEPAGE", 1, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onSetCodepage(client, params);
+            }
+        });
+        commands.register("GETCODEPAGE", 1, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onGetCodepage(client, params);
+            }
+        });
+        commands.register("SETLOCALE", 1, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onSetLocale(client, params);
+            }
+        });
+        commands.register("GETLOCALE", 1, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onGetLocale(client, params);
+            }
+        });
+        commands.register("TIME", 0, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onTime(client, params);
+            }
+        });
+        commands.register("QUIT", 0, false, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onQuit(client, params);
+            }
+        });
+
+        // PONG only keeps the connection alive
+        commands.register("PONG", 0, false, null);
+
+        commands.register("LIST", 2, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onList(client, params);
+            }
+        });
+        commands.register("JOIN", 1, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onJoin(client, params);
+            }
+        });
+        commands.register("JOINGAME", 2, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onJoinGame(client, params);
+            }
+        });
+        commands.register("TOPIC", 2, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onTopic(client, params);
+            }
+        });
+        commands.register("GAMEOPT", 2, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onGameopt(client, params);
+            }
+        });
+        commands.register("KICK", 2, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onKick(client, params);
+            }
+        });
+        commands.register("MODE", 3, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onMode(client, params);
+            }
+        });
+        commands.register("PRIVMSG", 2, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onPrivmsg(client, params);
+            }
+        });
+        commands.register("PAGE", 2, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onPage(client, params);
+            }
+        });
+        commands.register("FINDUSEREX", 2, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onFindUserEx(client, params);
+            }
+        });
+        commands.register("USERIP", 1, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onUserIp(client, params);
+            }
+        });
+        commands.register("STARTG", 2, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onStartG(client, params);
+            }
+        });
+        commands.register("NAMES", 1, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onNames(client, params);
+            }
+        });
+        commands.register("SQUADINFO", 1, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onSquadInfo(client, params);
+            }
+        });
+        commands.register("PART", 1, true, new CommandTable.Handler() {
+            public void handle(ChatClient client, String[] params) {
+                onPart(client, params);
+            }
+        });
+    }
+
+    /**
+     * Register gauges of the chat state
+     */
+    private void registerMetrics() {
+        Metrics metrics = Metrics.getDefault();
+
+        otherLatency = metrics.latency("wol_chat_command_seconds", "command=\"other\"", "Chat command handler latency");
+
+        metrics.gauge("wol_chat_connections", "", "Open chat connections", new Metrics.Gauge() {
+            public long get() {
+                return limiter.getTotal();
+            }
+        });
+
+        metrics.gauge("wol_chat_clients", "", "Registered chat clients", new Metrics.Gauge() {
+            public long get() {
+                lock.lock();
+                try {
+                    return clients.size();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+
+        metrics.gauge("wol_chat_channels", "", "Chat channels including games", new Metrics.Gauge() {
+            public long get() {
+                lock.lock();
+                try {
+                    return channels.size();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+
+        metrics.register("wol_chat_games", "gauge", "", "Open games per game type", new Metrics.Metric() {
+            void write(StringBuilder out, String name) {
+                HashMap<Integer, Integer> games = new HashMap<Integer, Integer>();
+
+                lock.lock();
+                try {
+                    for (Iterator<ChatChannel> i = channels.values().iterator(); i.hasNext();) {
+                        ChatChannel channel = i.next();
+                        if ((channel.getFlags() & CHAN_OFFICIAL) == 0) {
+                            Integer count = games.get(channel.getType());
+                            games.put(channel.getType(), count == null ? 1 : count + 1);
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                for (Iterator<Integer> i = games.keySet().iterator(); i.hasNext();) {
+                    Integer type = i.next();
+                    Metrics.sample(out, name, "gametype=\"" + type + "\"", null, games.get(type));
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the command table, new commands are registered here
+     *
+     * @return
+     */
+    public CommandTable getCommands() {
+        return commands;
+    }
+
+    /**
+     * Are lobbies of the game type hosted by this process?
+     * 
+     * @param type  game type
+     * @return 
+     */
+    boolean hostsGameType(int type) {
+        return gameTypes.isEmpty() || gameTypes.contains(type);
+    }
+
+    /**
+     * Write channel user list to client
+     * 
+     * @param client    target client
+     * @param channel   source channel
+     */
+    void putChannelNames(ChatClient client, ChatChannel channel) {
+
+        ChatClient[] clients = channel.getUsers().snapshot();
+        char type = (channel.getFlags() & CHAN_OFFICIAL) > 0 ? '*' : '=';
+
+        for (int i = 0; i < clients.length; i++) {
+            ChatClient c = clients[i];
+            // FIXME: one line per user, could concat up to 512 bytes
+            ReplyWriter w = ReplyWriter.to(client).numeric(RPL_NAMREPLY).append(' ').append(type).append(' ').append(channel.getName()).append(" :");
+            if (channel.getOwner() == c)
+                w.append('@');
+
+            byte[] nick = c.getNickBytes();
+            if (nick != null)
+                w.append(nick);
+            else
+                w.append(c.getNick());
+
+            w.append(",0,").append(c.getLongIp()).send();
+        }
+
+        putReply(client, RPL_ENDOFNAMES, channel.getName(), "End of names");
+    }
+
+    /**
+     * Write a server reply to client without any params
+     * 
+     * @param client    target client
+     * @param code      RPL/ERR code
+     */
+    protected void putReply(ChatClient client, int code) {
+        ReplyWriter.to(client).numeric(code).send();
+    }
+
+    /**
+     * Write a server reply to client with params
+     * 
+     * @param client    target client
+     * @param code      RPL/ERR code
+     * @param params    pre-formatted params
+     */
+    protected void putReply(ChatClient client, int code, String params) {
+        ReplyWriter.to(client).numeric(code).append(' ').append(params).send();
+    }
+
+    /**
+     * Write a server reply to client about a target, "target :text"
+     *
+     * @param client    target client
+     * @param code      RPL/ERR code
+     * @param target    nick, channel or command the reply is about
+     * @param text      trailing text
+     */
+    protected void putReply(ChatClient client, int code, String target, String text) {
+        ReplyWriter.to(client).numeric(code).append(' ').append(target).append(" :").append(text).send();
+    }
+
+    /**
+     * Write a command reply to client with params
+     * 
+     * @param client    target client
+     * @param command   command name
+     * @param params    pre-formatted params
+     */
+    protected void putReply(ChatClient client, String command, String params) {
+        ReplyWriter.to(client).from(client, command).append(' ').append(params).send();
+    }
+
+    /**
+     * Write a command reply from one client to another
+     * 
+     * @param from      source client
+     * @param to        target client
+     * @param command   command name
+     * @param params    pre-formatted params
+     */
+    protected void putMessage(ChatClient from, ChatClient to, String command, String params) {
+        ReplyWriter.to(to).from(from, command).append(' ').append(params).send();
+    }
+
+    /**
+     * Write a command reply from one client to channel including the sender
+     * 
+     * @param channel   target channel
+     * @param client    source client
+     * @param command   command name
+     * @param params    pre-formatted params
+     */
+    protected void putReplyChannel(ChatChannel channel, ChatClient client, String command, String params) {
+        putReplyChannel(channel, client, command, params, false);
+    }
+
+    /**
+     * Write a command reply from one client to channel
+     * 
+     * @param channel   target channel
+     * @param client    source client
+     * @param command   command name
+     * @param params    pre-formatted params
+     * @param skipFrom  skip source client
+     */
+    protected void putReplyChannel(ChatChannel channel, ChatClient client, String command, String params, boolean skipFrom) {
+        String message = ":" + client.getNick() + "!u@h " + command + " " + params;
+        ChatClient[] clients = channel.getUsers().snapshot();
+
+        // encoded once per codepage in use, members queue a reference
+        Charset[] charsets = new Charset[2];
+        SharedBuffer[] lines = new SharedBuffer[2];
+        int encodings = 0;
+
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                ChatClient to = clients[i];
+                if (skipFrom && to == client)
+                    continue;
+
+                int e = 0;
+                while (e < encodings && !charsets[e].equals(to.charset)) {
+                    e++;
+                }
+
+                if (e == encodings) {
+                    if (e == charsets.length) {
+                        charsets = Arrays.copyOf(charsets, e * 2);
+                        lines = Arrays.copyOf(lines, e * 2);
+                    }
+
+                    charsets[e] = to.charset;
+                    lines[e] = SharedBuffer.encode(message, to.newline, to.charset);
+                    encodings++;
+                }
+
+                to.putString(message, lines[e]);
+            }
+        } finally {
+            for (int e = 0; e < encodings; e++) {
+                lines[e].release();
+            }
+        }
+    }
+
+    /**
+     * Write a raw command to client
+     * 
+     * @param client    target client
+     * @param command   command name
+     * @param params    pre-formatted params
+     */
+    protected void putCommand(ChatClient client, String command, String params) {
+        ReplyWriter.to(client).append(command).append(' ').append(params).send();
+    }
+
+    /**
+     * Called when client sends CVERS command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onCvers(ChatClient client, String[] params) { }
+
+    /**
+     * Called when client sends PASS command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onPass(ChatClient client, String[] params) {
+
+        if (!params[0].equals("supersecret")) {
+            putReply(client, ERR_PASSWDMISMATCH, ":Password incorrect ("+params[0]+")");
+            client.disconnect();
+            return;
+        }
+
+        client.havePassword = true;
+    }
+
+    /**
+     * Called when client sends NICK command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onNick(ChatClient client, String[] params) {
+
+        if (params[0].length() == 0) {
+            putReply(client, ERR_NONICKNAMEGIVEN, ":No nickname given");
+            return;
+        }
+
+        if (params[0].length() > 9) {
+            putReply(client, ERR_ERRORNEUSNICKNAME, params[0], "Errorneus nickname");
+            return;
+        }
+
+        if (clients.containsKey(params[0])) {
+            putReply(client, ERR_NICKNAMEINUSE, params[0], "Nickname is already in use");
+            return;
+        }
+
+        String oldNick = client.getNick();
+        client.setNick(params[0]);
+
+        // keep everything looked up by nick in sync
+        if (client.registered) {
+            clients.remove(oldNick);
+            clients.put(client.getNick(), client);
+
+            for (Iterator<ChatChannel> i = channels.values().iterator(); i.hasNext();) {
+                i.next().getUsers().rename(client, oldNick);
+            }
+        }
+    }
+
+    /**
+     * Called when client sends APGAR command (login password)
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onApgar(ChatClient client, String[] params) { }
+
+    /**
+     * Called when client sends SERIAL command (cd-key)
+     * <p>
+     * Note: We should probably never implement this as we can't validate them
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onSerial(ChatClient client, String[] params) { }
+
+    /**
+     * Called when client sends USER command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onUser(ChatClient client, String[] params) {
+
+        if (client.registered) {
+            putReply(client, ERR_ALREADYREGISTERED, ":You have already registered");
+            return;
+        }
+
+        if (!client.havePassword) {
+            putReply(client, ERR_PASSWDMISMATCH, ":Password incorrect");
+            client.disconnect();
+            return;
+        }
+
+        if (client.getNick() != null) {
+            client.registered = true;
+            clients.put(client.getNick(), client);
+
+            putReply(client, RPL_MOTDSTART, ":- Welcome to Westwood Online!");
+            putReply(client, RPL_ENDOFMOTD);
+        }
+    }
+
+    /**
+     * Called when client sends VERCHK command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onVerchk(ChatClient client, String[] params) { }
+
+    /**
+     * Called when client sends SETOPT command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onSetOpt(ChatClient client, String[] params) {
+        String[] options = params[0].split(",");
+        if (options.length == 2) {
+            client.setOptions(Integer.valueOf(options[0]), Integer.valueOf(options[1]));
+        }
+    }
+
+    /**
+     * Called when client sends GETCODEPAGE command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onGetCodepage(ChatClient client, String[] params) {
+        String temp = "";
+
+        for (int i = 0; i < params.length; i++) {
+            if (clients.containsKey(params[i])) {
+                String encoding = clients.get(params[i]).getEncoding();
+                if (encoding.startsWith("Cp"))
+                    temp = temp + params[i] + "`" + encoding.substring(2);
+                else
+                    temp = temp + params[i] + "`1252";
+            } else {
+                // FIXME: lie if no codepage set
+                temp = temp + params[i] + "`1252";
+            }
+            if (i < params.length-1)
+                temp = temp + "`";
+        }
+        putReply(client, RPL_CODEPAGE, temp);
+    }
+
+    /**
+     * Called when client send SETCODEPAGE command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onSetCodepage(ChatClient client, String[] params) {
+        try {
+            client.setEncoding("Cp" + params[0]);
+            putReply(client, RPL_CODEPAGESET, params[0]);
+        } catch (UnsupportedEncodingException e) {
+             //FIXME: unsupported codepage error reply?
+        }
+    }
+
+    protected void onGetLocale(ChatClient client, String[] params) {
+        String temp = "";
+
+        for (int i = 0; i < params.length; i++) {
+            // FIXME: lie if no codepage set
+            int locale = 0;
+            if (clients.containsKey(params[i]))
+                locale = clients.get(params[i]).getLocale();
+
+            temp = temp + params[i] + "`" + locale;
+
+            if (i < params.length-1)
+                temp = temp + "`";
+        }
+        putReply(client, RPL_LOCALE, temp);
+    }
+
+    /**
+     * Called when client send SETLOCALE command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onSetLocale(ChatClient client, String[] params) {
+        try {
+            client.setLocale(Integer.valueOf(params[0]));
+            putReply(client, RPL_LOCALESET, params[0]);
+        } catch (Exception e) {
+             //FIXME: unknown locale error reply?
+            Log.log(Log.CHAT, Log.ERROR, "Unexpected exception when SetLocale");
+        }
+    }
+
+    /**
+     * Called when client sends LIST command (channel/lobby list)
+     * @param client
+     * @param params 
+     */
+    protected void onList(ChatClient client, String[] params) {
+        // answer refreshes that come too often when overloaded with an empty list
+        long now = System.currentTimeMillis();
+        if (reactors.getShedder().throttleList(client.lastList, now)) {
+            putReply(client, RPL_LISTSTART);
+            putReply(client, RPL_ENDOFLIST);
+            return;
+        }
+
+        client.lastList = now;
+
+        int listType = Integer.valueOf(params[0]);
+        int gameType = Integer.valueOf(params[1]);
+
+        putReply(client, RPL_LISTSTART);
+
+        if (listType == 0) {
+            for (Iterator<ChatChannel> i = channels.values().iterator(); i.hasNext();) {
+                ChatChannel channel = i.next();
+                if ((channel.getFlags() & CHAN_LOBBY|CHAN_OFFICIAL|CHAN_PERMANENT) > 0 && (channel.getType() == gameType || channel.getType() == 0))  {
+                    ReplyWriter.to(client).numeric(RPL_LIST)
+                        .append(' ').append(channel.getName())
+                        .append(' ').append(channel.getUsers().size())
+                        .append(' ').append((channel.getFlags() & CHAN_OFFICIAL) > 0 ? 1 : 0)
+                        .append(' ').append(channel.getFlags())
+                        .send();
+                }
+            }
+        }
+        else if (listType == gameType) {
+            for (Iterator<ChatChannel> i = channels.values().iterator(); i.hasNext();) {
+                ChatChannel channel = i.next();
+                if ((channel.getFlags() & CHAN_LOBBY) > 0 && (channel.getFlags() & CHAN_OFFICIAL) == 0 && channel.getType() == gameType)  {
+                    ReplyWriter.to(client).numeric(RPL_LISTGAME)
+                        .append(' ').append(channel.getName())
+                        .append(' ').append(channel.getUsers().size())
+                        .append(' ').append(channel.getMaxUsers())
+                        .append(' ').append(channel.getType())
+                        .append(' ').append(channel.getTournament() ? 1 : 0)
+                        .append(' ').append(channel.getReserved())
+                        .append(' ').append(channel.getLongIp())
+                        .append(' ').append(channel.getFlags())
+                        .append("::").append(String.valueOf(channel.getTopic()))
+                        .send();
+                }
+            }
+        }
+
+        putReply(client, RPL_ENDOFLIST);
+    }
+
+    /**
+     * Called when client sends JOINGAME command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onJoinGame(ChatClient client, String[] params) {
+
+        // normal join
+        if (params.length == 3 && params[0].startsWith("#Lob_")) {
+            String[] newParams = new String[2];
+            newParams[0] = params[0];
+            newParams[1] = params[2];
+            onJoin(client, newParams);
+            return;
+        }
+
+        // game join
+        if (params.length == 2 || params.length == 3) {
+            if (channels.containsKey(params[0])) {
+                ChatChannel game = channels.get(params[0]);
+                try {
+                    game.join(client, params.length == 3 ? params[2] : "");
+                    putReplyChannel(game, client, "JOINGAME", game.getMinUsers() + " " + game.getMaxUsers() + " " + game.getType() + " " + (game.getTournament() ? 1 : 0) + " 0 " + client.getLongIp() + " 0 " + ":" + game.getName());
+                    ReplyWriter.to(client).numeric(RPL_TOPIC).append(" :").append(String.valueOf(game.getTopic())).send();
+                    putChannelNames(client, game);
+                    // handle buggy RA
+                    client.sentGameopt(false);
+                    client.discardQueue();
+                } catch(UserExistsException e) {
+                    putReply(client, "JOINGAME", game.getMinUsers() + " " + game.getMaxUsers() + " " + game.getType() + " " + (game.getTournament() ? 1 : 0) + " 0 " + client.getLongIp() + " 0 " + ":" + game.getName());
+                } catch(UserBannedException e) {
+                    putReply(client, ERR_BANNEDFROMCHAN, game.getName(), "Cannot join channel (banned)");
+                } catch(GameFullException e) {
+                    putReply(client, ERR_CHANNELISFULL, game.getName(), "Cannot join channel (game is full)");
+                } catch(InvalidKeyException e) {
+                    putReply(client, ERR_BADCHANNELKEY, game.getName(), "Cannot join channel (invalid key)");
+                }
+            } else {
+                putReply(client, ERR_NOSUCHCHANNEL, params[0], "No such channel");
+            }
+        }
+
+        // game create
+        if (params.length < 8) {
+            putReply(client, ERR_NEEDMOREPARAMS, ":Not enough parameters");
+            return;
+        }
+
+        String name = params[0];
+        String minUsers = params[1];
+        String maxUsers = params[2];
+        String gameType = params[3];
+        String tournament = params[6];
+        String reserved = params[7];
+        String key = params.length > 8 ? params[8] : "";
+
+        try {
+            ChatChannel game = new ChatChannel(name, client, key, Integer.valueOf(gameType), Integer.valueOf(minUsers), Integer.valueOf(maxUsers), Integer.valueOf(tournament) > 0, Long.valueOf(reserved), CHAN_LOBBY);
+            game.join(client, key);
+            channels.put(name, game);
+            putReply(client, RPL_TOPIC, ":");
+            putReply(client, "JOINGAME", minUsers + " " + maxUsers + " " + gameType + " " + tournament + " 0 " + client.getLongIp() + " 0 " + ":" + game.getName());
+            putChannelNames(client, game);
+            client.sentGameopt(true);
+        } catch (Exception e) {
+            Log.log(Log.CHAT, Log.ERROR, "Unexpected exception when joining a fresly created channel");
+        }
+    }
+
+    /**
+     * Called when client sends TOPIC command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onTopic(ChatClient client, String params[]) {
+        if (channels.containsKey(params[0])) {
+            ChatChannel channel = channels.get(params[0]);
+            try {
+                channel.setTopic(client, params[1]);
+            } catch (UserNotOperatorException e) {
+                putReply(client, ERR_CHANOPRIVSNEEDED, params[0], "You're not channel operator");
+            }
+        } else {
+            putReply(client, ERR_NOSUCHCHANNEL, params[0], "No such channel");
+        }
+    }
+
+    /**
+     * Called when client sends GAMEOPT command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onGameopt(ChatClient client, String params[]) {
+        if (params[0].startsWith("#")) {
+            if (channels.containsKey(params[0])) {
+                ChatChannel channel = channels.get(params[0]);
+                if (channel.getUsers().contains(client)) {
+                    ChatClient[] users = channel.getUsers().snapshot();
+                    for (int i = 0; i < users.length; i++) {
+                        ChatClient current = users[i];
+                        // handle buggy RA
+                        if (!current.sentGameopt()) {
+                            current.putQueue(":" + client.getNick() + "!u@h GAMEOPT " + channel.getName() + " :" + params[1]);
+                        } else {
+                            putMessage(client, current, "GAMEOPT", channel.getName() + " :" + params[1]);
+                        }
+                    }
+                } else {
+                    putReply(client, ERR_NOTONCHANNEL, params[0], "You're not on that channel");
+                }
+            } else {
+                putReply(client, ERR_NOSUCHCHANNEL, params[0], "No such channel");
+            }
+        } else {
+            if (clients.containsKey(params[0])) {
+                ChatClient current = clients.get(params[0]);
+                // handle buggy RA
+                if (!current.sentGameopt()) {
+                    current.putQueue(":" + client.getNick() + "!u@h GAMEOPT " + current.getNick() + " :" + params[1]);
+                } else {
+                    putMessage(client, current, "GAMEOPT", current.getNick() + " :" + params[1]);
+                }
+                client.sentGameopt(true);
+                client.flushQueue();
+            } else {
+                putReply(client, ERR_NOSUCHNICK, params[0], "No such nick/channel");
+            }
+        }
+    }
+
+    /**
+     * Called when client sends JOIN command (to join a lobby or channel)
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onJoin(ChatClient client, String[] params) {
+        ChatChannel channel;
+        boolean newchannel = false;
+
+        if (channels.containsKey(params[0])) {
+            channel = channels.get(params[0]);
+        } else {
+            if (params[0].length() > 18) {
+                //ERROR: Channel length exceeded
+                putReply(client, ERR_NOSUCHCHANNEL, params[0], "No such channel");
+                return;
+            }
+            //FIXME: Check for unsupported chars here
+            channel = new ChatChannel(params[0], client, params.length > 1 ? params[1] : "", 0, 0, 0, false, 0, CHAN_LOBBY);
+            newchannel = true;
+        }
+
+        try {
+            channel.join(client, params.length > 1 ? params[1] : "");
+            putReplyChannel(channel, client, "JOIN", ":0," + client.getLongIp() + " " + channel.getName());
+            putChannelNames(client, channel);
+            if (newchannel)
+                channels.put(params[0], channel);
+        } catch(UserExistsException e) {
+            putReply(client, "JOIN", ":0," + client.getLongIp() + " " + channel.getName());
+        } catch(UserBannedException e) {
+            putReply(client, ERR_BANNEDFROMCHAN, channel.getName(), "Cannot join channel (banned)");
+        } catch(GameFullException e) {
+            putReply(client, ERR_CHANNELISFULL, channel.getName(), "Cannot join channel (channel is full)");
+        } catch(InvalidKeyException e) {
+            putReply(client, ERR_BADCHANNELKEY, channel.getName(), "Cannot join channel (invalid key)");
+        }           
+    }
+
+    /**
+     * Called when client sends PRIVMSG command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onPrivmsg(ChatClient client, String[] params) {
+
+        if (params[0].startsWith("#")) {
+            if (channels.containsKey(params[0])) {
+                ChatChannel channel = channels.get(params[0]);
+                if (channel.getUsers().contains(client)) {
+                    // lobby chat is the first thing to go when overloaded
+                    if ((channel.getFlags() & CHAN_OFFICIAL) > 0 && reactors.getShedder().dropLowPriority())
+                        return;
+
+                    putReplyChannel(channel, client, "PRIVMSG", params[0] + " :" + params[1], true);
+                } else {
+                    putReply(client, ERR_NOTONCHANNEL, params[0], "You're not on that channel");
+                }
+            } else {
+                putReply(client, ERR_NOSUCHCHANNEL, params[0], "No such channel");
+            }
+        } else {
+            if (clients.containsKey(params[0])) {
+                putMessage(client, clients.get(params[0]), "PRIVMSG", params[0] + " :" + params[1]);
+            } else {
+                putReply(client, ERR_NOSUCHNICK, params[0], "No such nick/channel");
+            }
+        }
+    }
+
+    /**
+     * Called when client sends PAGE command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onPage(ChatClient client, String[] params) {
+
+        if (!clients.containsKey(params[0])) {
+            putReply(client, RPL_PAGE, "1 :No such nick");
+            return;
+        }
+
+        ChatClient target = clients.get(params[0]);
+
+        if (!target.canPage()) {
+            putReply(client, RPL_PAGE, "1 :No such nick");
+            return;
+        }
+
+        putMessage(client, target, "PAGE", params[0] + " :" + params[1]);
+        putReply(client, RPL_PAGE, "0 :Ok");
+    }
+
+    /**
+     * Called when client sends FINDUSEREX command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onFindUserEx(ChatClient client, String[] params) {
+
+        if (!clients.containsKey(params[0])) {
+            putReply(client, RPL_FINDUSEREX, "1 :No such nick (not connected)");
+            return;
+        }
+
+        ChatClient target = clients.get(params[0]);
+
+        if (!target.canFind()) {
+            putReply(client, RPL_FINDUSEREX, "1 :No such nick (not connected)");
+            return;
+        }
+
+        for (Iterator<ChatChannel> i = channels.values().iterator(); i.hasNext();) {
+            ChatChannel channel = i.next();
+            if (channel.getUsers().contains(target)) {
+                putReply(client, RPL_FINDUSEREX, "0 :" + channel.getName() + ",0");
+                return;
+            }
+        }
+
+        putReply(client, RPL_FINDUSEREX, "1 :No such nick (not in any channel)");
+    }
+
+    /**
+     * Called when client sends USERIP command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onUserIp(ChatClient client, String[] params) {
+        // not needed for RA
+    }
+
+    /**
+     * Called when client sends STARTG command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onStartG(ChatClient client, String[] params) {
+
+        String message = "";
+
+        if (channels.containsKey(params[0])) {
+            ChatChannel channel = channels.get(params[0]);
+            if (channel.getOwner() == client) {
+                for (String player : params[1].split(",")) {
+                    try {
+                        ChatClient user = channel.getUser(player);
+                        message += user.getNick() + " " + user.getIp() + " ";
+                    } catch(UserNotOnChannelException e) {
+                        // ignore?
+                    }
+                }
+                message+= ":1 " + (int)(System.currentTimeMillis() / 1000);
+
+                putReplyChannel(channel, client, "STARTG", client.getNick() + " :" + message);
+            } else {
+                putReply(client, ERR_CHANOPRIVSNEEDED, params[0], "You're not channel operator");
+            }
+        } else {
+            putReply(client, ERR_NOSUCHCHANNEL, params[0], "No such channel");
+        }
+    }
+
+    /**
+     * Called when client sends KICK command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onKick(ChatClient client, String[] params) {
+        if (channels.containsKey(params[0])) {
+            ChatChannel channel = channels.get(params[0]);
+            ChatClient target = clients.get(params[1]);
+
+            try {
+                channel.kick(client, target);
+                putReplyChannel(channel, client, "KICK", channel.getName() + " " + target.getNick() + " :Kicked");
+                putMessage(client, target, "KICK", channel.getName() + " " + target.getNick() + " :Kicked");
+            } catch (UserNotOperatorException e) {
+                putReply(client, ERR_CHANOPRIVSNEEDED, params[0], "You're not channel operator");
+            } catch (UserNotOnChannelException e) {
+                putReply(client, ERR_NOSUCHNICK, params[1], "No such nick/channel");
+            }
+        } else {
+            putReply(client, ERR_NOSUCHCHANNEL, params[0], "No such channel");
+        }
+    }
+
+    /**
+     * Called when client sends MODE command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onMode(ChatClient client, String[] params) {
+        // we're not supporting any standard IRC modes, except +b, so 3 params for now
+        if (channels.containsKey(params[0])) {
+            ChatChannel channel = channels.get(params[0]);
+
+            // just a single ban, ok?
+            if (params[1].equals("+b")) {
+                ChatClient target = clients.get(params[2]);
+
+                try {
+                    channel.ban(client, target);
+                    putReplyChannel(channel, client, "MODE", channel.getName() + " +b " + target.getNick());
+                } catch (UserNotOperatorException e) {
+                    putReply(client, ERR_CHANOPRIVSNEEDED, params[0], "You're not channel operator");
+                } catch (UserNotOnChannelException e) {
+                    putReply(client, ERR_NOSUCHNICK, params[1], "No such nick/channel");
+                }
+            }
+        } else {
+            putReply(client, ERR_NOSUCHCHANNEL, params[0], "No such channel");
+        }
+    }
+    
+    /**
+     * Called when client sends NAMES command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+     protected void onNames(ChatClient client, String[] params) {
+
+        if (channels.containsKey(params[0])) {
+            ChatChannel channel = channels.get(params[0]);
+            //Fixme: Should we send list only when client is in channel?
+            putChannelNames(client, channel);
+        } else {
+            putReply(client, ERR_NOSUCHCHANNEL, params[0], "No such channel");
+        }
+    }
+
+    /**
+     * Called when client sends SQUADINFO command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+     protected void onSquadInfo(ChatClient client, String[] params) {
+
+        //FIXME: In params[0] is ID of squad, if is 0 it wants info for client
+        putReply(client, ERR_SQUADIDNOEXIST, ":ID does not exist");
+    }
+
+    /**
+     * Called when client sends TIME command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+     protected void onTime(ChatClient client, String[] params) {
+
+        ReplyWriter.to(client).numeric(RPL_TIME).append(' ').append(WOL.hostname).append(" :").append((int)(System.currentTimeMillis() / 1000)).send();
+    }
+
+    /**
+     * Called when client sends PART command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onPart(ChatClient client, String[] params) {
+
+        if (channels.containsKey(params[0])) {
+            ChatChannel channel = channels.get(params[0]);
+            try {
+                channel.part(client);
+                putReply(client, "PART", channel.getName());
+                putReplyChannel(channel, client, "PART", channel.getName());
+                // remove empty channel from list
+                if ((channel.getFlags() & CHAN_PERMANENT) == 0 && channel.getUsers().isEmpty()) {
+                    channels.remove(channel.getName());
+                }
+            } catch(UserNotOnChannelException e) {
+                putReply(client, ERR_NOTONCHANNEL, params[0], "You aren't on that channel");
+            }
+        } else {
+            putReply(client, ERR_NOSUCHCHANNEL, params[0], "No such channel");
+        }
+    }
+
+    /**
+     * Called when client sends QUIT command
+     * 
+     * @param client    source client
+     * @param params    params
+     */
+    protected void onQuit(ChatClient client, String[] params) {
+        putCommand(client, "ERROR", ":Quit");
+        client.disconnect();
+    }
+
+    /**
+     * Called when the client is considered idle and should be pinged
+     * 
+     * @param client    target client
+     */
+    public void clientIdle(ChatClient client) {
+        lock.lock();
+        try {
+            putCommand(client, "PING", ":" + WOL.hostname);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called when the client is considered timed out and should be disconnected
+     * 
+     * @param client    target client
+     */
+    public void clientTimeout(ChatClient client) {
+        lock.lock();
+        try {
+            putCommand(client, "ERROR", ":Ping timeout");
+            // desparately try to send the last command out
+            try {
+                client.canWrite();
+            } catch(Exception e) {}
+            client.disconnect(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called when a client disconnect is finalized
+     * 
+     * @param client    source client
+     */
+    public void clientDisconnect(ChatClient client) {
+        lock.lock();
+        try {
+            if (clients.containsValue(client)) {
+                for (Iterator<ChatChannel> i = channels.values().iterator(); i.hasNext();) {
+                    ChatChannel channel = i.next();
+                    ChannelMembers users = channel.getUsers();
+
+                    if (users.contains(client)) {
+                        putReplyChannel(channel, client, "QUIT", channel.getName() + " :Disconnected", true);
+                        users.remove(client);
+                    }
+
+                    if ((channel.getFlags() & CHAN_PERMANENT) == 0 && users.isEmpty()) {
+                        i.remove();
+                    }
+                }
+                clients.remove(client.getNick());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected boolean isOverloaded() {
+        return reactors.getShedder().rejectAccept();
+    }
+
+    protected TCPClient onAccept(SocketChannel clientChannel, Reactor reactor) {
+        ChatClient client = new ChatClient(clientChannel, reactor, this);
+        client.onConnect();
+        return client;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps command names to their handlers
+ * <p>
+ * Commands are found by a case-folded hash of the command bytes of a
+ * tokenized line, so a lookup costs one pass over the name no matter how
+ * many commands there are. Every command knows how many parameters it
+ * needs and whether the client has to be registered first.
+ *
+ * @author Toni Spets
+ */
+public class CommandTable {
+
+    /**
+     * Handles a command
+     */
+    abstract public static class Handler {
+
+        /**
+         * Called when a client sends the command
+         *
+         * @param client    source client
+         * @param params    params, at least the minimum amount
+         */
+        abstract public void handle(ChatClient client, String[] params);
+    }
+
+    /**
+     * A registered command
+     */
+    public static class Command {
+        String name;
+        int hash;
+        int minParams;
+        boolean needsRegistration;
+        Handler handler;
+        Metrics.Latency latency;
+
+        /**
+         * Get command name
+         *
+         * @return
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    private Command[] slots;
+    private int size;
+
+    /**
+     * Creates a new empty CommandTable
+     */
+    public CommandTable() {
+        slots = new Command[64];
+    }
+
+    /**
+     * Case-folded hash of a command name
+     *
+     * @param data      bytes of the name
+     * @param from      index of the first byte
+     * @param to        index after the last byte
+     * @return
+     */
+    static int hash(byte[] data, int from, int to) {
+        int h = 0;
+
+        for (int i = from; i < to; i++) {
+            h = 31 * h + (data[i] & 0xDF);
+        }
+
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Register a command, replacing an earlier one of the same name
+     *
+     * @param name                  command name in upper case
+     * @param minParams             least amount of params
+     * @param needsRegistration     only allowed after USER
+     * @param handler               handler, null to accept and ignore
+     */
+    public void register(String name, int minParams, boolean needsRegistration, Handler handler) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        int hash = hash(bytes, 0, bytes.length);
+        int mask = slots.length - 1;
+
+        Command command = new Command();
+        command.name = name;
+        command.hash = hash;
+        command.minParams = minParams;
+        command.needsRegistration = needsRegistration;
+        command.handler = handler;
+        command.latency = Metrics.getDefault().latency("wol_chat_command_seconds", "command=\"" + name + "\"", "Chat command handler latency");
+
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            if (slots[i] == null) {
+                slots[i] = command;
+                size++;
+                break;
+            }
+
+            if (slots[i].name.equals(name)) {
+                command.latency = slots[i].latency;
+                slots[i] = command;
+                break;
+            }
+        }
+
+        // keep probe sequences short
+        if (size * 2 > slots.length) {
+            Command[] old = slots;
+            slots = new Command[old.length * 2];
+            size = 0;
+
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] != null)
+                    insert(old[i]);
+            }
+        }
+    }
+
+    /**
+     * Put a command in a free slot
+     *
+     * @param command   the command
+     */
+    private void insert(Command command) {
+        int mask = slots.length - 1;
+        int i = command.hash & mask;
+
+        while (slots[i] != null) {
+            i = (i + 1) & mask;
+        }
+
+        slots[i] = command;
+        size++;
+    }
+
+    /**
+     * Find the command of a tokenized line
+     *
+     * @param message   the line
+     * @return          the command or null if unknown
+     */
+    public Command lookup(IrcMessage message) {
+        int mask = slots.length - 1;
+        int hash = hash(message.data, message.commandStart, message.commandEnd);
+
+        for (int i = hash & mask; slots[i] != null; i = (i + 1) & mask) {
+            Command command = slots[i];
+            if (command.hash == hash && message.isCommand(command.name))
+                return command;
+        }
+
+        return null;
+    }
+}
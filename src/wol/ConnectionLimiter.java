@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+
+/**
+ * Counts open connections per source address
+ * <p>
+ * IPv4 addresses are kept as longs in an open addressing table, so a lookup
+ * does not allocate and the table only holds hosts that currently have
+ * connections. IPv6 addresses do not fit a long and are counted in a map by
+ * the full address instead.
+ * <p>
+ * Thread safe.
+ *
+ * @author Toni Spets
+ */
+public class ConnectionLimiter {
+
+    private int limit;
+    private long[] keys;
+    private int[] counts;
+    private int size;
+
+    /**
+     * Counts of IPv6 addresses
+     */
+    private HashMap<InetAddress, int[]> wide;
+
+    /**
+     * Amount of open connections over all addresses
+     */
+    private int total;
+
+    /**
+     * Amount of rejected connections
+     */
+    private long rejected;
+
+    /**
+     * Creates a new ConnectionLimiter
+     *
+     * @param limit     maximum connections per address, 0 for no limit
+     */
+    public ConnectionLimiter(int limit) {
+        this.limit = limit;
+        keys = new long[256];
+        counts = new int[256];
+        wide = new HashMap<InetAddress, int[]>();
+    }
+
+    /**
+     * Key of an IPv4 address, the address itself with a bit above it set
+     * so that 0.0.0.0 is not taken for an empty slot
+     *
+     * @param raw       address bytes
+     * @return
+     */
+    private static long key(byte[] raw) {
+        return 0x100000000L | ((raw[0] & 0xffL) << 24) | ((raw[1] & 0xff) << 16) | ((raw[2] & 0xff) << 8) | (raw[3] & 0xff);
+    }
+
+    /**
+     * Find the slot of a key or the empty slot where it belongs
+     *
+     * @param key   address key
+     * @return
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = (int)(key ^ (key >>> 32)) * 0x9E3779B9 & mask;
+
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+
+        return i;
+    }
+
+    /**
+     * Double the table size
+     */
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+
+        keys = new long[oldKeys.length * 2];
+        counts = new int[oldKeys.length * 2];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Try to account a new connection
+     *
+     * @param address   source address
+     * @return          false if the address is over its limit
+     */
+    public synchronized boolean acquire(InetAddress address) {
+        byte[] raw = address.getAddress();
+
+        if (raw.length != 4)
+            return acquireWide(address);
+
+        long key = key(raw);
+        int slot = find(key);
+
+        if (keys[slot] == 0) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = find(key);
+            }
+
+            keys[slot] = key;
+            counts[slot] = 0;
+            size++;
+        }
+
+        if (limit > 0 && counts[slot] >= limit) {
+            rejected++;
+            return false;
+        }
+
+        counts[slot]++;
+        total++;
+        return true;
+    }
+
+    /**
+     * Try to account a new connection from an IPv6 address
+     *
+     * @param address   source address
+     * @return          false if the address is over its limit
+     */
+    private boolean acquireWide(InetAddress address) {
+        int[] count = wide.get(address);
+
+        if (limit > 0 && count != null && count[0] >= limit) {
+            rejected++;
+            return false;
+        }
+
+        if (count == null) {
+            count = new int[1];
+            wide.put(address, count);
+        }
+
+        count[0]++;
+        total++;
+        return true;
+    }
+
+    /**
+     * Account a closed connection
+     *
+     * @param address   source address
+     */
+    public synchronized void release(InetAddress address) {
+        byte[] raw = address.getAddress();
+
+        if (raw.length != 4) {
+            releaseWide(address);
+            return;
+        }
+
+        long key = key(raw);
+        int slot = find(key);
+
+        if (keys[slot] == 0)
+            return;
+
+        total--;
+
+        if (--counts[slot] > 0)
+            return;
+
+        // remove and shift following entries of the same probe chain back
+        int mask = keys.length - 1;
+        keys[slot] = 0;
+        size--;
+
+        for (int i = (slot + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            long k = keys[i];
+            int c = counts[i];
+            keys[i] = 0;
+
+            int target = find(k);
+            keys[target] = k;
+            counts[target] = c;
+        }
+    }
+
+    /**
+     * Account a closed connection from an IPv6 address
+     *
+     * @param address   source address
+     */
+    private void releaseWide(InetAddress address) {
+        int[] count = wide.get(address);
+
+        if (count == null)
+            return;
+
+        total--;
+
+        if (--count[0] == 0)
+            wide.remove(address);
+    }
+
+    /**
+     * Amount of connections currently accounted to an address
+     *
+     * @param address   source address
+     * @return
+     */
+    public synchronized int getCount(InetAddress address) {
+        byte[] raw = address.getAddress();
+
+        if (raw.length != 4) {
+            int[] count = wide.get(address);
+            return count == null ? 0 : count[0];
+        }
+
+        int slot = find(key(raw));
+        return keys[slot] == 0 ? 0 : counts[slot];
+    }
+
+    /**
+     * Amount of distinct addresses with open connections
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return size + wide.size();
+    }
+
+    /**
+     * Amount of open connections over all addresses
+     *
+     * @return
+     */
+    public synchronized int getTotal() {
+        return total;
+    }
+
+    /**
+     * Amount of rejected connections so far
+     *
+     * @return
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+}
@@ -1,40 +1,48 @@
-/*
- * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
- * 
- * Permission to use, copy, modify, and distribute this software for any
- * purpose with or without fee is hereby granted, provided that the above
- * copyright notice and this permission notice appear in all copies.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
- * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
- * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
- * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
- * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
- * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
- * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
- */
-package wol;
-
-import java.io.IOException;
-import java.net.InetAddress;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-
-/**
- * Listens for gameres clients
- *
- * @author Toni Spets
- */
-public class GameresServer extends TCPServer {
-
-    protected GameresServer(InetAddress address, int port, Selector selector) throws IOException {
-        super(address, port, selector);
-        System.out.println("GameresServer listening on " + address + ":" + port);
-    }
-
-    protected void onAccept(SocketChannel clientChannel) {
-        GameresClient client = new GameresClient(clientChannel, selector);
-        client.onConnect();
-    }
-
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Listens for gameres clients
+ *
+ * @author Toni Spets
+ */
+public class GameresServer extends TCPServer {
+
+    public static final int DEFAULT_PORT = 4006;
+
+    /**
+     * Received packets by parse result
+     */
+    static final Metrics.Counter parsed = Metrics.getDefault().counter("wol_gameres_packets_total", "result=\"parsed\"", "Gameres packets received");
+    static final Metrics.Counter failed = Metrics.getDefault().counter("wol_gameres_packets_total", "result=\"failed\"", "Gameres packets received");
+
+    protected GameresServer(InetAddress address, int port, ReactorGroup reactors) throws IOException {
+        super(address, port, reactors);
+        Log.log(Log.NET, Log.INFO, "GameresServer listening on " + address + ":" + port);
+    }
+
+    protected TCPClient onAccept(SocketChannel clientChannel, Reactor reactor) {
+        GameresClient client = new GameresClient(clientChannel, reactor);
+        client.onConnect();
+        return client;
+    }
+
 }
\ No newline at end of file
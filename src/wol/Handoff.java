@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands new connections over to a freshly started process
+ * <p>
+ * A running process listens on a Unix domain control socket. A new process
+ * connects to it and asks it to drain: the old process closes its listeners
+ * so only the new one accepts, keeps serving the sessions it already has
+ * and exits once they are gone or the drain timeout passes. Players that
+ * are online during a deploy are not disconnected, they move over the next
+ * time they log in.
+ * <p>
+ * With reusePort the new process binds its listeners before asking, so no
+ * connection attempt is refused during the switch.
+ *
+ * @author Toni Spets
+ */
+public class Handoff implements Runnable {
+
+    public static final int DEFAULT_DRAIN_TIMEOUT = 600;
+
+    /**
+     * How often a draining process checks for remaining connections
+     */
+    public static final int CHECK_INTERVAL = 1000;
+
+    private Path path;
+    private ReactorGroup reactors;
+    private ArrayList<TCPServer> servers;
+
+    /**
+     * Listeners with reactors of their own, closed but not waited for
+     */
+    private ArrayList<TCPServer> others;
+    private ServerSocketChannel control;
+
+    /**
+     * Time when a draining process gives up waiting
+     */
+    private long deadline;
+
+    /**
+     * Creates a new Handoff
+     *
+     * @param path      path of the control socket
+     * @param reactors  reactors of this process
+     * @param servers   listeners to close when draining
+     */
+    public Handoff(String path, ReactorGroup reactors, ArrayList<TCPServer> servers) {
+        this.path = Paths.get(path);
+        this.reactors = reactors;
+        this.servers = servers;
+        this.others = new ArrayList<TCPServer>();
+    }
+
+    /**
+     * Close another listener when draining
+     * <p>
+     * For listeners outside the reactors of this process, like the
+     * MetricsServer. It is closed in its own acceptor and its connections
+     * do not keep the process from exiting.
+     *
+     * @param server    the listener
+     */
+    public void addListener(TCPServer server) {
+        others.add(server);
+    }
+
+    /**
+     * Close a listener in the given reactor
+     *
+     * @param reactor   reactor the listener is registered with
+     * @param server    the listener
+     * @param closed    counted down once closed
+     */
+    private static void close(Reactor reactor, final TCPServer server, final CountDownLatch closed) {
+        reactor.execute(new Runnable() {
+            public void run() {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    Log.log(Log.CORE, Log.WARN, "Handoff: Failed to close listener: ", e.getMessage());
+                }
+
+                closed.countDown();
+            }
+        });
+    }
+
+    /**
+     * Ask a previously started process to stop accepting and drain
+     *
+     * @param path      path of the control socket
+     * @throws IOException
+     */
+    public static void requestDrain(String path) throws IOException {
+        Path p = Paths.get(path);
+
+        if (!Files.exists(p))
+            return;
+
+        SocketChannel ch;
+
+        try {
+            ch = SocketChannel.open(UnixDomainSocketAddress.of(p));
+        } catch (IOException e) {
+            Log.log(Log.CORE, Log.INFO, "Handoff: No process on ", path, ", starting fresh");
+            return;
+        }
+
+        try {
+            ch.write(ByteBuffer.wrap("DRAIN\n".getBytes("US-ASCII")));
+            String reply = readLine(ch);
+
+            if (reply != null && reply.startsWith("OK "))
+                Log.log(Log.CORE, Log.INFO, "Handoff: Previous process is draining ", reply.substring(3), " connections");
+            else
+                Log.log(Log.CORE, Log.WARN, "Handoff: Unexpected reply from previous process: ", reply);
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Read a short command line from a blocking channel
+     *
+     * @param ch    the channel
+     * @return      the line without newline or null on end of stream
+     * @throws IOException
+     */
+    private static String readLine(SocketChannel ch) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) == -1)
+                return null;
+
+            for (int i = 0; i < buf.position(); i++) {
+                if (buf.get(i) == '\n')
+                    return new String(buf.array(), 0, i, "US-ASCII").trim();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Start listening for control connections
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+
+        // socket file left by the previous process
+        Files.deleteIfExists(path);
+
+        control = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        control.bind(UnixDomainSocketAddress.of(path));
+
+        Thread t = new Thread(this, "handoff");
+        t.setDaemon(true);
+        t.start();
+
+        Log.log(Log.CORE, Log.INFO, "Handoff: Control socket on ", path);
+    }
+
+    public void run() {
+        while (control.isOpen()) {
+            try {
+                SocketChannel ch = control.accept();
+
+                try {
+                    String command = readLine(ch);
+
+                    if ("DRAIN".equals(command)) {
+                        int open = drain();
+                        ch.write(ByteBuffer.wrap(("OK " + open + "\n").getBytes("US-ASCII")));
+                    } else {
+                        ch.write(ByteBuffer.wrap("ERROR unknown command\n".getBytes("US-ASCII")));
+                    }
+                } finally {
+                    ch.close();
+                }
+            } catch (IOException e) {
+                if (control.isOpen())
+                    Log.log(Log.CORE, Log.ERROR, "Handoff: Unexpected exception ", e);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting and exit once all connections are gone
+     *
+     * @return      amount of connections still open
+     * @throws IOException
+     */
+    private int drain() throws IOException {
+        final CountDownLatch closed = new CountDownLatch(1 + others.size());
+
+        // the new process owns the control socket from now on
+        control.close();
+
+        // listeners are closed in the acceptor so the selector lets go of them
+        reactors.getAcceptor().execute(new Runnable() {
+            public void run() {
+                for (Iterator<TCPServer> i = servers.iterator(); i.hasNext();) {
+                    try {
+                        i.next().close();
+                    } catch (IOException e) {
+                        Log.log(Log.CORE, Log.WARN, "Handoff: Failed to close listener: ", e.getMessage());
+                    }
+                }
+
+                closed.countDown();
+            }
+        });
+
+        for (Iterator<TCPServer> i = others.iterator(); i.hasNext();) {
+            TCPServer server = i.next();
+            close(server.reactors.getAcceptor(), server, closed);
+        }
+
+        try {
+            closed.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        deadline = System.currentTimeMillis() + WOL.getInt("WOL.drainTimeout", DEFAULT_DRAIN_TIMEOUT) * 1000L;
+        reactors.getAcceptor().schedule(drainCheck, CHECK_INTERVAL);
+
+        int open = getConnections();
+        Log.log(Log.CORE, Log.INFO, "Handoff: Draining " + open + " connections");
+        return open;
+    }
+
+    /**
+     * Amount of open connections over all listeners
+     *
+     * @return
+     */
+    private int getConnections() {
+        int open = 0;
+
+        for (Iterator<TCPServer> i = servers.iterator(); i.hasNext();) {
+            open += i.next().getLimiter().getTotal();
+        }
+
+        return open;
+    }
+
+    /**
+     * Exits the process when drained
+     */
+    private TimerWheel.Timer drainCheck = new TimerWheel.Timer() {
+        public void expire(long now) {
+            int open = getConnections();
+
+            if (open == 0) {
+                Log.log(Log.CORE, Log.INFO, "Handoff: All connections drained, exiting");
+                System.exit(0);
+            }
+
+            if (now >= deadline) {
+                Log.log(Log.CORE, Log.INFO, "Handoff: Drain timeout with " + open + " connections left, exiting");
+                System.exit(0);
+            }
+
+            reactors.getAcceptor().getTimers().schedule(this, CHECK_INTERVAL);
+        }
+    };
+}
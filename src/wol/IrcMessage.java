@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A tokenized IRC line, reused for every line of a connection
+ * <p>
+ * Prefix, command and parameters are kept as offsets into the bytes of the
+ * line and only decoded when asked for. Filled by IrcTokenizer and valid
+ * as long as the line it was parsed from.
+ *
+ * @author Toni Spets
+ */
+public class IrcMessage {
+
+    /**
+     * Parameters that fit without growing
+     */
+    public static final int MAX_PARAMS = 16;
+
+    byte[] data;
+
+    int prefixStart;
+    int prefixEnd;
+    int commandStart;
+    int commandEnd;
+
+    int count;
+    int[] starts;
+    int[] ends;
+
+    /**
+     * Creates a new empty IrcMessage
+     */
+    public IrcMessage() {
+        starts = new int[MAX_PARAMS];
+        ends = new int[MAX_PARAMS];
+    }
+
+    /**
+     * Forget the previous line
+     *
+     * @param data      bytes of the new line
+     */
+    void clear(byte[] data) {
+        this.data = data;
+        prefixStart = prefixEnd = 0;
+        commandStart = commandEnd = 0;
+        count = 0;
+    }
+
+    /**
+     * Add a parameter, more than MAX_PARAMS only happens with bogus input
+     *
+     * @param start     index of the first byte
+     * @param end       index after the last byte
+     */
+    void addParam(int start, int end) {
+
+        if (count == starts.length) {
+            int[] newStarts = new int[count * 2];
+            int[] newEnds = new int[count * 2];
+            System.arraycopy(starts, 0, newStarts, 0, count);
+            System.arraycopy(ends, 0, newEnds, 0, count);
+            starts = newStarts;
+            ends = newEnds;
+        }
+
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    /**
+     * Get the prefix
+     *
+     * @return          prefix without the colon or null
+     */
+    public String getPrefix() {
+        return prefixEnd > prefixStart ? new String(data, prefixStart, prefixEnd - prefixStart, StandardCharsets.ISO_8859_1) : null;
+    }
+
+    /**
+     * Get the command
+     *
+     * @return          command as sent
+     */
+    public String getCommand() {
+        return new String(data, commandStart, commandEnd - commandStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Is this the given command, ignoring case?
+     *
+     * @param command   ASCII command name
+     * @return
+     */
+    public boolean isCommand(String command) {
+
+        if (commandEnd - commandStart != command.length())
+            return false;
+
+        for (int i = 0; i < command.length(); i++) {
+            int a = data[commandStart + i], c = command.charAt(i);
+
+            if (a == c)
+                continue;
+
+            // only letters differ by the case bit
+            int folded = a | 0x20;
+            if (folded != (c | 0x20) || folded < 'a' || folded > 'z')
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get amount of parameters
+     *
+     * @return
+     */
+    public int getParamCount() {
+        return count;
+    }
+
+    /**
+     * Get length of a parameter in bytes
+     *
+     * @param index     parameter index
+     * @return
+     */
+    public int getParamLength(int index) {
+        return ends[index] - starts[index];
+    }
+
+    /**
+     * Decode a parameter
+     *
+     * @param index     parameter index
+     * @param codec     codec of the connection
+     * @return
+     */
+    public String getParam(int index, TextCodec codec) {
+        return codec.decode(data, starts[index], ends[index] - starts[index]);
+    }
+
+    /**
+     * Decode all parameters
+     *
+     * @param codec     codec of the connection
+     * @return
+     */
+    public String[] getParams(TextCodec codec) {
+        String[] params = new String[count];
+
+        for (int i = 0; i < count; i++) {
+            params[i] = getParam(i, codec);
+        }
+
+        return params;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+/**
+ * Splits an IRC line into prefix, command and parameters in a single pass
+ * <p>
+ * Accepts the same lines as the old "^(:([^ ]+) )?([^ ]+) ?(.*)" pattern
+ * and splits parameters the same way: everything after the first colon
+ * is the last parameter, before it parameters are separated by any amount
+ * of spaces. Nothing is allocated.
+ *
+ * @author Toni Spets
+ */
+public class IrcTokenizer {
+
+    private IrcTokenizer() {}
+
+    /**
+     * Tokenize a line
+     *
+     * @param line      the line without NL or CRNL
+     * @param message   filled with the result
+     * @return          false if there is no command
+     */
+    public static boolean parse(ByteSlice line, IrcMessage message) {
+        byte[] data = line.array();
+        int i = line.offset(), end = i + line.length();
+
+        message.clear(data);
+
+        // prefix only counts when followed by a space
+        if (i < end && data[i] == ':') {
+            int space = ByteSlice.indexOf(data, i + 1, end, (byte)' ');
+            if (space > i + 1) {
+                message.prefixStart = i + 1;
+                message.prefixEnd = space;
+                i = space + 1;
+            }
+        }
+
+        int commandStart = i;
+        while (i < end && data[i] != ' ') {
+            i++;
+        }
+
+        // a prefix without a command after it is the command itself
+        if (i == commandStart && message.prefixEnd > 0) {
+            message.prefixStart = message.prefixEnd = 0;
+            commandStart = i = line.offset();
+            while (i < end && data[i] != ' ') {
+                i++;
+            }
+        }
+
+        if (i == commandStart)
+            return false;
+
+        message.commandStart = commandStart;
+        message.commandEnd = i;
+
+        while (i < end) {
+            byte b = data[i];
+
+            if (b == ' ') {
+                i++;
+                continue;
+            }
+
+            if (b == ':') {
+                message.addParam(i + 1, end);
+                break;
+            }
+
+            int start = i;
+            while (i < end && data[i] != ' ' && data[i] != ':') {
+                i++;
+            }
+
+            message.addParam(start, i);
+        }
+
+        return true;
+    }
+}
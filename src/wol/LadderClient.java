@@ -1,48 +1,47 @@
-/*
- * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
- * 
- * Permission to use, copy, modify, and distribute this software for any
- * purpose with or without fee is hereby granted, provided that the above
- * copyright notice and this permission notice appear in all copies.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
- * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
- * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
- * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
- * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
- * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
- * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
- */
-package wol;
-
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-
-/**
- * Handles ladder requests
- *
- * @author Toni Spets
- */
-public class LadderClient extends StringTCPClient {
-
-    protected LadderClient(SocketChannel channel, Selector selector) {
-        super(channel, selector);
-    }
-
-    public void onString(String message) {
-        /*
-         * Pelish: WOL client expect that after all data are sent
-         * server close that connection - so we do only that for now.
-         */
-        disconnect();
-    }
-
-    protected void onConnect() {
-        System.out.println(address + ":" + port + " connected to LadderServer");
-    }
-
-    protected void onDisconnect() {
-        System.out.println(address + ":" + port + " disconnected from LadderServer");
-    }
-    
-}
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * Handles ladder requests
+ *
+ * @author Toni Spets
+ */
+public class LadderClient extends StringTCPClient {
+
+    protected LadderClient(SocketChannel channel, Reactor reactor) {
+        super(channel, reactor);
+    }
+
+    public void onString(String message) {
+        /*
+         * Pelish: WOL client expect that after all data are sent
+         * server close that connection - so we do only that for now.
+         */
+        disconnect();
+    }
+
+    protected void onConnect() {
+        Log.log(Log.NET, Log.DEBUG, this, " connected to LadderServer");
+    }
+
+    protected void onDisconnect() {
+        Log.log(Log.NET, Log.DEBUG, this, " disconnected from LadderServer");
+    }
+    
+}
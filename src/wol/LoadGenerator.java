@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulated game clients for load testing a chat server
+ * <p>
+ * Clients connect through the reactors with OP_CONNECT, register with
+ * PASS/NICK/USER, join the lobby and then pick an action from the workload
+ * mix after every think time: LIST, PRIVMSG to the lobby or a whole game
+ * of JOINGAME, GAMEOPT, STARTG, PART and a gameres post. Each command is
+ * timed until the reply that ends it, commands that have no reply of their
+ * own are followed by TIME and timed until its answer.
+ * <p>
+ * Settings are read from the properties file given as argument, like
+ * Load.clients, Load.rampRate, Load.duration, Load.think and the mix
+ * weights Load.list, Load.privmsg and Load.game.
+ * <p>
+ * Usage: wol.LoadGenerator [load.prop]
+ *
+ * @author Toni Spets
+ */
+public class LoadGenerator {
+
+    /**
+     * Results of a single command
+     */
+    static class Stats {
+        String command;
+        long count;
+        long errors;
+        Histogram latency = new Histogram();
+
+        Stats(String command) {
+            this.command = command;
+        }
+
+        synchronized void record(long nanos) {
+            count++;
+            latency.record(nanos);
+        }
+
+        synchronized void error() {
+            errors++;
+        }
+    }
+
+    /**
+     * A command and the reply that ends it
+     */
+    static class Step {
+        String line;
+        String until;
+        Stats stats;
+
+        Step(String line, String until, Stats stats) {
+            this.line = line;
+            this.until = until;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * A simulated chat client
+     */
+    class Client extends StringTCPClient {
+
+        private String nick;
+        private LinkedList<Step> steps;
+        private Step waiting;
+        private long sent;
+        private long connectStart;
+        private Random random;
+
+        private TimerWheel.Timer thinkTimer = new TimerWheel.Timer() {
+            public void expire(long now) {
+                think();
+            }
+        };
+
+        Client(SocketChannel channel, Reactor reactor, int index) {
+            super(channel, reactor);
+            nick = "ld" + Integer.toString(index, 36);
+            steps = new LinkedList<Step>();
+            random = new Random(index);
+            connectStart = System.nanoTime();
+            newline = "\r\n";
+        }
+
+        protected void onConnect() {
+            getStats("CONNECT").record(System.nanoTime() - connectStart);
+            connected.incrementAndGet();
+
+            steps.add(new Step("CVERS 11015 9472\r\nPASS supersecret\r\nNICK " + nick + "\r\nUSER UserName HostName irc.westwood.com :RealName", "376", getStats("REGISTER")));
+            steps.add(new Step("JOIN " + lobby + " zotclot9", "366", getStats("JOIN")));
+            next();
+        }
+
+        protected void onDisconnect() {
+            connected.decrementAndGet();
+            reactor.cancel(thinkTimer);
+
+            if (waiting != null)
+                waiting.stats.error();
+        }
+
+        /**
+         * Send the next step or start thinking
+         */
+        private void next() {
+            waiting = steps.poll();
+
+            // results are posted like the game would after it ended
+            while (waiting != null && waiting.line == null) {
+                postGameres(reactor);
+                waiting = steps.poll();
+            }
+
+            if (waiting == null) {
+                reactor.schedule(thinkTimer, think / 2 + random.nextInt(think + 1));
+                return;
+            }
+
+            sent = System.nanoTime();
+            putString(waiting.line);
+        }
+
+        /**
+         * Pick the next action from the mix
+         */
+        private void think() {
+            int pick = random.nextInt(listWeight + privmsgWeight + gameWeight);
+
+            if (pick < listWeight) {
+                steps.add(new Step("LIST 0 21", "323", getStats("LIST")));
+            } else if (pick < listWeight + privmsgWeight) {
+                steps.add(new Step("PRIVMSG " + lobby + " :load test message from " + nick + "\r\nTIME", "391", getStats("PRIVMSG")));
+            } else {
+                String game = "#g" + nick;
+                steps.add(new Step("JOINGAME " + game + " 1 8 21 3 0 0 0", "366", getStats("JOINGAME")));
+                steps.add(new Step("GAMEOPT " + game + " :0,0,0,0,0,0,0,0\r\nTIME", "391", getStats("GAMEOPT")));
+                steps.add(new Step("STARTG " + game + " " + nick, "STARTG", getStats("STARTG")));
+                steps.add(new Step("PART " + game, "PART", getStats("PART")));
+                steps.add(new Step(null, null, null));
+            }
+
+            next();
+        }
+
+        protected void onString(String message) {
+
+            if (message.startsWith("PING")) {
+                putString("PONG" + message.substring(4));
+                return;
+            }
+
+            if (waiting == null)
+                return;
+
+            // reply token is the second word of a prefixed line
+            int start = message.indexOf(' ') + 1;
+            int end = message.indexOf(' ', start);
+            String token = end > start ? message.substring(start, end) : message.substring(start);
+
+            if (token.equals(waiting.until)) {
+                waiting.stats.record(System.nanoTime() - sent);
+                next();
+            } else if (token.length() == 3 && token.charAt(0) == '4') {
+                waiting.stats.error();
+                next();
+            }
+        }
+    }
+
+    /**
+     * Posts a single gameres packet
+     */
+    class GameresPost extends TCPClient {
+
+        private long connectStart;
+
+        GameresPost(SocketChannel channel, Reactor reactor) {
+            super(channel, reactor);
+            connectStart = System.nanoTime();
+        }
+
+        protected void onConnect() {
+            getStats("GAMERES").record(System.nanoTime() - connectStart);
+            write(gameres);
+            disconnect();
+        }
+
+        protected void onRead() {
+            inbuf.position(inbuf.limit());
+        }
+    }
+
+    private ReactorGroup reactors;
+    private InetAddress[] sources;
+    private InetSocketAddress chatAddress;
+    private InetSocketAddress gameresAddress;
+    private String lobby;
+    private int clients;
+    private int rampRate;
+    private int think;
+    private int listWeight;
+    private int privmsgWeight;
+    private int gameWeight;
+    private byte[] gameres;
+
+    private HashMap<String, Stats> stats;
+    private AtomicInteger opened;
+    private AtomicInteger connected;
+    private long startTime;
+    private long lastReport;
+    private long lastCount;
+
+    /**
+     * Creates a new LoadGenerator
+     *
+     * @throws IOException
+     */
+    public LoadGenerator() throws IOException {
+        String host = WOL.getString("Load.host", "127.0.0.1");
+        chatAddress = new InetSocketAddress(host, WOL.getInt("Load.chatPort", ChatServer.DEFAULT_PORT));
+        gameresAddress = new InetSocketAddress(host, WOL.getInt("Load.gameresPort", GameresServer.DEFAULT_PORT));
+        lobby = WOL.getString("Load.lobby", "#Lob_21_0");
+        clients = WOL.getInt("Load.clients", 1000);
+        rampRate = WOL.getInt("Load.rampRate", 500);
+        think = WOL.getInt("Load.think", 1000);
+        listWeight = WOL.getInt("Load.list", 30);
+        privmsgWeight = WOL.getInt("Load.privmsg", 60);
+        gameWeight = WOL.getInt("Load.game", 10);
+
+        // one local port range per source address, needed for more than ~28k clients
+        String[] names = WOL.getString("Load.sourceAddresses", "").split(",");
+        ArrayList<InetAddress> tmp = new ArrayList<InetAddress>();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].trim().length() > 0)
+                tmp.add(InetAddress.getByName(names[i].trim()));
+        }
+        sources = tmp.toArray(new InetAddress[tmp.size()]);
+
+        gameres = createGameres();
+        stats = new HashMap<String, Stats>();
+        opened = new AtomicInteger();
+        connected = new AtomicInteger();
+
+        reactors = new ReactorGroup(WOL.getInt("Load.reactors", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Build a small valid gameres packet
+     *
+     * @return
+     */
+    private static byte[] createGameres() {
+        ByteBuffer buf = ByteBuffer.allocate(28);
+        buf.putShort((short)28);
+        buf.putShort((short)0);
+        buf.put(new byte[] { 'G', 'S', 'K', 'U' });
+        buf.putShort((short)GameresValue.TYPE_INT);
+        buf.putShort((short)4);
+        buf.putInt(0x2100);
+        buf.put(new byte[] { 'D', 'U', 'R', 'A' });
+        buf.putShort((short)GameresValue.TYPE_INT);
+        buf.putShort((short)4);
+        buf.putInt(600);
+        return buf.array();
+    }
+
+    /**
+     * Get the stats of a command, created on first use
+     *
+     * @param command   command name
+     * @return
+     */
+    Stats getStats(String command) {
+        synchronized (stats) {
+            Stats s = stats.get(command);
+
+            if (s == null) {
+                s = new Stats(command);
+                stats.put(command, s);
+            }
+
+            return s;
+        }
+    }
+
+    /**
+     * Open a non-blocking connection
+     *
+     * @param address   remote address
+     * @param index     connection index, picks the source address
+     * @return          the channel, connecting or connected
+     * @throws IOException
+     */
+    private SocketChannel open(InetSocketAddress address, int index) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+
+        if (sources.length > 0)
+            channel.bind(new InetSocketAddress(sources[index % sources.length], 0));
+
+        channel.connect(address);
+        return channel;
+    }
+
+    /**
+     * Open a new simulated client in the next reactor
+     *
+     * @param index     client index
+     */
+    private void openClient(final int index) {
+        final Reactor reactor = reactors.next();
+
+        reactor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Client client = new Client(open(chatAddress, index), reactor, index);
+
+                    // loopback connections may complete right away
+                    if (client.channel.isConnected())
+                        client.canConnect();
+                } catch (IOException e) {
+                    getStats("CONNECT").error();
+                }
+            }
+        });
+    }
+
+    /**
+     * Post a gameres packet
+     *
+     * @param reactor   reactor of the posting client
+     */
+    private void postGameres(Reactor reactor) {
+        try {
+            GameresPost post = new GameresPost(open(gameresAddress, opened.get()), reactor);
+
+            if (post.channel.isConnected())
+                post.canConnect();
+        } catch (IOException e) {
+            getStats("GAMERES").error();
+        }
+    }
+
+    /**
+     * Opens clients at the ramp rate until all are running
+     */
+    private TimerWheel.Timer rampTimer = new TimerWheel.Timer() {
+        public void expire(long now) {
+            int batch = Math.max(rampRate / 10, 1);
+
+            for (int i = 0; i < batch && opened.get() < clients; i++) {
+                openClient(opened.getAndIncrement());
+            }
+
+            if (opened.get() < clients)
+                reactors.getAcceptor().getTimers().schedule(this, 100);
+        }
+    };
+
+    /**
+     * Prints progress and ends the run
+     */
+    private TimerWheel.Timer reportTimer = new TimerWheel.Timer() {
+        public void expire(long now) {
+            long count = 0;
+
+            synchronized (stats) {
+                for (Iterator<Stats> i = stats.values().iterator(); i.hasNext();) {
+                    count += i.next().count;
+                }
+            }
+
+            System.out.println(String.format("%6.1f s: %d connected, %.0f commands/s",
+                    (now - startTime) / 1000.0, connected.get(), (count - lastCount) * 1000.0 / Math.max(now - lastReport, 1)));
+
+            lastCount = count;
+            lastReport = now;
+
+            if (now - startTime >= WOL.getInt("Load.duration", 60) * 1000L) {
+                report(now - startTime);
+                System.exit(0);
+            }
+
+            reactors.getAcceptor().getTimers().schedule(this, WOL.getInt("Load.reportInterval", 5) * 1000);
+        }
+    };
+
+    /**
+     * Print throughput and latency percentiles of every command
+     *
+     * @param elapsed   milliseconds since start
+     */
+    private void report(long elapsed) {
+        ArrayList<Stats> sorted;
+
+        synchronized (stats) {
+            sorted = new ArrayList<Stats>(stats.values());
+        }
+
+        Collections.sort(sorted, new Comparator<Stats>() {
+            public int compare(Stats a, Stats b) {
+                return a.command.compareTo(b.command);
+            }
+        });
+
+        System.out.println(String.format("%-10s %10s %8s %10s %10s %10s %10s %10s", "command", "count", "errors", "per s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+
+        for (Iterator<Stats> i = sorted.iterator(); i.hasNext();) {
+            Stats s = i.next();
+
+            synchronized (s) {
+                Histogram h = s.latency;
+                System.out.println(String.format("%-10s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f", s.command, s.count, s.errors,
+                        s.count * 1000.0 / elapsed, h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6, h.getPercentile(99.9) / 1e6, h.getMax() / 1e6));
+            }
+        }
+    }
+
+    /**
+     * Ramp up the clients and run until the duration has passed
+     */
+    public void run() {
+        Reactor acceptor = reactors.getAcceptor();
+
+        startTime = lastReport = System.currentTimeMillis();
+        acceptor.schedule(rampTimer, 1);
+        acceptor.schedule(reportTimer, WOL.getInt("Load.reportInterval", 5) * 1000);
+
+        System.out.println("Opening " + clients + " clients to " + chatAddress + " at " + rampRate + "/s");
+        reactors.run();
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        Properties config = new Properties();
+
+        if (args.length > 0) {
+            try {
+                config.load(new FileInputStream(args[0]));
+            } catch (IOException e) {
+                System.out.println("Failed to load " + args[0] + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        // buffer pool and logging read their settings from the same file
+        WOL.config = config;
+        Log.configure();
+
+        try {
+            new LoadGenerator().run();
+        } catch (IOException e) {
+            System.out.println("LoadGenerator failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+/**
+ * Watches reactor lag and sheds load when the server falls behind
+ * <p>
+ * Every reactor reports its longest loop iteration and the largest amount
+ * of pending work it saw. When either passes a threshold the shedding level
+ * is raised right away: first new chat connections are rejected, then LIST
+ * refreshes are throttled and as a last resort lobby chat is dropped. The
+ * level is only lowered one step at a time after the load has stayed below
+ * half of the threshold for a while, so it does not flap.
+ *
+ * @author Toni Spets
+ */
+public class LoadShedder extends TimerWheel.Timer {
+
+    public static final int LEVEL_NORMAL            = 0;
+    public static final int LEVEL_REJECT_ACCEPTS    = 1;
+    public static final int LEVEL_THROTTLE_LIST     = 2;
+    public static final int LEVEL_DROP_LOW_PRIORITY = 3;
+
+    private ReactorGroup reactors;
+
+    /**
+     * Lag thresholds in milliseconds per level, index 0 is unused
+     */
+    private int[] lagThresholds;
+
+    /**
+     * Pending work thresholds per level, index 0 is unused
+     */
+    private int[] depthThresholds;
+
+    /**
+     * How long the load has to stay low before stepping down
+     */
+    private int holdMillis;
+
+    /**
+     * How often the reactors are sampled
+     */
+    private int interval;
+
+    /**
+     * Minimum time between LIST requests of a client when throttled
+     */
+    private int listInterval;
+
+    private volatile int level;
+
+    /**
+     * Time since the load has been below the current level, 0 if not
+     */
+    private long calmSince;
+
+    /**
+     * Lag and depth of the last sample
+     */
+    private volatile long lag;
+    private volatile int depth;
+
+    private Metrics.Counter levelChanges = new Metrics.Counter();
+    private Metrics.Counter rejectedAccepts = new Metrics.Counter();
+    private Metrics.Counter throttledLists = new Metrics.Counter();
+    private Metrics.Counter droppedMessages = new Metrics.Counter();
+
+    /**
+     * Creates a new LoadShedder for a group of reactors
+     *
+     * @param reactors  the reactors to watch
+     */
+    public LoadShedder(ReactorGroup reactors) {
+        this.reactors = reactors;
+
+        lagThresholds = new int[] {
+            0,
+            WOL.getInt("WOL.shedLag1", 100),
+            WOL.getInt("WOL.shedLag2", 250),
+            WOL.getInt("WOL.shedLag3", 500)
+        };
+
+        depthThresholds = new int[] {
+            0,
+            WOL.getInt("WOL.shedDepth1", 2000),
+            WOL.getInt("WOL.shedDepth2", 10000),
+            WOL.getInt("WOL.shedDepth3", 50000)
+        };
+
+        holdMillis = WOL.getInt("WOL.shedHold", 5000);
+        interval = WOL.getInt("WOL.shedInterval", 250);
+        listInterval = WOL.getInt("WOL.shedListInterval", 5000);
+    }
+
+    /**
+     * Start sampling in the acceptor reactor
+     */
+    public void start() {
+        registerMetrics();
+        reactors.getAcceptor().schedule(this, interval);
+    }
+
+    /**
+     * Export the counters and the current level
+     * <p>
+     * Done when sampling starts, groups that never run their shedder are
+     * not exported.
+     */
+    private void registerMetrics() {
+        Metrics metrics = Metrics.getDefault();
+
+        metrics.register("wol_shed_level_changes_total", "counter", "", "Load shedding level changes", levelChanges);
+        metrics.register("wol_shed_total", "counter", "action=\"reject_accept\"", "Work shed because of overload", rejectedAccepts);
+        metrics.register("wol_shed_total", "counter", "action=\"throttle_list\"", "Work shed because of overload", throttledLists);
+        metrics.register("wol_shed_total", "counter", "action=\"drop_message\"", "Work shed because of overload", droppedMessages);
+
+        metrics.gauge("wol_shed_level", "", "Current load shedding level", new Metrics.Gauge() {
+            public long get() {
+                return level;
+            }
+        });
+    }
+
+    /**
+     * Highest level whose thresholds are reached
+     *
+     * @param lagMillis     current lag
+     * @param depth         current pending work
+     * @param scale         threshold multiplier
+     * @return
+     */
+    private int levelFor(long lagMillis, int depth, double scale) {
+        for (int i = LEVEL_DROP_LOW_PRIORITY; i > LEVEL_NORMAL; i--) {
+            if (lagMillis >= lagThresholds[i] * scale || depth >= depthThresholds[i] * scale)
+                return i;
+        }
+
+        return LEVEL_NORMAL;
+    }
+
+    public void expire(long now) {
+        long busy = 0;
+        int pending = 0;
+
+        for (int i = 0; i < reactors.size(); i++) {
+            busy = Math.max(busy, reactors.get(i).takeMaxBusy());
+            pending = Math.max(pending, reactors.get(i).takeMaxDepth());
+        }
+
+        lag = busy / 1000000;
+        depth = pending;
+
+        int up = levelFor(lag, depth, 1.0);
+        int down = levelFor(lag, depth, 0.5);
+
+        if (up > level) {
+            setLevel(up);
+            calmSince = 0;
+        } else if (down < level) {
+            if (calmSince == 0) {
+                calmSince = now;
+            } else if (now - calmSince >= holdMillis) {
+                setLevel(level - 1);
+                calmSince = now;
+            }
+        } else {
+            calmSince = 0;
+        }
+
+        reactors.getAcceptor().getTimers().schedule(this, interval);
+    }
+
+    /**
+     * Change level and log it
+     *
+     * @param newLevel  new level
+     */
+    private void setLevel(int newLevel) {
+        Log.log(Log.CORE, Log.WARN, "LoadShedder: level " + level + " -> " + newLevel + " (lag " + lag + " ms, depth " + depth + ")");
+        level = newLevel;
+        levelChanges.inc();
+    }
+
+    /**
+     * Get current shedding level
+     *
+     * @return          one of LEVEL_*
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Should a new connection be rejected? Counts the rejection.
+     *
+     * @return
+     */
+    public boolean rejectAccept() {
+        if (level < LEVEL_REJECT_ACCEPTS)
+            return false;
+
+        rejectedAccepts.inc();
+        return true;
+    }
+
+    /**
+     * Should a LIST request get an empty list? Counts the throttled request.
+     *
+     * @param lastList  time of the previous LIST of the client
+     * @param now       current time
+     * @return
+     */
+    public boolean throttleList(long lastList, long now) {
+        if (level < LEVEL_THROTTLE_LIST || now - lastList >= listInterval)
+            return false;
+
+        throttledLists.inc();
+        return true;
+    }
+
+    /**
+     * Should a low priority message be dropped? Counts the dropped message.
+     *
+     * @return
+     */
+    public boolean dropLowPriority() {
+        if (level < LEVEL_DROP_LOW_PRIORITY)
+            return false;
+
+        droppedMessages.inc();
+        return true;
+    }
+
+    /**
+     * Lag of the last sample in milliseconds
+     *
+     * @return
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    /**
+     * Pending work of the last sample
+     *
+     * @return
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Amount of level changes so far
+     *
+     * @return
+     */
+    public long getLevelChanges() {
+        return levelChanges.get();
+    }
+
+    /**
+     * Amount of connections rejected so far
+     *
+     * @return
+     */
+    public long getRejectedAccepts() {
+        return rejectedAccepts.get();
+    }
+
+    /**
+     * Amount of LIST requests throttled so far
+     *
+     * @return
+     */
+    public long getThrottledLists() {
+        return throttledLists.get();
+    }
+
+    /**
+     * Amount of messages dropped so far
+     *
+     * @return
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+}
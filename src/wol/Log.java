@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger
+ * <p>
+ * Callers only store references to the message parts in a preallocated ring
+ * buffer, a background thread does the formatting and writes the lines out
+ * in batches. A message is built from up to four parts that are converted
+ * with String.valueOf() in the writer thread, so passing a client and an
+ * existing string allocates nothing. Disabled levels return before touching
+ * the ring and a full ring drops messages instead of blocking the caller.
+ * <p>
+ * Every category has its own level and sampling rate, read from the config
+ * like Log.level=info, Log.proto.level=trace and Log.proto.sample=100.
+ * Output goes to Log.file, rotated after Log.maxSize megabytes keeping
+ * Log.keep old files, or stdout when no file is given.
+ *
+ * @author Toni Spets
+ */
+public class Log implements Runnable {
+
+    public static final int ERROR = 0;
+    public static final int WARN = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+    public static final int TRACE = 4;
+
+    private static final String[] LEVELS = { "ERROR", "WARN", "INFO", "DEBUG", "TRACE" };
+
+    /**
+     * Server internals
+     */
+    public static final int CORE = 0;
+
+    /**
+     * Connections and listeners
+     */
+    public static final int NET = 1;
+
+    /**
+     * Every protocol line in and out
+     */
+    public static final int PROTO = 2;
+
+    /**
+     * Chat server events
+     */
+    public static final int CHAT = 3;
+
+    /**
+     * Game results and ladder
+     */
+    public static final int GAME = 4;
+
+    private static final String[] CATEGORIES = { "core", "net", "proto", "chat", "game" };
+
+    /**
+     * Amount of entries in the ring, must be a power of two
+     */
+    public static final int RING_SIZE = 65536;
+
+    /**
+     * Size of the output batch that triggers a write
+     */
+    private static final int BATCH_SIZE = 65536;
+
+    public static final int DEFAULT_MAX_SIZE = 64;
+    public static final int DEFAULT_KEEP = 5;
+
+    /**
+     * A preallocated ring slot
+     */
+    private static class Entry {
+        volatile long sequence = -1;
+        long time;
+        int level;
+        int category;
+        Object a;
+        Object b;
+        Object c;
+        Object d;
+    }
+
+    private static final Log instance = new Log();
+
+    private Entry[] ring;
+    private int mask;
+
+    /**
+     * Next sequence to claim
+     */
+    private AtomicLong tail;
+
+    /**
+     * Next sequence the writer consumes
+     */
+    private volatile long head;
+
+    /**
+     * Messages dropped because the ring was full
+     */
+    private AtomicLong dropped;
+
+    private int[] levels;
+    private int[] samples;
+    private AtomicInteger[] sampleCounters;
+
+    private volatile String path;
+    private int maxSize;
+    private int keep;
+
+    private volatile boolean running;
+    private Thread writer;
+
+    // owned by the writer thread
+    private OutputStream out;
+    private String openPath;
+    private long written;
+    private StringBuilder batch;
+    private SimpleDateFormat dateFormat;
+    private long reportedDrops;
+
+    private Log() {
+        ring = new Entry[RING_SIZE];
+        mask = RING_SIZE - 1;
+
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Entry();
+        }
+
+        tail = new AtomicLong();
+        dropped = new AtomicLong();
+
+        levels = new int[CATEGORIES.length];
+        samples = new int[CATEGORIES.length];
+        sampleCounters = new AtomicInteger[CATEGORIES.length];
+
+        for (int i = 0; i < CATEGORIES.length; i++) {
+            levels[i] = INFO;
+            samples[i] = 1;
+            sampleCounters[i] = new AtomicInteger();
+        }
+
+        maxSize = DEFAULT_MAX_SIZE;
+        keep = DEFAULT_KEEP;
+
+        batch = new StringBuilder(BATCH_SIZE + 4096);
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+        running = true;
+        writer = new Thread(this, "log");
+        writer.setDaemon(true);
+        writer.start();
+
+        // whatever is still in the ring is written before exiting
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                running = false;
+                LockSupport.unpark(writer);
+                try {
+                    writer.join(2000);
+                } catch (InterruptedException e) {
+                    // exiting anyway
+                }
+            }
+        }));
+    }
+
+    /**
+     * Parse a level name
+     *
+     * @param name          level name like "debug" or "off"
+     * @param defaultValue  value used when not recognized
+     * @return
+     */
+    private static int parseLevel(String name, int defaultValue) {
+
+        if (name == null)
+            return defaultValue;
+
+        if (name.equalsIgnoreCase("off"))
+            return -1;
+
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].equalsIgnoreCase(name))
+                return i;
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Read levels, sampling and output file from the config
+     */
+    public static void configure() {
+        Log log = instance;
+        int level = parseLevel(WOL.getString("Log.level", null), INFO);
+
+        for (int i = 0; i < CATEGORIES.length; i++) {
+            // protocol tracing is off unless asked for
+            int defaultLevel = i == PROTO ? Math.min(level, INFO) : level;
+            log.levels[i] = parseLevel(WOL.getString("Log." + CATEGORIES[i] + ".level", null), defaultLevel);
+            log.samples[i] = Math.max(WOL.getInt("Log." + CATEGORIES[i] + ".sample", 1), 1);
+        }
+
+        log.maxSize = WOL.getInt("Log.maxSize", DEFAULT_MAX_SIZE);
+        log.keep = WOL.getInt("Log.keep", DEFAULT_KEEP);
+        log.path = WOL.getString("Log.file", null);
+    }
+
+    /**
+     * Would a message of this category and level be logged?
+     * <p>
+     * Callers that need to build a message should check this first.
+     *
+     * @param category  message category
+     * @param level     message level
+     * @return
+     */
+    public static boolean isEnabled(int category, int level) {
+        return level <= instance.levels[category];
+    }
+
+    /**
+     * Log a message
+     *
+     * @param category  message category
+     * @param level     message level
+     * @param a         message
+     */
+    public static void log(int category, int level, Object a) {
+        if (level <= instance.levels[category])
+            instance.put(category, level, a, null, null, null);
+    }
+
+    /**
+     * Log a message concatenated from parts
+     *
+     * @param category  message category
+     * @param level     message level
+     * @param a         message part
+     * @param b         message part
+     */
+    public static void log(int category, int level, Object a, Object b) {
+        if (level <= instance.levels[category])
+            instance.put(category, level, a, b, null, null);
+    }
+
+    /**
+     * Log a message concatenated from parts
+     *
+     * @param category  message category
+     * @param level     message level
+     * @param a         message part
+     * @param b         message part
+     * @param c         message part
+     */
+    public static void log(int category, int level, Object a, Object b, Object c) {
+        if (level <= instance.levels[category])
+            instance.put(category, level, a, b, c, null);
+    }
+
+    /**
+     * Log a message concatenated from parts
+     *
+     * @param category  message category
+     * @param level     message level
+     * @param a         message part
+     * @param b         message part
+     * @param c         message part
+     * @param d         message part
+     */
+    public static void log(int category, int level, Object a, Object b, Object c, Object d) {
+        if (level <= instance.levels[category])
+            instance.put(category, level, a, b, c, d);
+    }
+
+    /**
+     * Amount of messages dropped because the writer could not keep up
+     *
+     * @return
+     */
+    public static long getDropped() {
+        return instance.dropped.get();
+    }
+
+    /**
+     * Claim a ring slot and publish the message to the writer
+     */
+    private void put(int category, int level, Object a, Object b, Object c, Object d) {
+        long seq;
+
+        // errors and warnings are never sampled
+        if (level > WARN && samples[category] > 1 && sampleCounters[category].getAndIncrement() % samples[category] != 0)
+            return;
+
+        do {
+            seq = tail.get();
+            if (seq - head >= RING_SIZE) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        Entry e = ring[(int)(seq & mask)];
+        e.time = System.currentTimeMillis();
+        e.level = level;
+        e.category = category;
+        e.a = a;
+        e.b = b;
+        e.c = c;
+        e.d = d;
+        e.sequence = seq;
+    }
+
+    /**
+     * Append a message part, throwables get their stack trace
+     *
+     * @param part  message part
+     */
+    private void append(Object part) {
+
+        if (part == null)
+            return;
+
+        if (part instanceof Throwable) {
+            StringWriter trace = new StringWriter();
+            ((Throwable)part).printStackTrace(new PrintWriter(trace));
+            batch.append('\n');
+            batch.append(trace);
+
+            // the entry ends the line itself
+            if (batch.charAt(batch.length() - 1) == '\n')
+                batch.setLength(batch.length() - 1);
+            return;
+        }
+
+        batch.append(part);
+    }
+
+    /**
+     * Format one entry into the batch and free its slot
+     *
+     * @param e     the entry
+     */
+    private void format(Entry e) {
+        batch.append(dateFormat.format(new Date(e.time)));
+        batch.append(' ');
+        batch.append(LEVELS[e.level]);
+        batch.append(" [");
+        batch.append(CATEGORIES[e.category]);
+        batch.append("] ");
+        append(e.a);
+        append(e.b);
+        append(e.c);
+        append(e.d);
+        batch.append('\n');
+
+        e.a = e.b = e.c = e.d = null;
+    }
+
+    /**
+     * Open the configured output, stdout when no file is set
+     *
+     * @throws IOException
+     */
+    private void open() throws IOException {
+
+        if (out != null && out != System.out)
+            out.close();
+
+        openPath = path;
+        written = 0;
+
+        if (openPath == null) {
+            out = System.out;
+            return;
+        }
+
+        File file = new File(openPath);
+        written = file.length();
+        out = new FileOutputStream(file, true);
+    }
+
+    /**
+     * Rename the current file away and start a new one
+     *
+     * @throws IOException
+     */
+    private void rotate() throws IOException {
+        out.close();
+        out = null;
+
+        new File(openPath + "." + keep).delete();
+
+        for (int i = keep - 1; i > 0; i--) {
+            new File(openPath + "." + i).renameTo(new File(openPath + "." + (i + 1)));
+        }
+
+        if (keep > 0)
+            new File(openPath).renameTo(new File(openPath + ".1"));
+        else
+            new File(openPath).delete();
+
+        open();
+    }
+
+    /**
+     * Write the batch out
+     *
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+
+        if (batch.length() == 0)
+            return;
+
+        if (out == null || path != openPath)
+            open();
+
+        byte[] bytes = batch.toString().getBytes("UTF-8");
+        batch.setLength(0);
+
+        out.write(bytes);
+        out.flush();
+        written += bytes.length;
+
+        if (openPath != null && maxSize > 0 && written >= maxSize * 1048576L)
+            rotate();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Entry e = ring[(int)(head & mask)];
+
+                if (e.sequence == head) {
+                    format(e);
+                    head++;
+
+                    if (batch.length() >= BATCH_SIZE)
+                        flush();
+
+                    continue;
+                }
+
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    batch.append("Log: " + (drops - reportedDrops) + " messages dropped, writer can not keep up\n");
+                    reportedDrops = drops;
+                }
+
+                // ring is empty
+                flush();
+
+                if (!running)
+                    return;
+
+                LockSupport.parkNanos(5000000);
+            } catch (IOException e) {
+                System.err.println("Log: Failed to write log: " + e.getMessage());
+                batch.setLength(0);
+                LockSupport.parkNanos(1000000000L);
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of process wide metrics
+ * <p>
+ * Counters are striped so reactors do not contend on a single cache line,
+ * gauges are read only when the metrics are written out and latencies are
+ * recorded into the log-linear buckets of Histogram. Metrics with the same
+ * name form a family that differs by labels, the whole registry is written
+ * in the Prometheus text format by MetricsServer.
+ *
+ * @author Toni Spets
+ */
+public class Metrics {
+
+    private static Metrics instance;
+
+    /**
+     * Quantiles written out for latencies
+     */
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /**
+     * Metrics of the same name
+     */
+    private static class Family {
+        String name;
+        String type;
+        String help;
+        ArrayList<Metric> metrics = new ArrayList<Metric>();
+    }
+
+    private LinkedHashMap<String, Family> families;
+
+    /**
+     * A single metric of a family
+     */
+    abstract public static class Metric {
+
+        /**
+         * Labels without braces, like command="JOIN", empty for none
+         */
+        String labels = "";
+
+        /**
+         * Write the samples of this metric
+         *
+         * @param out       output
+         * @param name      family name
+         */
+        abstract void write(StringBuilder out, String name);
+    }
+
+    /**
+     * Monotonic counter
+     */
+    public static class Counter extends Metric {
+
+        private LongAdder value = new LongAdder();
+
+        /**
+         * Increment by one
+         */
+        public void inc() {
+            value.increment();
+        }
+
+        /**
+         * Increment by an amount
+         *
+         * @param amount    non-negative amount
+         */
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        /**
+         * Get current value
+         *
+         * @return
+         */
+        public long get() {
+            return value.sum();
+        }
+
+        void write(StringBuilder out, String name) {
+            sample(out, name, labels, null, get());
+        }
+    }
+
+    /**
+     * Value that is read when the metrics are written out
+     */
+    abstract public static class Gauge extends Metric {
+
+        /**
+         * Get current value, called from the metrics thread
+         *
+         * @return
+         */
+        abstract public long get();
+
+        void write(StringBuilder out, String name) {
+            sample(out, name, labels, null, get());
+        }
+    }
+
+    /**
+     * Latency distribution in nanoseconds, written out in seconds
+     */
+    public static class Latency extends Metric {
+
+        private AtomicLongArray buckets = new AtomicLongArray(Histogram.BUCKETS);
+        private LongAdder sum = new LongAdder();
+
+        /**
+         * Record a latency
+         *
+         * @param nanos     latency in nanoseconds
+         */
+        public void record(long nanos) {
+
+            if (nanos < 0)
+                nanos = 0;
+
+            buckets.incrementAndGet(Histogram.index(nanos));
+            sum.add(nanos);
+        }
+
+        /**
+         * Copy the recorded latencies into a histogram
+         *
+         * @return
+         */
+        public Histogram snapshot() {
+            Histogram h = new Histogram();
+
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                long count = buckets.get(i);
+                if (count > 0)
+                    h.record(Histogram.upperBound(i), count);
+            }
+
+            return h;
+        }
+
+        void write(StringBuilder out, String name) {
+            Histogram h = snapshot();
+
+            for (int i = 0; i < QUANTILES.length; i++) {
+                sample(out, name, labels, "quantile=\"" + QUANTILES[i] + "\"", h.getPercentile(QUANTILES[i] * 100) / 1e9);
+            }
+
+            sample(out, name + "_sum", labels, null, sum.sum() / 1e9);
+            sample(out, name + "_count", labels, null, h.getCount());
+        }
+    }
+
+    /**
+     * Creates a new empty Metrics registry
+     */
+    public Metrics() {
+        families = new LinkedHashMap<String, Family>();
+    }
+
+    /**
+     * Get the registry of this process
+     *
+     * @return
+     */
+    public static synchronized Metrics getDefault() {
+        if (instance == null)
+            instance = new Metrics();
+
+        return instance;
+    }
+
+    /**
+     * Add a metric to its family
+     *
+     * @param name      metric name
+     * @param type      counter, gauge or summary
+     * @param labels    labels without braces, empty for none
+     * @param help      description
+     * @param metric    the metric
+     * @return          the metric
+     */
+    public synchronized <T extends Metric> T register(String name, String type, String labels, String help, T metric) {
+        Family family = families.get(name);
+
+        if (family == null) {
+            family = new Family();
+            family.name = name;
+            family.type = type;
+            family.help = help;
+            families.put(name, family);
+        }
+
+        metric.labels = labels;
+        family.metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * Create and register a counter
+     *
+     * @param name      metric name
+     * @param labels    labels without braces, empty for none
+     * @param help      description
+     * @return
+     */
+    public Counter counter(String name, String labels, String help) {
+        return register(name, "counter", labels, help, new Counter());
+    }
+
+    /**
+     * Register a gauge
+     *
+     * @param name      metric name
+     * @param labels    labels without braces, empty for none
+     * @param help      description
+     * @param gauge     the gauge
+     * @return
+     */
+    public Gauge gauge(String name, String labels, String help, Gauge gauge) {
+        return register(name, "gauge", labels, help, gauge);
+    }
+
+    /**
+     * Create and register a latency
+     *
+     * @param name      metric name, should end with _seconds
+     * @param labels    labels without braces, empty for none
+     * @param help      description
+     * @return
+     */
+    public Latency latency(String name, String labels, String help) {
+        return register(name, "summary", labels, help, new Latency());
+    }
+
+    /**
+     * Write a single sample line
+     *
+     * @param out       output
+     * @param name      sample name
+     * @param labels    metric labels
+     * @param extra     additional label, null for none
+     * @param value     the value
+     */
+    static void sample(StringBuilder out, String name, String labels, String extra, Object value) {
+        out.append(name);
+
+        if (labels.length() > 0 || extra != null) {
+            out.append('{').append(labels);
+            if (extra != null)
+                out.append(labels.length() > 0 ? "," : "").append(extra);
+            out.append('}');
+        }
+
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format
+     *
+     * @param out       output
+     */
+    public void write(StringBuilder out) {
+        ArrayList<Family> copy;
+
+        synchronized (this) {
+            copy = new ArrayList<Family>(families.values());
+        }
+
+        for (Iterator<Family> i = copy.iterator(); i.hasNext();) {
+            Family family = i.next();
+            ArrayList<Metric> metrics;
+
+            synchronized (this) {
+                metrics = new ArrayList<Metric>(family.metrics);
+            }
+
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+
+            for (Iterator<Metric> j = metrics.iterator(); j.hasNext();) {
+                j.next().write(out, family.name);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Answers a single HTTP request with the metrics
+ * <p>
+ * Only the request line is looked at, the connection is closed after the
+ * response. /metrics has the metrics and /stalls the recent reactor stalls.
+ *
+ * @author Toni Spets
+ */
+public class MetricsClient extends StringTCPClient {
+
+    private boolean answered;
+
+    protected MetricsClient(SocketChannel channel, Reactor reactor) {
+        super(channel, reactor);
+    }
+
+    protected void onConnect() {
+        Log.log(Log.NET, Log.DEBUG, this, " connected to MetricsServer");
+    }
+
+    protected void onDisconnect() {
+        Log.log(Log.NET, Log.DEBUG, this, " disconnected from MetricsServer");
+    }
+
+    protected void onString(String message) {
+
+        // rest of the request headers
+        if (answered)
+            return;
+
+        answered = true;
+
+        String[] request = message.split(" ");
+        if (request.length < 2 || !request[0].equals("GET")) {
+            respond("405 Method Not Allowed", "");
+        } else if (request[1].equals("/metrics") || request[1].equals("/")) {
+            StringBuilder body = new StringBuilder();
+            Metrics.getDefault().write(body);
+            respond("200 OK", body.toString());
+        } else if (request[1].equals("/stalls")) {
+            StringBuilder body = new StringBuilder();
+            Watchdog watchdog = Watchdog.getDefault();
+            if (watchdog != null)
+                watchdog.write(body);
+            else
+                body.append("Watchdog is not running\n");
+            respond("200 OK", body.toString());
+        } else {
+            respond("404 Not Found", "");
+        }
+
+        disconnect();
+    }
+
+    /**
+     * Write a complete response
+     *
+     * @param status    status line without the version
+     * @param body      response body
+     */
+    private void respond(String status, String body) {
+        try {
+            byte[] data = body.getBytes("UTF-8");
+            String header = "HTTP/1.0 " + status + "\r\n"
+                    + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                    + "Content-Length: " + data.length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+
+            write(header.getBytes("US-ASCII"));
+            write(data);
+        } catch (UnsupportedEncodingException e) {
+            // never reached
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Serves the metrics over HTTP
+ * <p>
+ * Runs in a reactor of its own so writing out the metrics never delays the
+ * chat reactors. Listens on MetricsServer.port of MetricsServer.address,
+ * loopback by default, and is off unless a port is configured. The listener
+ * is closed with the others when draining for a restart so the new process
+ * can take over the port.
+ *
+ * @author Toni Spets
+ */
+public class MetricsServer extends TCPServer {
+
+    protected MetricsServer(InetAddress address, int port, ReactorGroup reactors) throws IOException {
+        super(address, port, reactors);
+        Log.log(Log.NET, Log.INFO, "MetricsServer listening on " + address + ":" + port);
+    }
+
+    /**
+     * Start listening in a new reactor thread
+     *
+     * @param address   local address that we listen on
+     * @param port      local port that we listen on
+     * @return          the server or null if it could not listen
+     */
+    public static MetricsServer start(InetAddress address, int port) {
+        try {
+            ReactorGroup reactors = new ReactorGroup(1);
+            MetricsServer server = new MetricsServer(address, port, reactors);
+            reactors.getAcceptor().start();
+            return server;
+        } catch (IOException e) {
+            Log.log(Log.NET, Log.WARN, "MetricsServer: Failed to listen on " + address + ":" + port + ": ", e.getMessage());
+            return null;
+        }
+    }
+
+    protected TCPClient onAccept(SocketChannel clientChannel, Reactor reactor) {
+        MetricsClient client = new MetricsClient(clientChannel, reactor);
+        client.onConnect();
+        return client;
+    }
+
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single selector event loop
+ * <p>
+ * Every SocketEvent is registered to exactly one Reactor and all of its
+ * events are dispatched from the thread running that Reactor. Work that
+ * belongs to another Reactor must be handed over with execute().
+ * <p>
+ * Output is not written as it is queued. Connections with new output are
+ * marked dirty and flushed once at the end of each loop iteration, so any
+ * amount of lines queued during an iteration leave in one write. With
+ * WOL.corkMillis set, connections with less than a segment of output wait
+ * up to that long for more before they are written.
+ *
+ * @author Toni Spets
+ */
+public class Reactor implements Runnable {
+
+    /**
+     * Name of the reactor, also used as thread name
+     */
+    private String name;
+
+    /**
+     * The selector used to request events
+     */
+    private Selector selector;
+
+    /**
+     * Tasks handed over from other threads
+     */
+    private ConcurrentLinkedQueue<Runnable> tasks;
+
+    /**
+     * Thread running this reactor, null until started
+     */
+    private volatile Thread thread;
+
+    /**
+     * Timers of this reactor
+     */
+    private TimerWheel timers;
+
+    /**
+     * Amount of queued tasks
+     */
+    private AtomicInteger pending;
+
+    /**
+     * Longest loop iteration in nanoseconds since last taken
+     */
+    private volatile long maxBusy;
+
+    /**
+     * Largest amount of ready keys and tasks since last taken
+     */
+    private volatile int maxDepth;
+
+    /**
+     * Start of the current loop iteration in nanoseconds, 0 while waiting
+     * in the selector
+     */
+    private volatile long busySince;
+
+    /**
+     * Event, task or timers being processed, for the Watchdog
+     */
+    private volatile Object current;
+
+    /**
+     * Command being processed, for the Watchdog
+     */
+    private volatile String command;
+
+    /**
+     * Connections to flush at the end of this loop iteration
+     */
+    private ArrayList<TCPClient> dirty;
+
+    /**
+     * Connections holding back small output until the cork deadline
+     */
+    private ArrayList<TCPClient> corked;
+
+    /**
+     * Longest time small output is held back in nanoseconds, 0 to never
+     */
+    private long corkNanos;
+
+    /**
+     * When the corked connections are flushed, in nanoseconds
+     */
+    private long corkDeadline;
+
+    /**
+     * Creates a new Reactor
+     *
+     * @param name      name of the reactor
+     * @throws IOException
+     */
+    public Reactor(String name) throws IOException {
+        this.name = name;
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        timers = new TimerWheel(System.currentTimeMillis());
+        pending = new AtomicInteger();
+        dirty = new ArrayList<TCPClient>();
+        corked = new ArrayList<TCPClient>();
+        corkNanos = WOL.getInt("WOL.corkMillis", 0) * 1000000L;
+    }
+
+    /**
+     * Get reactor name
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the selector of this reactor
+     *
+     * @return
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Get the timer wheel of this reactor
+     * <p>
+     * Must only be used from this reactor thread.
+     *
+     * @return
+     */
+    public TimerWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * Schedule a timer from any thread
+     *
+     * @param timer     the timer
+     * @param delay     delay in milliseconds
+     */
+    public void schedule(final TimerWheel.Timer timer, final long delay) {
+
+        if (inReactor()) {
+            timers.schedule(timer, delay);
+            return;
+        }
+
+        execute(new Runnable() {
+            public void run() {
+                timers.schedule(timer, delay);
+            }
+        });
+    }
+
+    /**
+     * Cancel a timer from any thread
+     *
+     * @param timer     the timer
+     */
+    public void cancel(final TimerWheel.Timer timer) {
+
+        if (inReactor()) {
+            timer.cancel();
+            return;
+        }
+
+        execute(new Runnable() {
+            public void run() {
+                timer.cancel();
+            }
+        });
+    }
+
+    /**
+     * Is the current thread running this reactor?
+     *
+     * @return
+     */
+    public boolean inReactor() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Queue a task to be run in this reactor thread
+     * <p>
+     * Safe to call from any thread, the task is run after the current
+     * select round has been dispatched.
+     *
+     * @param task      task to run
+     */
+    public void execute(Runnable task) {
+        pending.incrementAndGet();
+        tasks.add(task);
+
+        if (!inReactor())
+            selector.wakeup();
+    }
+
+    /**
+     * Get the longest loop iteration since the last call and start over
+     *
+     * @return          nanoseconds
+     */
+    public long takeMaxBusy() {
+        long busy = maxBusy;
+        maxBusy = 0;
+        return busy;
+    }
+
+    /**
+     * Get the largest amount of pending work seen at the start of a loop
+     * iteration since the last call and start over
+     *
+     * @return          ready keys and queued tasks
+     */
+    public int takeMaxDepth() {
+        int depth = maxDepth;
+        maxDepth = 0;
+        return depth;
+    }
+
+    /**
+     * Get the thread running this reactor
+     *
+     * @return          null until started
+     */
+    public Thread getThread() {
+        return thread;
+    }
+
+    /**
+     * Get the start of the current loop iteration
+     *
+     * @return          nanoseconds, 0 while waiting for events
+     */
+    public long getBusySince() {
+        return busySince;
+    }
+
+    /**
+     * Get what is being processed right now
+     *
+     * @return          SocketEvent, task or null
+     */
+    public Object getCurrent() {
+        return current;
+    }
+
+    /**
+     * Get the command being processed right now
+     *
+     * @return          command or null
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * Tell what command the current event is processing, ignored when not
+     * called from the reactor thread
+     *
+     * @param command   command name
+     */
+    public void setCommand(String command) {
+        if (inReactor())
+            this.command = command;
+    }
+
+    /**
+     * Flush a connection at the end of this loop iteration
+     * <p>
+     * Must only be used from this reactor thread.
+     *
+     * @param client    connection with new output
+     */
+    void flushLater(TCPClient client) {
+        dirty.add(client);
+    }
+
+    /**
+     * Is small output held back?
+     *
+     * @return
+     */
+    boolean isCorking() {
+        return corkNanos > 0;
+    }
+
+    /**
+     * Hold back the output of a connection until the cork deadline
+     * <p>
+     * Must only be used from this reactor thread.
+     *
+     * @param client    connection with less than a segment of output
+     */
+    void cork(TCPClient client) {
+
+        if (corked.isEmpty())
+            corkDeadline = System.nanoTime() + corkNanos;
+
+        corked.add(client);
+    }
+
+    /**
+     * Flush the dirty connections, and the corked ones when due
+     */
+    private void flush() {
+
+        if (!corked.isEmpty() && System.nanoTime() - corkDeadline >= 0) {
+            for (int i = 0; i < corked.size(); i++) {
+                flush(corked.get(i), true);
+            }
+            corked.clear();
+        }
+
+        // flushing may close connections which may queue more output
+        for (int i = 0; i < dirty.size(); i++) {
+            flush(dirty.get(i), false);
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Flush a single connection, a failed write closes it
+     *
+     * @param client    the connection
+     * @param uncork    deadline of corked output has passed
+     */
+    private void flush(TCPClient client, boolean uncork) {
+        current = client;
+        command = null;
+
+        try {
+            if (uncork)
+                client.uncork();
+            else
+                client.flush();
+        } catch (IOException e) {
+            Log.log(Log.NET, Log.WARN, "IOException when flushing, forcing close: ", e.getMessage());
+
+            try {
+                client.close();
+            } catch (IOException d) {}
+        }
+    }
+
+    /**
+     * Start this reactor in a new thread
+     */
+    public void start() {
+        Thread t = new Thread(this, name);
+        t.start();
+    }
+
+    /**
+     * Run tasks that were handed over from other threads
+     */
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            pending.decrementAndGet();
+            current = task;
+            command = null;
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.log(Log.CORE, Log.ERROR, name, ": Unexpected exception in task:", e);
+            }
+        }
+    }
+
+    /**
+     * Dispatch all ready keys to their SocketEvent
+     */
+    private void dispatch() {
+        for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+            SelectionKey k = i.next();
+            SocketEvent se = (SocketEvent)k.attachment();
+
+            current = se;
+            command = null;
+
+            try {
+                int ops = k.readyOps();
+
+                if ((ops & SelectionKey.OP_ACCEPT) > 0)
+                    se.canAccept();
+
+                if ((ops & SelectionKey.OP_CONNECT) > 0)
+                    se.canConnect();
+
+                if ((ops & SelectionKey.OP_READ) > 0)
+                    se.canRead();
+
+                if ((ops & SelectionKey.OP_WRITE) > 0)
+                    se.canWrite();
+
+            } catch (IOException e) {
+                Log.log(Log.NET, Log.WARN, "IOException when handling event, forcing close: ", e.getMessage());
+
+                // try closing, if it fails, just remove it anyway
+                try {
+                    se.close();
+                } catch (IOException d) {
+                    k.cancel();
+                }
+            } catch (CancelledKeyException e) {
+                // closed by another handler during this round
+            } catch (RuntimeException e) {
+                Log.log(Log.CORE, Log.ERROR, name, ": Unexpected exception in handler:", e);
+
+                // a client is left mid-read, close it and go on with the round
+                if (se instanceof TCPClient) {
+                    try {
+                        se.close();
+                    } catch (IOException d) {
+                        k.cancel();
+                    }
+                }
+            }
+
+            // remove key from selector if channel is closed gracefully
+            if (!k.channel().isOpen())
+                k.cancel();
+
+            i.remove();
+        }
+    }
+
+    public void run() {
+
+        thread = Thread.currentThread();
+
+        while (true) {
+            try {
+                long timeout = timers.size() > 0 ? timers.untilNextTick(System.currentTimeMillis()) : 1000;
+
+                // wake up for corked output, selectNow when already due
+                if (!corked.isEmpty())
+                    timeout = Math.min(timeout, Math.max(0, (corkDeadline - System.nanoTime() + 999999) / 1000000));
+
+                busySince = 0;
+                current = null;
+                command = null;
+
+                int ready = timeout > 0 ? selector.select(timeout) : selector.selectNow();
+                long start = System.nanoTime();
+                int depth = ready + pending.get();
+
+                // heartbeat for the Watchdog
+                busySince = start;
+
+                if (ready > 0)
+                    dispatch();
+
+                runTasks();
+
+                current = timers;
+                command = null;
+                timers.advance(System.currentTimeMillis());
+
+                flush();
+
+                long busy = System.nanoTime() - start;
+                if (busy > maxBusy)
+                    maxBusy = busy;
+                if (depth > maxDepth)
+                    maxDepth = depth;
+            } catch (Exception e) {
+                Log.log(Log.CORE, Log.ERROR, name, ": Unexpected exception in event loop:", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of Reactors that share the connections of a process
+ * <p>
+ * The first reactor also handles listening sockets, new connections are
+ * spread evenly over all reactors.
+ *
+ * @author Toni Spets
+ */
+public class ReactorGroup {
+
+    private Reactor[] reactors;
+    private AtomicInteger next;
+    private ThreadEngine engine;
+    private LoadShedder shedder;
+
+    /**
+     * Creates a new ReactorGroup
+     *
+     * @param count     amount of reactors, at least one
+     * @throws IOException
+     */
+    public ReactorGroup(int count) throws IOException {
+        this(count, null);
+    }
+
+    /**
+     * Creates a new ReactorGroup
+     * <p>
+     * With a ThreadEngine the connections are driven by their own threads
+     * and the reactors only run timers and handed over tasks.
+     *
+     * @param count     amount of reactors, at least one
+     * @param engine    thread engine, null to use the selectors
+     * @throws IOException
+     */
+    public ReactorGroup(int count, ThreadEngine engine) throws IOException {
+        this.engine = engine;
+        reactors = new Reactor[Math.max(count, 1)];
+        next = new AtomicInteger();
+
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor("reactor-" + i);
+        }
+
+        shedder = new LoadShedder(this);
+    }
+
+    /**
+     * Get amount of reactors
+     *
+     * @return
+     */
+    public int size() {
+        return reactors.length;
+    }
+
+    /**
+     * Get the thread engine, null when connections use the selectors
+     *
+     * @return
+     */
+    public ThreadEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Get the overload shedder watching this group
+     *
+     * @return
+     */
+    public LoadShedder getShedder() {
+        return shedder;
+    }
+
+    /**
+     * Get reactor by index
+     *
+     * @param index     reactor index
+     * @return
+     */
+    public Reactor get(int index) {
+        return reactors[index];
+    }
+
+    /**
+     * Get the reactor that handles listening sockets
+     *
+     * @return
+     */
+    public Reactor getAcceptor() {
+        return reactors[0];
+    }
+
+    /**
+     * Pick the reactor for a new connection, round-robin
+     *
+     * @return
+     */
+    public Reactor next() {
+        return reactors[(next.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+    }
+
+    /**
+     * Run all reactors, the first one in the calling thread
+     * <p>
+     * Never returns.
+     */
+    public void run() {
+        if (engine != null)
+            engine.start();
+
+        shedder.start();
+
+        for (int i = 1; i < reactors.length; i++) {
+            reactors[i].start();
+        }
+
+        reactors[0].run();
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Plays a traffic capture back against a running server
+ * <p>
+ * Every captured connection is opened again to the same port and the
+ * client side of the capture is sent with the original timing, scaled by
+ * the speed factor or as fast as possible. The server side of the capture
+ * tells how many reply lines each command got, a command counts as
+ * answered once as many lines have come back. Lines sent to a client on
+ * behalf of others are counted the same, so latencies of commands that
+ * run in busy channels are approximate.
+ * <p>
+ * Usage: wol.Replay prefix [host] [1|10|max]
+ *
+ * @author Toni Spets
+ */
+public class Replay {
+
+    /**
+     * A replayed connection
+     */
+    static class Connection {
+        int id;
+        int port;
+        SocketChannel channel;
+        boolean closing;
+        byte[] partial = new byte[32];
+        int partialLen;
+        LinkedList<Pending> pending = new LinkedList<Pending>();
+    }
+
+    /**
+     * A command waiting for its replies
+     */
+    static class Pending {
+        Stats stats;
+        long sent;
+        int lines;
+    }
+
+    /**
+     * Something that happened in the capture
+     */
+    static class Event {
+        long time;
+        byte type;
+        Connection connection;
+        byte[] data;
+        int replyLines;
+    }
+
+    /**
+     * Results of a single command
+     */
+    static class Stats {
+        String command;
+        long count;
+        Histogram latency = new Histogram();
+    }
+
+    private String host;
+    private double speed;
+    private ArrayList<Event> events;
+    private HashMap<String, Stats> stats;
+    private Selector selector;
+    private ByteBuffer readbuf;
+    private long commands;
+    private long bytesOut;
+    private long bytesIn;
+    private long unanswered;
+
+    /**
+     * Creates a new Replay
+     *
+     * @param host      server to connect to
+     * @param speed     speed factor, 0 for as fast as possible
+     * @throws IOException
+     */
+    public Replay(String host, double speed) throws IOException {
+        this.host = host;
+        this.speed = speed;
+        events = new ArrayList<Event>();
+        stats = new HashMap<String, Stats>();
+        selector = Selector.open();
+        readbuf = ByteBuffer.allocate(65536);
+    }
+
+    /**
+     * Read all segments of a capture
+     *
+     * @param prefix    file name prefix of the segments
+     * @throws IOException
+     */
+    public void load(String prefix) throws IOException {
+        HashMap<Integer, Connection> connections = new HashMap<Integer, Connection>();
+        HashMap<Integer, Event> lastIn = new HashMap<Integer, Event>();
+
+        for (int segment = 0; new File(prefix + "." + segment).exists(); segment++) {
+            RandomAccessFile file = new RandomAccessFile(prefix + "." + segment, "r");
+            MappedByteBuffer map;
+
+            try {
+                map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+
+            if (map.remaining() < Capture.HEADER_SIZE || map.getLong() != Capture.MAGIC)
+                throw new IOException(prefix + "." + segment + " is not a capture segment");
+
+            map.getLong();
+
+            while (map.remaining() >= Capture.RECORD_HEADER_SIZE) {
+                long time = map.getLong();
+                int id = map.getInt();
+                byte type = map.get();
+                int len = map.getInt();
+
+                if (type == 0)
+                    break;
+
+                byte[] data = new byte[len];
+                map.get(data);
+
+                Connection c = connections.get(id);
+
+                if (type == Capture.OPEN) {
+                    c = new Connection();
+                    c.id = id;
+                    c.port = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+                    connections.put(id, c);
+                } else if (c == null) {
+                    // opened before the capture started
+                    continue;
+                }
+
+                if (type == Capture.OUT) {
+                    Event in = lastIn.get(id);
+                    if (in != null)
+                        in.replyLines += countLines(data, data.length);
+                    continue;
+                }
+
+                Event e = new Event();
+                e.time = time;
+                e.type = type;
+                e.connection = c;
+                e.data = data;
+                events.add(e);
+
+                if (type == Capture.IN)
+                    lastIn.put(id, e);
+            }
+        }
+
+        System.out.println("Loaded " + events.size() + " events of " + connections.size() + " connections");
+    }
+
+    /**
+     * Count line feeds
+     *
+     * @param data      the bytes
+     * @param len       amount of bytes to look at
+     * @return
+     */
+    private static int countLines(byte[] data, int len) {
+        int lines = 0;
+
+        for (int i = 0; i < len; i++) {
+            if (data[i] == '\n')
+                lines++;
+        }
+
+        return lines;
+    }
+
+    /**
+     * Get the stats of a command line
+     *
+     * @param data      line bytes
+     * @param off       start of the line
+     * @param len       length of the line
+     * @return
+     */
+    private Stats getStats(byte[] data, int off, int len) {
+        int end = off;
+
+        while (end < off + len && data[end] != ' ' && data[end] != '\r')
+            end++;
+
+        String command = new String(data, off, end - off).toUpperCase();
+        Stats s = stats.get(command);
+
+        if (s == null) {
+            s = new Stats();
+            s.command = command;
+            stats.put(command, s);
+        }
+
+        return s;
+    }
+
+    /**
+     * Replay all events
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+
+        if (events.isEmpty())
+            return;
+
+        long first = events.get(0).time;
+        long start = System.nanoTime();
+
+        for (Iterator<Event> i = events.iterator(); i.hasNext();) {
+            Event e = i.next();
+
+            if (speed > 0) {
+                long due = start + (long)((e.time - first) / speed);
+                long wait;
+
+                while ((wait = due - System.nanoTime()) > 0) {
+                    poll(Math.max(wait / 1000000, 1));
+                }
+            }
+
+            poll(-1);
+
+            if (e.type == Capture.OPEN)
+                connect(e.connection);
+            else if (e.type == Capture.IN)
+                send(e);
+            else if (e.type == Capture.CLOSE)
+                closeWhenAnswered(e.connection);
+        }
+
+        // give the last commands time to be answered
+        long deadline = System.nanoTime() + 5000000000L;
+        while (System.nanoTime() < deadline && hasPending()) {
+            poll(100);
+        }
+
+        report(System.nanoTime() - start);
+    }
+
+    /**
+     * Are any commands still waiting for replies?
+     *
+     * @return
+     */
+    private boolean hasPending() {
+        for (Iterator<SelectionKey> i = selector.keys().iterator(); i.hasNext();) {
+            Connection c = (Connection)i.next().attachment();
+            if (!c.pending.isEmpty())
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Open a captured connection again
+     *
+     * @param c     the connection
+     */
+    private void connect(Connection c) {
+        try {
+            c.channel = SocketChannel.open(new InetSocketAddress(host, c.port));
+            c.channel.configureBlocking(false);
+            c.channel.register(selector, SelectionKey.OP_READ, c);
+        } catch (IOException e) {
+            System.out.println("Connection " + c.id + " to port " + c.port + " failed: " + e.getMessage());
+            c.channel = null;
+        }
+    }
+
+    /**
+     * Send captured client bytes and start waiting for their replies
+     *
+     * @param e     the event
+     * @throws IOException
+     */
+    private void send(Event e) throws IOException {
+        Connection c = e.connection;
+
+        if (c.channel == null || !c.channel.isOpen())
+            return;
+
+        long now = System.nanoTime();
+        Stats last = null;
+
+        for (int i = 0; i < e.data.length; i++) {
+            byte b = e.data[i];
+
+            if (b == '\n') {
+                // commands can be split over several reads
+                last = getStats(c.partial, 0, c.partialLen);
+                last.count++;
+                commands++;
+                c.partialLen = 0;
+            } else if (c.partialLen < c.partial.length) {
+                c.partial[c.partialLen++] = b;
+            }
+        }
+
+        // replies are expected for the last command of the chunk
+        if (last != null && e.replyLines > 0) {
+            Pending p = new Pending();
+            p.stats = last;
+            p.sent = now;
+            p.lines = e.replyLines;
+            c.pending.add(p);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(e.data);
+        while (buf.hasRemaining()) {
+            if (c.channel.write(buf) == 0)
+                poll(1);
+        }
+
+        bytesOut += e.data.length;
+    }
+
+    /**
+     * Close a connection like the client did once its commands are answered
+     *
+     * @param c     the connection
+     */
+    private void closeWhenAnswered(Connection c) {
+
+        if (c.pending.isEmpty())
+            close(c);
+        else
+            c.closing = true;
+    }
+
+    /**
+     * Close a connection, commands still waiting count as unanswered
+     *
+     * @param c     the connection
+     */
+    private void close(Connection c) {
+
+        if (c.channel == null)
+            return;
+
+        unanswered += c.pending.size();
+        c.pending.clear();
+
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+    }
+
+    /**
+     * Read replies and account them to pending commands
+     *
+     * @param timeout   milliseconds to wait, negative to not wait at all
+     * @throws IOException
+     */
+    private void poll(long timeout) throws IOException {
+        int ready = timeout < 0 ? selector.selectNow() : selector.select(timeout);
+
+        if (ready == 0)
+            return;
+
+        for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+            SelectionKey k = i.next();
+            Connection c = (Connection)k.attachment();
+            i.remove();
+
+            readbuf.clear();
+
+            int len;
+            try {
+                len = c.channel.read(readbuf);
+            } catch (IOException e) {
+                len = -1;
+            }
+
+            if (len == -1) {
+                close(c);
+                continue;
+            }
+
+            bytesIn += len;
+
+            long now = System.nanoTime();
+            int lines = countLines(readbuf.array(), len);
+
+            while (lines > 0 && !c.pending.isEmpty()) {
+                Pending p = c.pending.getFirst();
+                int used = Math.min(lines, p.lines);
+
+                p.lines -= used;
+                lines -= used;
+
+                if (p.lines == 0) {
+                    p.stats.latency.record(now - p.sent);
+                    c.pending.removeFirst();
+                }
+            }
+
+            if (c.closing && c.pending.isEmpty())
+                close(c);
+        }
+    }
+
+    /**
+     * Print throughput and per-command latencies
+     *
+     * @param elapsed   duration of the replay in nanoseconds
+     */
+    private void report(long elapsed) {
+        ArrayList<Stats> sorted = new ArrayList<Stats>(stats.values());
+
+        Collections.sort(sorted, new Comparator<Stats>() {
+            public int compare(Stats a, Stats b) {
+                return a.count < b.count ? 1 : (a.count > b.count ? -1 : 0);
+            }
+        });
+
+        double seconds = elapsed / 1e9;
+
+        System.out.println(String.format("Replayed %d commands in %.2f s, %.0f commands/s, %d bytes out, %d bytes in, %d unanswered",
+                commands, seconds, commands / seconds, bytesOut, bytesIn, unanswered + countPending()));
+        System.out.println(String.format("%-12s %10s %10s %10s %10s %10s %10s", "command", "count", "answered", "p50 ms", "p99 ms", "max ms", "cmd/s"));
+
+        for (Iterator<Stats> i = sorted.iterator(); i.hasNext();) {
+            Stats s = i.next();
+            Histogram h = s.latency;
+
+            System.out.println(String.format("%-12s %10d %10d %10.3f %10.3f %10.3f %10.0f", s.command, s.count, h.getCount(),
+                    h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6, h.getMax() / 1e6, s.count / seconds));
+        }
+    }
+
+    /**
+     * Amount of commands that never got their replies
+     *
+     * @return
+     */
+    private int countPending() {
+        int count = 0;
+
+        for (Iterator<SelectionKey> i = selector.keys().iterator(); i.hasNext();) {
+            count += ((Connection)i.next().attachment()).pending.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+
+        if (args.length < 1) {
+            System.out.println("Usage: wol.Replay prefix [host] [1|10|max]");
+            return;
+        }
+
+        String host = args.length > 1 ? args[1] : "127.0.0.1";
+        double speed = 1;
+
+        if (args.length > 2)
+            speed = args[2].equals("max") ? 0 : Double.parseDouble(args[2]);
+
+        try {
+            Replay replay = new Replay(host, speed);
+            replay.load(args[0]);
+            replay.run();
+        } catch (IOException e) {
+            System.out.println("Replay failed: " + e.getMessage());
+        }
+    }
+}
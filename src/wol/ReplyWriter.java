@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds a chat line for a single client directly as bytes
+ * <p>
+ * Prefixes come from byte arrays cached by the clients, numbers are
+ * formatted digit by digit and text is copied as is when it is ASCII, so
+ * a reply is put together without any intermediate Strings. Only text
+ * with other characters is encoded in the codepage of the target.
+ * <p>
+ * Clients on a codepage that does not map ASCII to itself get the line
+ * built as a String instead. One writer per thread, a line must be sent
+ * before the next one is started.
+ *
+ * @author Toni Spets
+ */
+public class ReplyWriter {
+
+    private static final ThreadLocal<ReplyWriter> writers = new ThreadLocal<ReplyWriter>() {
+        protected ReplyWriter initialValue() {
+            return new ReplyWriter();
+        }
+    };
+
+    /**
+     * ":hostname " of server replies and the hostname it was made of
+     */
+    private static volatile byte[] serverPrefix;
+    private static volatile String serverName;
+
+    private byte[] data;
+    private int length;
+    private ChatClient to;
+
+    /**
+     * Line as text when the target codepage is not ASCII compatible
+     */
+    private StringBuilder text;
+
+    /**
+     * Creates a new ReplyWriter
+     */
+    private ReplyWriter() {
+        data = new byte[512];
+    }
+
+    /**
+     * Start a line to a client
+     *
+     * @param client    target client
+     * @return          writer of this thread
+     */
+    public static ReplyWriter to(ChatClient client) {
+        ReplyWriter w = writers.get();
+        w.to = client;
+        w.length = 0;
+        w.text = client.codec.isAscii() ? null : new StringBuilder();
+        return w;
+    }
+
+    /**
+     * Get the bytes of an ASCII string
+     *
+     * @param s         the string
+     * @return          bytes or null if there is anything but ASCII
+     */
+    static byte[] ascii(String s) {
+
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80)
+                return null;
+        }
+
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Make room for more bytes
+     *
+     * @param more      amount of bytes to add
+     */
+    private void ensure(int more) {
+
+        if (length + more > data.length) {
+            byte[] bigger = new byte[Math.max(data.length * 2, length + more)];
+            System.arraycopy(data, 0, bigger, 0, length);
+            data = bigger;
+        }
+    }
+
+    /**
+     * Start a numeric server reply, ":hostname code nick"
+     *
+     * @param code      RPL/ERR code
+     * @return
+     */
+    public ReplyWriter numeric(int code) {
+        byte[] prefix = serverPrefix;
+
+        // hostname is only set at startup, check anyway
+        if (prefix == null || serverName != WOL.hostname) {
+            prefix = (":" + WOL.hostname + " ").getBytes(StandardCharsets.US_ASCII);
+            serverName = WOL.hostname;
+            serverPrefix = prefix;
+        }
+
+        append(prefix);
+
+        // numerics are always three digits
+        append((char)('0' + code / 100 % 10));
+        append((char)('0' + code / 10 % 10));
+        append((char)('0' + code % 10));
+        append(' ');
+
+        byte[] nick = to.getNickBytes();
+        if (nick != null)
+            return append(nick);
+
+        return append(String.valueOf(to.getNick()));
+    }
+
+    /**
+     * Start a message from a client, ":nick!u@h command"
+     *
+     * @param from      source client
+     * @param command   command name
+     * @return
+     */
+    public ReplyWriter from(ChatClient from, String command) {
+        byte[] prefix = from.getUserPrefix();
+
+        if (prefix != null)
+            append(prefix);
+        else
+            append(':').append(from.getNick()).append("!u@h ");
+
+        return append(command);
+    }
+
+    /**
+     * Append bytes as is
+     *
+     * @param bytes     ASCII bytes
+     * @return
+     */
+    public ReplyWriter append(byte[] bytes) {
+
+        if (text != null) {
+            for (int i = 0; i < bytes.length; i++) {
+                text.append((char)bytes[i]);
+            }
+            return this;
+        }
+
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, data, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    /**
+     * Append an ASCII character
+     *
+     * @param c         the character
+     * @return
+     */
+    public ReplyWriter append(char c) {
+
+        if (text != null) {
+            text.append(c);
+            return this;
+        }
+
+        ensure(1);
+        data[length++] = (byte)c;
+        return this;
+    }
+
+    /**
+     * Append text in the codepage of the target
+     *
+     * @param s         the text
+     * @return
+     */
+    public ReplyWriter append(String s) {
+
+        if (text != null) {
+            text.append(s);
+            return this;
+        }
+
+        int n = s.length();
+        ensure(n);
+
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+
+            if (c >= 0x80) {
+                // give up on the fast path, rare enough to allocate
+                length -= i;
+                return append(s.getBytes(to.charset));
+            }
+
+            data[length++] = (byte)c;
+        }
+
+        return this;
+    }
+
+    /**
+     * Append a number in decimal
+     *
+     * @param value     the number
+     * @return
+     */
+    public ReplyWriter append(long value) {
+
+        if (text != null || value == Long.MIN_VALUE)
+            return append(Long.toString(value));
+
+        ensure(20);
+
+        if (value < 0) {
+            data[length++] = '-';
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+
+        int i = length + digits;
+        do {
+            data[--i] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        length += digits;
+        return this;
+    }
+
+    /**
+     * Terminate the line and queue it to the target
+     */
+    public void send() {
+        ChatClient client = to;
+        to = null;
+
+        if (text != null) {
+            client.putString(text.toString());
+            text = null;
+            return;
+        }
+
+        if (Log.isEnabled(Log.PROTO, Log.TRACE))
+            Log.log(Log.PROTO, Log.TRACE, client, " <- ", new String(data, 0, length, client.charset));
+
+        append(client.newline);
+        client.write(data, 0, length);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable bytes queued to many connections at once
+ * <p>
+ * A broadcast is encoded once into a buffer leased from the pool and every
+ * recipient queues a view of it instead of a copy. The buffer goes back to
+ * the pool when the last reference is released: the creator holds one and
+ * every queue holding a view holds one until the view has been written or
+ * discarded.
+ *
+ * @author Toni Spets
+ */
+public class SharedBuffer {
+
+    private BufferPool pool;
+    private ByteBuffer data;
+    private AtomicInteger refs;
+
+    /**
+     * Creates a new SharedBuffer with a single reference
+     *
+     * @param pool      pool to lease from
+     * @param bytes     the contents
+     */
+    public SharedBuffer(BufferPool pool, byte[] bytes) {
+        this.pool = pool;
+        data = pool.lease(bytes.length, null);
+        data.put(bytes).flip();
+        refs = new AtomicInteger(1);
+    }
+
+    /**
+     * Encode a line once
+     *
+     * @param text      the line
+     * @param end       line terminator
+     * @param charset   character set
+     * @return          buffer with a single reference
+     */
+    public static SharedBuffer encode(String text, String end, Charset charset) {
+        return new SharedBuffer(BufferPool.getDefault(), (text + end).getBytes(charset));
+    }
+
+    /**
+     * Get amount of bytes
+     *
+     * @return
+     */
+    public int size() {
+        return data.limit();
+    }
+
+    /**
+     * Take a reference and get an independent view of the bytes
+     *
+     * @return          read-only view positioned at the start
+     */
+    public ByteBuffer retain() {
+        refs.incrementAndGet();
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copy of the bytes, for capture
+     *
+     * @return
+     */
+    public byte[] toArray() {
+        byte[] bytes = new byte[data.limit()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Drop a reference, the last one returns the buffer to the pool
+     */
+    public void release() {
+        int left = refs.decrementAndGet();
+
+        if (left == 0)
+            pool.release(data);
+        else if (left < 0)
+            Log.log(Log.CORE, Log.ERROR, "SharedBuffer: released too many times", new Exception());
+    }
+}
@@ -1,112 +1,214 @@
-/*
- * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
- * 
- * Permission to use, copy, modify, and distribute this software for any
- * purpose with or without fee is hereby granted, provided that the above
- * copyright notice and this permission notice appear in all copies.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
- * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
- * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
- * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
- * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
- * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
- * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
- */
-package wol;
-
-import java.io.UnsupportedEncodingException;
-import java.nio.BufferOverflowException;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-
-/**
- * Implements a line buffered TCP client where lines are terminated with a
- * single NL.
- * 
- * This implementation also handles write buffer overflows by disconnecting the client
- * 
- * @author Toni Spets
- */
-abstract public class StringTCPClient extends TCPClient {
-
-    String encoding = "US-ASCII";
-
-    protected StringTCPClient(SocketChannel channel, Selector selector) {
-        super(channel, selector);
-    }
-
-    /**
-     * Get the current encoding name
-     * @return encoding name
-     */
-    public String getEncoding() {
-        return encoding;
-    }
-
-    /**
-     * Set new encoding for I/O
-     * @param newEncoding
-     * @throws UnsupportedEncodingException 
-     */
-    public void setEncoding(String newEncoding) throws UnsupportedEncodingException {
-        if (!Charset.isSupported(newEncoding))
-            throw new UnsupportedEncodingException(newEncoding);
-
-        encoding = newEncoding;
-    }
-
-    /**
-     * Queue a new line to be sent to the client
-     * 
-     * @param message a line without NL
-     */
-    public void putString(String message) {
-        try {
-            String messageNl = new String(message + "\n");
-            write(messageNl.getBytes(encoding));
-        } catch (UnsupportedEncodingException e) {
-            System.out.println(address + ":" + port + " is using unsupported encoding, disconnecting: " + e.getMessage());
-            disconnect(true);
-        }
-    }
-
-    /**
-     * Called when a new line arrives
-     * @param message a line without NL or CRNL
-     */
-    abstract protected void onString(String message);
-
-    protected void onRead() {
-
-        byte[] buf = inbuf.array();
-
-        int offset = 0, end = inbuf.limit();
-        for (int i = 0; i < end; i++) {
-            if (buf[i] == '\n') {
-                String message = null;
-
-                try {
-                    message = new String(buf, offset, i - offset - (i > 0 && buf[i-1] == '\r' ? 1 : 0), encoding);
-                } catch (Exception e) {
-                    System.out.println("Unexpected exception when converting bytes to string");
-                }
-
-                if (message != null && message.length() > 0) {
-                    onString(message);
-                }
-
-                offset = i + 1;
-
-                // ignore rest of the buffer if something already triggered a disconnect
-                if (disconnecting) {
-                    break;
-                }
-            }
-        }
-
-        inbuf.position(offset);
-
-    }
-}
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Implements a line buffered TCP client where lines are terminated with a
+ * single NL.
+ * 
+ * This implementation also handles write buffer overflows by disconnecting the client.
+ * Input lines longer than the maximum are discarded up to the next NL.
+ * 
+ * @author Toni Spets
+ */
+abstract public class StringTCPClient extends TCPClient {
+
+    String encoding = "US-ASCII";
+    Charset charset = StandardCharsets.US_ASCII;
+
+    /**
+     * Cached coders of the current encoding
+     */
+    TextCodec codec = new TextCodec(charset);
+
+    /**
+     * Terminates every line sent
+     */
+    protected String newline = "\n";
+
+    /**
+     * Longest accepted input line including its terminator
+     */
+    public static final int DEFAULT_MAX_LINE = 512;
+
+    static final Metrics.Counter linesTooLong = Metrics.getDefault().counter("wol_net_lines_too_long_total", "", "Input lines discarded for exceeding the maximum length");
+
+    /**
+     * View of the line being handled
+     */
+    private ByteSlice line = new ByteSlice();
+
+    /**
+     * Longest accepted input line, never more than the input buffer holds
+     */
+    protected int maxLine;
+
+    /**
+     * Bytes at the start of the input already searched for a NL
+     */
+    private int scanned;
+
+    /**
+     * Set while dropping the rest of a line that was too long
+     */
+    private boolean discarding;
+
+    /**
+     * Scratch space for copying input out of the direct input buffer, one
+     * per reactor thread
+     */
+    private static final ThreadLocal<byte[]> linebufs = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[INBUF_SIZE];
+        }
+    };
+
+    protected StringTCPClient(SocketChannel channel, Reactor reactor) {
+        super(channel, reactor);
+        maxLine = Math.min(WOL.getInt("WOL.maxLineLength", DEFAULT_MAX_LINE), INBUF_SIZE);
+    }
+
+    /**
+     * Get the current encoding name
+     * @return encoding name
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Set new encoding for I/O
+     * @param newEncoding
+     * @throws UnsupportedEncodingException 
+     */
+    public void setEncoding(String newEncoding) throws UnsupportedEncodingException {
+        if (!Charset.isSupported(newEncoding))
+            throw new UnsupportedEncodingException(newEncoding);
+
+        encoding = newEncoding;
+        charset = Charset.forName(newEncoding);
+        codec = new TextCodec(charset);
+    }
+
+    /**
+     * Queue a new line to be sent to the client
+     * <p>
+     * The line is encoded straight into the output buffer.
+     * 
+     * @param message a line without NL
+     */
+    public void putString(String message) {
+        write(message, newline, codec);
+    }
+
+    /**
+     * Called when a new line arrives
+     * @param message a line without NL or CRNL
+     */
+    abstract protected void onString(String message);
+
+    /**
+     * Called when a new line arrives, decodes it for onString
+     * <p>
+     * Handlers that can work on the raw bytes override this to skip the
+     * String. The slice is only valid until returning.
+     *
+     * @param line  a line without NL or CRNL, never empty
+     */
+    protected void onLine(ByteSlice line) {
+        onString(codec.decode(line.array(), line.offset(), line.length()));
+    }
+
+    /**
+     * Called once for every input line that was too long and discarded
+     */
+    protected void onLineTooLong() {
+        Log.log(Log.NET, Log.DEBUG, this, " input line too long, discarded");
+    }
+
+    /**
+     * Count and report a discarded line
+     */
+    private void tooLong() {
+        linesTooLong.inc();
+        onLineTooLong();
+    }
+
+    /**
+     * Splits the input into lines
+     * <p>
+     * Input is copied out of the direct buffer once per read, lines are
+     * found eight bytes at a time and passed on as views of the copy. A
+     * partial line is not searched again when more input arrives, and is
+     * dropped as soon as it can no longer fit the maximum length.
+     */
+    protected void onRead() {
+
+        byte[] linebuf = linebufs.get();
+
+        int start = inbuf.position(), length = inbuf.remaining();
+        inbuf.get(linebuf, 0, length);
+
+        int offset = 0;
+        while (offset < length) {
+            int nl = ByteSlice.indexOf(linebuf, offset + scanned, length, (byte)'\n');
+            if (nl < 0) {
+                scanned = length - offset;
+
+                // the line can not fit anymore, drop it all without waiting for the NL
+                if (scanned >= maxLine) {
+                    if (!discarding)
+                        tooLong();
+
+                    discarding = true;
+                    scanned = 0;
+                    offset = length;
+                }
+
+                break;
+            }
+
+            scanned = 0;
+
+            int end = nl > offset && linebuf[nl - 1] == '\r' ? nl - 1 : nl;
+            if (discarding) {
+                discarding = false;
+            } else if (nl + 1 - offset > maxLine) {
+                tooLong();
+            } else if (end > offset) {
+                line.set(linebuf, offset, end - offset);
+                onLine(line);
+            }
+
+            offset = nl + 1;
+
+            // ignore rest of the buffer if something already triggered a disconnect
+            if (disconnecting || released) {
+                break;
+            }
+        }
+
+        // a forced close gave the buffer back to the pool, it may be leased again
+        if (!released)
+            inbuf.position(start + offset);
+
+    }
+}
\ No newline at end of file
@@ -1,195 +1,674 @@
-/*
- * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
- * 
- * Permission to use, copy, modify, and distribute this software for any
- * purpose with or without fee is hereby granted, provided that the above
- * copyright notice and this permission notice appear in all copies.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
- * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
- * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
- * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
- * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
- * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
- * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
- */
-package wol;
-
-import java.io.IOException;
-import java.net.InetAddress;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-
-/**
- * Implements a buffered TCP client that can be used for both server and client
- * connections.
- *
- * @author Toni Spets
- */
-public class TCPClient implements SocketEvent {
-
-    public static final int INBUF_SIZE = 8192;
-    public static final int OUTBUF_SIZE = 2048;
-
-    protected Selector selector;
-    protected SocketChannel channel;
-    protected InetAddress address;
-    protected int port;
-    protected ByteBuffer inbuf;
-    protected ByteBuffer outbuf;
-    protected boolean disconnecting;
-
-    /**
-     * Creates a new TCPClient instance
-     * 
-     * @param channel   pre-created channel for communication
-     * @param selector  the main selector that is used to request events
-     */
-    protected TCPClient(SocketChannel channel, Selector selector) {
-        inbuf = ByteBuffer.allocate(INBUF_SIZE);
-        outbuf = ByteBuffer.allocate(OUTBUF_SIZE);
-        this.channel = channel;
-        this.selector = selector;
-        address = channel.socket().getInetAddress();
-        port = channel.socket().getPort();
-        setOps();
-    }
-
-    /**
-     * Requests for events from the selector
-     */
-    protected void setOps() {
-        int ops = SelectionKey.OP_READ;
-
-        if (!channel.isConnected())
-            ops |= SelectionKey.OP_CONNECT;
-
-        // if out buffer has data, request write
-        if (outbuf.position() > 0)
-            ops |= SelectionKey.OP_WRITE;
-
-        try {
-            if (channel.isOpen())
-                channel.register(selector, ops, this);
-        } catch (IOException e) {
-            System.out.println("TCPClient: Unexpected exception " + e + " while registering: " + e.getMessage());
-        }
-    }
-
-    /**
-     * Disconnects the client gracefully by flushing the output buffer
-     */
-    protected void disconnect() {
-        disconnect(false);
-    }
-
-    /**
-     * Disconnects the client
-     * 
-     * @param force do not flush the output buffer
-     */
-    protected void disconnect(boolean force) {
-
-        // allow graceful disconnect
-        if (!force && outbuf.position() > 0) {
-            disconnecting = true;
-            return;
-        }
-
-        onDisconnect();
-
-        try {
-            if (channel.isOpen())
-                channel.close();
-        } catch (IOException e) {
-            // should never reach
-        }
-    }
-
-    public void canAccept() throws IOException {}
-
-    public void canConnect() throws IOException {
-        onConnect();
-    }
-
-    public void canRead() throws IOException {
-
-        if (inbuf.remaining() == 0) {
-            System.out.println(address + ":" + port + " read buffer full, disconnecting");
-            disconnect(true);
-            return;
-        }
-
-        if (channel.read(inbuf) == -1) {
-            disconnect();
-            return;
-        }
-
-        inbuf.flip();
-        onRead();
-        inbuf.compact();
-        setOps();
-    }
-
-    public void canWrite() throws IOException {
-        // TODO: push outbuf in chunks rather than everything at once!
-        outbuf.flip();
-        onWrite();
-
-        channel.write(outbuf);
-
-        outbuf.clear();
-        setOps();
-
-        // finalize graceful disconnect
-        if (disconnecting)
-            disconnect(true);
-    }
-
-    /**
-     * Write to output buffer
-     * @param data the bytes to send
-     */
-    protected void write(byte[] data) {
-        try {
-            outbuf.put(data);
-            setOps();
-        } catch (BufferOverflowException e) {
-            System.out.println(address + ":" + port + " write buffer full, disconnecting");
-            disconnect(true);
-        }
-    }
-
-    public void close() throws IOException {
-
-        onDisconnect();
-
-        if (channel.isOpen())
-            channel.close();
-    }
-
-    public void think(long now) {};
-
-    /**
-     * Called when this instance is connected to the other end
-     */
-    protected void onConnect() {};
-
-    /**
-     * Called when the input buffer has data
-     */
-    protected void onRead() {};
-
-    /**
-     * Called before writing the output buffer, this is usually not needed
-     */
-    protected void onWrite() {}
-
-    /**
-     * Called when the channel is disconnected
-     */
-    protected void onDisconnect() {};
-}
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Implements a buffered TCP client that can be used for both server and client
+ * connections.
+ * <p>
+ * I/O buffers are leased from the shared BufferPool and returned when the
+ * connection is closed.
+ *
+ * @author Toni Spets
+ */
+public class TCPClient implements SocketEvent {
+
+    public static final int INBUF_SIZE = 8192;
+
+    /**
+     * Default limit of pending output per connection
+     */
+    public static final int WRITE_HIGH_WATER = 262144;
+
+    /**
+     * Socket I/O of all connections
+     */
+    static final Metrics.Counter readCalls = Metrics.getDefault().counter("wol_net_read_calls_total", "", "Socket reads");
+    static final Metrics.Counter readBytes = Metrics.getDefault().counter("wol_net_read_bytes_total", "", "Bytes read from sockets");
+    static final Metrics.Counter writeCalls = Metrics.getDefault().counter("wol_net_write_calls_total", "", "Socket writes");
+    static final Metrics.Counter writeBytes = Metrics.getDefault().counter("wol_net_write_bytes_total", "", "Bytes written to sockets");
+
+    protected Reactor reactor;
+    protected SocketChannel channel;
+    protected InetAddress address;
+    protected int port;
+    protected ByteBuffer inbuf;
+    protected WriteQueue outbuf;
+    protected volatile boolean disconnecting;
+
+    /**
+     * Set when the buffers have been returned to the pool
+     */
+    volatile boolean released;
+
+    /**
+     * Set once a forced close has been handed to our reactor
+     */
+    private final AtomicBoolean closeScheduled = new AtomicBoolean();
+
+    /**
+     * Set by the first teardown, a handler writing to us while we close
+     * must not start another one
+     */
+    private final AtomicBoolean closing = new AtomicBoolean();
+
+    /**
+     * Forced close run by our reactor for a disconnect from another thread
+     */
+    private final Runnable closeTask = new Runnable() {
+        public void run() {
+            if (!released)
+                disconnect(true);
+        }
+    };
+
+    /**
+     * Writer thread when driven by the ThreadEngine, null otherwise
+     */
+    volatile Thread writer;
+
+    /**
+     * Reader thread when driven by the ThreadEngine, null otherwise, it
+     * owns the input buffer
+     */
+    volatile Thread reader;
+
+    /**
+     * Set when the input buffer has been returned to the pool
+     */
+    private boolean inputReleased;
+
+    /**
+     * Limiter this connection is accounted to, can be null
+     */
+    private ConnectionLimiter limiter;
+
+    /**
+     * Client is disconnected when more than this many bytes are pending
+     */
+    protected int writeHighWater;
+
+    /**
+     * Registration with the selector, null until registered
+     */
+    private SelectionKey key;
+
+    /**
+     * Interest ops last set on the key
+     */
+    private int interestOps;
+
+    /**
+     * Set while a flush is scheduled with the reactor
+     */
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+
+    /**
+     * Set while small output is held back by the reactor
+     */
+    private boolean corked;
+
+    /**
+     * Schedules a flush when output is queued from another thread
+     */
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            reactor.flushLater(TCPClient.this);
+        }
+    };
+
+    /**
+     * Traffic capture, null when not capturing
+     */
+    private Capture capture;
+    private int captureId;
+
+    /**
+     * Creates a new TCPClient instance
+     * 
+     * @param channel   pre-created channel for communication
+     * @param reactor   the reactor that is used to request events
+     */
+    protected TCPClient(SocketChannel channel, Reactor reactor) {
+        inbuf = BufferPool.getDefault().lease(INBUF_SIZE, channel);
+        outbuf = new WriteQueue(BufferPool.getDefault(), channel);
+        writeHighWater = WOL.getInt("WOL.writeHighWater", WRITE_HIGH_WATER);
+        this.channel = channel;
+        this.reactor = reactor;
+        address = channel.socket().getInetAddress();
+        port = channel.socket().getPort();
+
+        capture = Capture.getDefault();
+        if (capture != null)
+            captureId = capture.open(channel.socket().getLocalPort());
+
+        setOps();
+    }
+
+    /**
+     * Requests for events from the selector
+     * <p>
+     * When called from another reactor thread the request is handed over to
+     * our own reactor. A blocking channel has no selector, its writer thread
+     * is woken up instead. The channel is registered once, after that only
+     * changed interest ops are set on its key.
+     */
+    protected void setOps() {
+
+        if (channel.isBlocking()) {
+            Thread t = writer;
+            if (t != null)
+                LockSupport.unpark(t);
+            return;
+        }
+
+        if (!reactor.inReactor()) {
+            reactor.execute(new Runnable() {
+                public void run() {
+                    setOps();
+                }
+            });
+            return;
+        }
+
+        int ops = SelectionKey.OP_READ;
+
+        if (!channel.isConnected())
+            ops |= SelectionKey.OP_CONNECT;
+
+        // if out buffer has data, request write
+        synchronized (this) {
+            if (!outbuf.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+        }
+
+        if (!channel.isOpen())
+            return;
+
+        if (key != null && key.isValid()) {
+            if (ops != interestOps)
+                key.interestOps(ops);
+            interestOps = ops;
+            return;
+        }
+
+        try {
+            key = channel.register(reactor.getSelector(), ops, this);
+            interestOps = ops;
+        } catch (IOException e) {
+            Log.log(Log.NET, Log.ERROR, "TCPClient: Unexpected exception while registering: ", e);
+        }
+    }
+
+    /**
+     * Have the output flushed at the end of the current loop iteration of
+     * our reactor
+     * <p>
+     * Can be called from any thread, output queued while a flush is pending
+     * goes out with it. A blocking channel has its writer thread woken up
+     * instead.
+     */
+    protected void flushLater() {
+
+        if (channel.isBlocking()) {
+            setOps();
+            return;
+        }
+
+        if (!flushPending.compareAndSet(false, true))
+            return;
+
+        if (reactor.inReactor())
+            reactor.flushLater(this);
+        else
+            reactor.execute(flushTask);
+    }
+
+    /**
+     * Write as much output as the socket takes, called by the reactor at
+     * the end of a loop iteration
+     * <p>
+     * Small output is held back when the reactor is corking, unless a full
+     * segment has been queued since.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        flushPending.set(false);
+
+        if (reactor.isCorking()) {
+            int size;
+            synchronized (this) {
+                size = outbuf.size();
+            }
+
+            if (size > 0 && size < WriteQueue.SEGMENT_SIZE) {
+                if (!corked) {
+                    corked = true;
+                    reactor.cork(this);
+                }
+                return;
+            }
+        }
+
+        corked = false;
+        writeOut();
+    }
+
+    /**
+     * Write held back output, called by the reactor at the cork deadline
+     *
+     * @throws IOException
+     */
+    void uncork() throws IOException {
+
+        if (!corked)
+            return;
+
+        corked = false;
+        writeOut();
+    }
+
+    /**
+     * Try writing right away and only wait for OP_WRITE with what is left
+     *
+     * @throws IOException
+     */
+    private void writeOut() throws IOException {
+        boolean drained;
+
+        if (!channel.isConnected())
+            return;
+
+        synchronized (this) {
+            if (released)
+                return;
+
+            if (!outbuf.isEmpty()) {
+                writeCalls.inc();
+                writeBytes.add(outbuf.writeTo(channel));
+            }
+
+            drained = outbuf.isEmpty();
+        }
+
+        setOps();
+
+        // finalize graceful disconnect once everything is out
+        if (disconnecting && drained)
+            disconnect(true);
+    }
+
+    /**
+     * Disconnects the client gracefully by flushing the output buffer
+     */
+    protected void disconnect() {
+        disconnect(false);
+    }
+
+    /**
+     * Disconnects the client
+     * <p>
+     * A forced disconnect from a thread other than the reactor of the
+     * connection is run later by that reactor, only it may return the input
+     * buffer.
+     * 
+     * @param force do not flush the output buffer
+     */
+    protected void disconnect(boolean force) {
+
+        // allow graceful disconnect, a writer thread may hold output taken
+        // from the queue already so it always gets to finish
+        if (!force) {
+            boolean threaded = channel.isBlocking() && writer != null;
+            boolean later;
+
+            synchronized (this) {
+                later = threaded || !outbuf.isEmpty();
+                if (later)
+                    disconnecting = true;
+            }
+
+            if (later) {
+                if (threaded)
+                    setOps();
+                return;
+            }
+        }
+
+        // the reactor may be using the input buffer right now, tear down there
+        if (!channel.isBlocking() && reactor != null && !reactor.inReactor()) {
+            if (closeScheduled.compareAndSet(false, true))
+                reactor.execute(closeTask);
+            return;
+        }
+
+        if (!closing.compareAndSet(false, true))
+            return;
+
+        onDisconnect();
+
+        try {
+            if (channel.isOpen())
+                channel.close();
+        } catch (IOException e) {
+            // should never reach
+        }
+
+        releaseResources();
+    }
+
+    /**
+     * Account this connection to a limiter until it is closed
+     * 
+     * @param newLimiter    the limiter
+     */
+    synchronized void setLimiter(ConnectionLimiter newLimiter) {
+
+        // closed already while being created
+        if (released) {
+            newLimiter.release(address);
+            return;
+        }
+
+        limiter = newLimiter;
+    }
+
+    /**
+     * Return I/O buffers to the pool and the connection slot to the limiter,
+     * called once the channel is closed
+     */
+    private synchronized void releaseResources() {
+
+        if (released)
+            return;
+
+        released = true;
+        outbuf.clear();
+
+        // a reader thread may be inside canRead, it returns the buffer on exit
+        Thread t = reader;
+        if (t == null || t == Thread.currentThread())
+            releaseInput();
+
+        if (capture != null)
+            capture.close(captureId);
+
+        if (limiter != null) {
+            limiter.release(address);
+            limiter = null;
+        }
+
+        // let a parked writer notice
+        if (writer != null)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Return the input buffer to the pool, only called by the thread that
+     * reads into it
+     */
+    synchronized void releaseInput() {
+
+        if (inputReleased)
+            return;
+
+        inputReleased = true;
+        BufferPool.getDefault().release(inbuf);
+    }
+
+    public void canAccept() throws IOException {}
+
+    public void canConnect() throws IOException {
+
+        if (!channel.finishConnect())
+            return;
+
+        // remote end is known only now for outgoing connections
+        address = channel.socket().getInetAddress();
+        port = channel.socket().getPort();
+
+        setOps();
+        onConnect();
+    }
+
+    public void canRead() throws IOException {
+
+        // closed since the event was selected
+        if (released)
+            return;
+
+        if (inbuf.remaining() == 0) {
+            Log.log(Log.NET, Log.WARN, this, " read buffer full, disconnecting");
+            disconnect(true);
+            return;
+        }
+
+        int from = inbuf.position();
+
+        readCalls.inc();
+        if (channel.read(inbuf) == -1) {
+            disconnect();
+            return;
+        }
+
+        readBytes.add(inbuf.position() - from);
+
+        if (capture != null)
+            capture.in(captureId, inbuf, from, inbuf.position());
+
+        inbuf.flip();
+        onRead();
+
+        // a handler closed us and the buffer is back in the pool
+        if (released)
+            return;
+
+        inbuf.compact();
+        setOps();
+    }
+
+    public void canWrite() throws IOException {
+        boolean drained;
+
+        // the writer thread owns a blocking channel
+        if (channel.isBlocking()) {
+            setOps();
+            return;
+        }
+
+        synchronized (this) {
+            onWrite();
+            writeCalls.inc();
+            writeBytes.add(outbuf.writeTo(channel));
+            drained = outbuf.isEmpty();
+        }
+
+        setOps();
+
+        // finalize graceful disconnect once everything is out
+        if (disconnecting && drained)
+            disconnect(true);
+    }
+
+    /**
+     * Write to output buffer
+     * <p>
+     * Can be called from any reactor thread.
+     * 
+     * @param data the bytes to send
+     */
+    protected void write(byte[] data) {
+        write(data, 0, data.length);
+    }
+
+    /**
+     * Write part of an array to output buffer
+     * <p>
+     * Can be called from any reactor thread. The bytes are copied.
+     *
+     * @param data      source array
+     * @param offset    index of the first byte
+     * @param length    amount of bytes
+     */
+    protected void write(byte[] data, int offset, int length) {
+        boolean overflow;
+
+        synchronized (this) {
+            // nothing to do for a closed connection
+            if (released)
+                return;
+
+            overflow = outbuf.size() + length > writeHighWater;
+            if (!overflow) {
+                outbuf.put(data, offset, length);
+
+                if (capture != null)
+                    capture.out(captureId, data, offset, length);
+            }
+        }
+
+        written(overflow);
+    }
+
+    /**
+     * Encode text to output buffer
+     * <p>
+     * Can be called from any reactor thread.
+     *
+     * @param text      the text to send
+     * @param end       appended after the text, like a line terminator
+     * @param codec     codec of the connection
+     */
+    protected void write(String text, String end, TextCodec codec) {
+        boolean overflow;
+
+        synchronized (this) {
+            if (released)
+                return;
+
+            // characters are a lower bound of the encoded size
+            overflow = outbuf.size() + text.length() + end.length() > writeHighWater;
+            if (!overflow) {
+                if (capture != null) {
+                    byte[] data = (text + end).getBytes(codec.charset());
+                    outbuf.put(data);
+                    capture.out(captureId, data);
+                } else {
+                    codec.encode(text, end, outbuf);
+                }
+            }
+        }
+
+        written(overflow);
+    }
+
+    /**
+     * Queue a shared buffer to output by reference
+     * <p>
+     * Can be called from any reactor thread.
+     *
+     * @param buffer    the bytes to send, a reference is taken
+     */
+    protected void write(SharedBuffer buffer) {
+        boolean overflow;
+
+        synchronized (this) {
+            if (released)
+                return;
+
+            overflow = outbuf.size() + buffer.size() > writeHighWater;
+            if (!overflow) {
+                outbuf.put(buffer);
+
+                if (capture != null)
+                    capture.out(captureId, buffer.toArray());
+            }
+        }
+
+        written(overflow);
+    }
+
+    /**
+     * Schedule a flush after output was added, or disconnect on overflow
+     *
+     * @param overflow  output did not fit under the high water mark
+     */
+    private void written(boolean overflow) {
+
+        if (overflow) {
+            // stays full until our reactor gets to close it
+            if (!closeScheduled.get() && !closing.get())
+                Log.log(Log.NET, Log.WARN, this, " write buffer full, disconnecting");
+            disconnect(true);
+            return;
+        }
+
+        flushLater();
+    }
+
+    public void close() throws IOException {
+
+        if (!closing.compareAndSet(false, true))
+            return;
+
+        onDisconnect();
+
+        try {
+            if (channel.isOpen())
+                channel.close();
+        } finally {
+            releaseResources();
+        }
+    }
+
+    /**
+     * Remote end of the connection, used in log messages
+     * 
+     * @return 
+     */
+    public String toString() {
+        return address + ":" + port;
+    }
+
+    /**
+     * Called when this instance is connected to the other end
+     */
+    protected void onConnect() {};
+
+    /**
+     * Called when the input buffer has data
+     */
+    protected void onRead() {};
+
+    /**
+     * Called before writing the output buffer, this is usually not needed
+     */
+    protected void onWrite() {}
+
+    /**
+     * Called when the channel is disconnected
+     */
+    protected void onDisconnect() {};
+}
@@ -1,77 +1,245 @@
-/*
- * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
- * 
- * Permission to use, copy, modify, and distribute this software for any
- * purpose with or without fee is hereby granted, provided that the above
- * copyright notice and this permission notice appear in all copies.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
- * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
- * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
- * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
- * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
- * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
- * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
- */
-package wol;
-
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.nio.channels.*;
-
-/**
- * Implements an abstract TCP server that can accept clients
- *
- * @author Toni Spets
- */
-abstract public class TCPServer implements SocketEvent {
-
-    protected ServerSocketChannel channel;
-    protected Selector selector;
-
-    /**
-     * Creates a new TCPServer instance
-     * 
-     * @param address   local address that we listen on
-     * @param port      local port that we listen on
-     * @param selector  the main selector that is used to request events
-     * @throws IOException 
-     */
-    protected TCPServer(InetAddress address, int port, Selector selector) throws IOException {
-        this.selector = selector;
-
-        channel = ServerSocketChannel.open();
-        channel.socket().bind(new InetSocketAddress(address, port));
-        channel.configureBlocking(false);
-        channel.register(selector, SelectionKey.OP_ACCEPT, this);
-    }
-
-    public void canAccept() {
-        try {
-            SocketChannel clientChannel = channel.accept();
-            clientChannel.configureBlocking(false);
-            onAccept(clientChannel);
-        } catch(IOException e) {
-            System.out.println("TCPServer: Unexpected exception " + e + ": " + e.getMessage());
-        }
-    }
-
-    public void canConnect() {}
-    public void canRead() {}
-    public void canWrite() {}
-
-    public void close() throws IOException {
-        if (channel.isOpen())
-            channel.close();
-    }
-
-    public void think(long now) {}
-
-    /**
-     * Called when a new client was accepted
-     * @param clientChannel new connected client channel
-     */
-    abstract protected void onAccept(SocketChannel clientChannel);
-
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+
+/**
+ * Implements an abstract TCP server that can accept clients
+ * <p>
+ * The listening socket lives in the acceptor reactor, every accepted client
+ * is handed over to the next reactor of the group. Pending connections are
+ * drained in batches and checked against a per-source connection limit
+ * before any client is created for them.
+ *
+ * @author Toni Spets
+ */
+abstract public class TCPServer implements SocketEvent {
+
+    public static final int DEFAULT_BACKLOG = 1024;
+    public static final int DEFAULT_ACCEPT_BUDGET = 64;
+    public static final int DEFAULT_MAX_PER_IP = 32;
+
+    protected ServerSocketChannel channel;
+    protected ReactorGroup reactors;
+
+    /**
+     * Maximum amount of connections accepted per OP_ACCEPT event
+     */
+    protected int acceptBudget;
+
+    /**
+     * Open connections per source address
+     */
+    protected ConnectionLimiter limiter;
+
+    /**
+     * Send buffer size of accepted sockets, 0 for system default
+     */
+    protected int sndbuf;
+
+    /**
+     * Creates a new TCPServer instance
+     * <p>
+     * Backlog, socket buffer sizes and per-source limit are read from the
+     * config using the class name as prefix, like ChatServer.backlog and
+     * ChatServer.maxPerIp. With reusePort set several processes can listen
+     * on the same port and the kernel spreads new connections between them.
+     * 
+     * @param address   local address that we listen on
+     * @param port      local port that we listen on
+     * @param reactors  reactors that handle the accepted clients
+     * @throws IOException 
+     */
+    protected TCPServer(InetAddress address, int port, ReactorGroup reactors) throws IOException {
+        this.reactors = reactors;
+
+        String prefix = getClass().getSimpleName();
+        acceptBudget = WOL.getInt("WOL.acceptBudget", DEFAULT_ACCEPT_BUDGET);
+        limiter = new ConnectionLimiter(WOL.getInt(prefix + ".maxPerIp", WOL.getInt("WOL.maxPerIp", DEFAULT_MAX_PER_IP)));
+
+        sndbuf = WOL.getInt(prefix + ".sndbuf", WOL.getInt("WOL.sndbuf", 0));
+
+        channel = ServerSocketChannel.open();
+
+        if (WOL.getInt(prefix + ".reusePort", WOL.getInt("WOL.reusePort", 0)) > 0) {
+            if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            else
+                Log.log(Log.NET, Log.WARN, prefix, ": SO_REUSEPORT not supported, listening exclusively");
+        }
+
+        // accepted sockets inherit the receive buffer, must be set before listening
+        int rcvbuf = WOL.getInt(prefix + ".rcvbuf", WOL.getInt("WOL.rcvbuf", 0));
+        if (rcvbuf > 0)
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, rcvbuf);
+
+        channel.socket().bind(new InetSocketAddress(address, port), WOL.getInt(prefix + ".backlog", DEFAULT_BACKLOG));
+
+        // blocking accept in its own thread when using the thread engine
+        if (reactors.getEngine() != null) {
+            reactors.getEngine().listen(this);
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.register(reactors.getAcceptor().getSelector(), SelectionKey.OP_ACCEPT, this);
+    }
+
+    public void canAccept() {
+        try {
+            for (int i = 0; i < acceptBudget; i++) {
+                final SocketChannel clientChannel = channel.accept();
+
+                // accept queue drained
+                if (clientChannel == null)
+                    return;
+
+                if (!admit(clientChannel))
+                    continue;
+
+                try {
+                    clientChannel.configureBlocking(false);
+                } catch (IOException e) {
+                    Log.log(Log.NET, Log.WARN, "TCPServer: Failed to set up connection: ", e.getMessage());
+                    reject(clientChannel);
+                    continue;
+                }
+
+                final Reactor reactor = reactors.next();
+                reactor.execute(new Runnable() {
+                    public void run() {
+                        createClient(clientChannel, reactor);
+                    }
+                });
+            }
+        } catch(IOException e) {
+            Log.log(Log.NET, Log.ERROR, "TCPServer: Unexpected exception ", e);
+        }
+    }
+
+    /**
+     * Account a new connection to its source, connections over the limit
+     * are closed right away
+     * 
+     * @param clientChannel new connected client channel
+     * @return              false if the connection was rejected
+     */
+    boolean admit(SocketChannel clientChannel) {
+
+        if (!isOverloaded() && limiter.acquire(clientChannel.socket().getInetAddress())) {
+            if (sndbuf > 0) {
+                try {
+                    clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, sndbuf);
+                } catch (IOException e) {
+                    Log.log(Log.NET, Log.WARN, "TCPServer: Failed to set send buffer: ", e.getMessage());
+                }
+            }
+            return true;
+        }
+
+        try {
+            clientChannel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+
+        return false;
+    }
+
+    /**
+     * Create the client for an admitted connection
+     * 
+     * @param clientChannel new connected client channel
+     * @param reactor       reactor the client is to be registered with
+     * @return              the new client or null
+     */
+    TCPClient createClient(SocketChannel clientChannel, Reactor reactor) {
+        TCPClient client;
+
+        try {
+            client = onAccept(clientChannel, reactor);
+        } catch (RuntimeException e) {
+            Log.log(Log.NET, Log.ERROR, "TCPServer: Unexpected exception when creating client: ", e);
+            reject(clientChannel);
+            return null;
+        }
+
+        if (client != null)
+            client.setLimiter(limiter);
+        else
+            limiter.release(clientChannel.socket().getInetAddress());
+
+        return client;
+    }
+
+    /**
+     * Give back the slot of an admitted connection that could not be set
+     * up and close it
+     * 
+     * @param clientChannel new connected client channel
+     */
+    void reject(SocketChannel clientChannel) {
+        // the address is gone once the channel is closed
+        limiter.release(clientChannel.socket().getInetAddress());
+
+        try {
+            clientChannel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Should new connections be turned away because of overload?
+     * 
+     * @return 
+     */
+    protected boolean isOverloaded() {
+        return false;
+    }
+
+    /**
+     * Get the per-source connection limiter
+     * 
+     * @return 
+     */
+    public ConnectionLimiter getLimiter() {
+        return limiter;
+    }
+
+    public void canConnect() {}
+    public void canRead() {}
+    public void canWrite() {}
+
+    public void close() throws IOException {
+        if (channel.isOpen())
+            channel.close();
+    }
+
+    /**
+     * Called in the target reactor thread when a new client was accepted
+     * @param clientChannel new connected client channel
+     * @param reactor       reactor the client is to be registered with
+     * @return              the new client
+     */
+    abstract protected TCPClient onAccept(SocketChannel clientChannel, Reactor reactor);
+
 }
\ No newline at end of file
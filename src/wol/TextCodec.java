@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encoder and decoder of a connection for its current codepage
+ * <p>
+ * Text is encoded straight into the segments of a WriteQueue. When the
+ * codepage maps ASCII to itself, which all the Windows codepages clients
+ * use do, ASCII text is copied as is and the coders only see the rest.
+ * Unmappable characters become the replacement of the codepage like with
+ * String.getBytes.
+ * <p>
+ * Encoding is serialized by the lock of the connection, decoding happens
+ * on its reactor only.
+ *
+ * @author Toni Spets
+ */
+public class TextCodec {
+
+    /**
+     * Room the coders get, enough for any character
+     */
+    private static final int MIN_ROOM = 16;
+
+    /**
+     * Every ASCII character
+     */
+    private static final String ASCII;
+
+    static {
+        char[] chars = new char[128];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char)i;
+        }
+        ASCII = new String(chars);
+    }
+
+    /**
+     * ASCII is copied through here into the queue
+     */
+    private static class Scratch {
+        char[] chars = new char[512];
+        byte[] bytes = new byte[512];
+    }
+
+    private static final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private Charset charset;
+    private CharsetEncoder encoder;
+    private CharsetDecoder decoder;
+
+    /**
+     * Set when ASCII encodes to the same bytes
+     */
+    private boolean ascii;
+
+    /**
+     * Creates a new TextCodec
+     *
+     * @param charset   character set of the connection
+     */
+    public TextCodec(Charset charset) {
+        this.charset = charset;
+        encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ascii = Arrays.equals(ASCII.getBytes(charset), ASCII.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Get character set
+     *
+     * @return
+     */
+    public Charset charset() {
+        return charset;
+    }
+
+    /**
+     * Does ASCII encode to the same bytes?
+     *
+     * @return
+     */
+    public boolean isAscii() {
+        return ascii;
+    }
+
+    /**
+     * Encode a line and its terminator to the end of a queue
+     *
+     * @param text      the line
+     * @param end       line terminator
+     * @param out       target queue
+     */
+    public void encode(String text, String end, WriteQueue out) {
+        Scratch scratch = scratches.get();
+        int length = text.length(), total = length + end.length();
+
+        // the usual short ASCII line goes in with a single copy
+        if (ascii && total <= scratch.chars.length) {
+            text.getChars(0, length, scratch.chars, 0);
+            end.getChars(0, total - length, scratch.chars, length);
+
+            if (copyAscii(scratch, total)) {
+                out.put(scratch.bytes, 0, total);
+                return;
+            }
+        }
+
+        encode(text, out, scratch);
+        encode(end, out, scratch);
+    }
+
+    /**
+     * Narrow chars of the scratch space to bytes
+     *
+     * @param scratch   scratch space
+     * @param length    amount of chars
+     * @return          false if there was anything but ASCII
+     */
+    private static boolean copyAscii(Scratch scratch, int length) {
+        char[] chars = scratch.chars;
+        byte[] bytes = scratch.bytes;
+        int high = 0;
+
+        // no early exit so the loop stays simple enough to vectorize
+        for (int i = 0; i < length; i++) {
+            high |= chars[i];
+            bytes[i] = (byte)chars[i];
+        }
+
+        return high < 0x80;
+    }
+
+    /**
+     * Encode text to the end of a queue
+     *
+     * @param text      the text
+     * @param out       target queue
+     * @param scratch   scratch space
+     */
+    private void encode(String text, WriteQueue out, Scratch scratch) {
+        int i = 0, length = text.length();
+
+        if (ascii) {
+            while (i < length) {
+                int n = Math.min(length - i, scratch.chars.length);
+                text.getChars(i, i + n, scratch.chars, 0);
+
+                if (!copyAscii(scratch, n))
+                    break;
+
+                out.put(scratch.bytes, 0, n);
+                i += n;
+            }
+
+            if (i == length)
+                return;
+        }
+
+        CharBuffer in = CharBuffer.wrap(text, i, length);
+        encoder.reset();
+
+        CoderResult result;
+        do {
+            ByteBuffer tail = out.reserve(MIN_ROOM);
+            int start = tail.position();
+            result = encoder.encode(in, tail, true);
+            out.commit(tail.position() - start);
+        } while (result.isOverflow());
+
+        do {
+            ByteBuffer tail = out.reserve(MIN_ROOM);
+            int start = tail.position();
+            result = encoder.flush(tail);
+            out.commit(tail.position() - start);
+        } while (result.isOverflow());
+    }
+
+    /**
+     * Decode bytes
+     *
+     * @param data      source array
+     * @param offset    index of the first byte
+     * @param length    amount of bytes
+     * @return
+     */
+    public String decode(byte[] data, int offset, int length) {
+
+        if (ascii) {
+            int i = offset, end = offset + length;
+            while (i < end && data[i] >= 0) {
+                i++;
+            }
+
+            // one char per byte, the String keeps them as bytes
+            if (i == end)
+                return new String(data, offset, length, StandardCharsets.ISO_8859_1);
+        }
+
+        try {
+            return decoder.decode(ByteBuffer.wrap(data, offset, length)).toString();
+        } catch (CharacterCodingException e) {
+            // not thrown when replacing
+            return new String(data, offset, length, charset);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread per connection engine
+ * <p>
+ * An alternative to the selector reactors: every listener accepts in its
+ * own thread and every connection gets a reader and a writer thread that
+ * use blocking I/O. The same TCPClient callbacks are used, so handlers can
+ * block without stalling other connections. Virtual threads are used when
+ * the runtime has them, platform threads otherwise.
+ * <p>
+ * Timers and tasks still run in the reactor the client was created with.
+ *
+ * @author Toni Spets
+ */
+public class ThreadEngine {
+
+    private ThreadFactory factory;
+
+    /**
+     * Accept threads waiting for start()
+     */
+    private ArrayList<Thread> acceptors;
+
+    /**
+     * Creates a new ThreadEngine
+     */
+    public ThreadEngine() {
+        factory = createFactory();
+        acceptors = new ArrayList<Thread>();
+    }
+
+    /**
+     * Get a virtual thread factory through reflection, falls back to daemon
+     * platform threads on runtimes without virtual threads
+     *
+     * @return
+     */
+    private static ThreadFactory createFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            Log.log(Log.CORE, Log.INFO, "ThreadEngine: using virtual threads");
+            return (ThreadFactory)factory.invoke(builder);
+        } catch (Exception e) {
+            Log.log(Log.CORE, Log.INFO, "ThreadEngine: virtual threads not available, using platform threads");
+            return new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+        }
+    }
+
+    /**
+     * Start accepting clients for a server in a new thread once the engine
+     * is started
+     *
+     * @param server    server with a bound blocking channel
+     */
+    public void listen(final TCPServer server) {
+        final Reactor reactor = server.reactors.getAcceptor();
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (server.channel.isOpen()) {
+                    try {
+                        SocketChannel clientChannel = server.channel.accept();
+
+                        if (!server.admit(clientChannel))
+                            continue;
+
+                        TCPClient client = server.createClient(clientChannel, reactor);
+
+                        if (client != null)
+                            attach(client);
+                    } catch (IOException e) {
+                        if (server.channel.isOpen())
+                            Log.log(Log.NET, Log.ERROR, "ThreadEngine: Unexpected exception when accepting: ", e);
+                    }
+                }
+            }
+        }, "accept-" + server.channel.socket().getLocalPort());
+
+        t.setDaemon(true);
+        acceptors.add(t);
+    }
+
+    /**
+     * Start all accept threads
+     */
+    public void start() {
+        for (Iterator<Thread> i = acceptors.iterator(); i.hasNext();) {
+            i.next().start();
+        }
+
+        acceptors.clear();
+    }
+
+    /**
+     * Start the reader and writer threads of a client
+     *
+     * @param client    client with a blocking channel
+     */
+    public void attach(final TCPClient client) {
+
+        Thread writer = factory.newThread(new Runnable() {
+            public void run() {
+                write(client);
+            }
+        });
+
+        Thread reader = factory.newThread(new Runnable() {
+            public void run() {
+                read(client);
+            }
+        });
+
+        client.writer = writer;
+        client.reader = reader;
+        writer.start();
+        reader.start();
+    }
+
+    /**
+     * Reader loop, feeds the input buffer until the client disconnects and
+     * returns it to the pool after that
+     *
+     * @param client    the client
+     */
+    private void read(TCPClient client) {
+        try {
+            while (client.channel.isOpen() && !client.disconnecting) {
+                try {
+                    client.canRead();
+                } catch (RuntimeException e) {
+                    Log.log(Log.CORE, Log.ERROR, "ThreadEngine: Unexpected exception in handler:", e);
+
+                    // the input buffer was never compacted, nothing more can be read
+                    client.close();
+                }
+            }
+        } catch (IOException e) {
+            if (client.channel.isOpen()) {
+                try {
+                    client.close();
+                } catch (IOException d) {}
+            }
+        } finally {
+            client.releaseInput();
+        }
+    }
+
+    /**
+     * Writer loop, takes everything queued so far and writes it outside the
+     * client lock so a slow receiver never blocks the sender
+     *
+     * @param client    the client
+     */
+    private void write(TCPClient client) {
+        WriteQueue pending = new WriteQueue(BufferPool.getDefault(), client.channel);
+
+        try {
+            while (true) {
+                boolean finish;
+
+                synchronized (client) {
+                    if (client.released)
+                        break;
+
+                    client.outbuf.moveTo(pending);
+                    finish = client.disconnecting && pending.isEmpty();
+                }
+
+                if (!pending.isEmpty()) {
+                    TCPClient.writeCalls.inc();
+                    TCPClient.writeBytes.add(pending.writeTo(client.channel));
+                    continue;
+                }
+
+                // finalize graceful disconnect once everything is out
+                if (finish) {
+                    client.disconnect(true);
+                    break;
+                }
+
+                LockSupport.park(this);
+            }
+        } catch (IOException e) {
+            if (client.channel.isOpen()) {
+                try {
+                    client.close();
+                } catch (IOException d) {}
+            }
+        } finally {
+            pending.clear();
+        }
+    }
+}
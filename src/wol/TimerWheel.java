@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+/**
+ * Hashed timer wheel
+ * <p>
+ * Timers are hashed into a fixed amount of slots by their deadline tick and
+ * every slot keeps a doubly linked list so scheduling and cancelling are
+ * O(1). Each tick only visits the slot that is due, so the cost of a tick
+ * is roughly the amount of timers that expire instead of the amount of
+ * connections. Timers further away than one revolution wait for their
+ * remaining rounds in the same slot.
+ * <p>
+ * Not thread safe, a wheel belongs to a single reactor and must only be
+ * used from that reactor thread.
+ *
+ * @author Toni Spets
+ */
+public class TimerWheel {
+
+    public static final int TICK_MILLIS = 100;
+    public static final int WHEEL_SIZE = 1024;
+
+    /**
+     * A timer that can be scheduled to a wheel
+     * <p>
+     * Timer objects are meant to be kept and re-armed by their owner so
+     * rescheduling does not allocate.
+     */
+    public static abstract class Timer {
+
+        private Timer prev;
+        private Timer next;
+        private TimerWheel wheel;
+        private long rounds;
+
+        /**
+         * Called in the reactor thread when the timer expires
+         *
+         * @param now   current time in milliseconds
+         */
+        abstract public void expire(long now);
+
+        /**
+         * Is this timer currently scheduled?
+         *
+         * @return
+         */
+        public boolean isPending() {
+            return wheel != null;
+        }
+
+        /**
+         * Cancel the timer if it is pending
+         */
+        public void cancel() {
+            if (wheel != null)
+                wheel.remove(this);
+        }
+    }
+
+    /**
+     * Sentinel nodes of each slot
+     */
+    private Timer[] slots;
+
+    /**
+     * Timers that are about to expire during the current tick
+     */
+    private Timer expired;
+
+    /**
+     * Current tick number
+     */
+    private long tick;
+
+    /**
+     * Time of the current tick
+     */
+    private long tickTime;
+
+    /**
+     * Amount of pending timers
+     */
+    private int size;
+
+    /**
+     * Creates a new TimerWheel
+     *
+     * @param now   current time in milliseconds
+     */
+    public TimerWheel(long now) {
+        slots = new Timer[WHEEL_SIZE];
+
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = sentinel();
+        }
+
+        expired = sentinel();
+
+        tickTime = now;
+    }
+
+    /**
+     * Create an empty list head
+     *
+     * @return
+     */
+    private static Timer sentinel() {
+        Timer head = new Timer() {
+            public void expire(long now) {}
+        };
+        head.prev = head;
+        head.next = head;
+        return head;
+    }
+
+    /**
+     * Get amount of pending timers
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedule or re-arm a timer
+     *
+     * @param timer     the timer
+     * @param delay     delay in milliseconds
+     */
+    public void schedule(Timer timer, long delay) {
+
+        if (timer.wheel != null)
+            timer.wheel.remove(timer);
+
+        long ticks = Math.max((delay + TICK_MILLIS - 1) / TICK_MILLIS, 1);
+        Timer head = slots[(int)((tick + ticks) % WHEEL_SIZE)];
+
+        timer.rounds = (ticks - 1) / WHEEL_SIZE;
+        timer.wheel = this;
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+        size++;
+    }
+
+    /**
+     * Unlink a timer from its slot
+     *
+     * @param timer     the timer
+     */
+    private void remove(Timer timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+        timer.wheel = null;
+        size--;
+    }
+
+    /**
+     * Milliseconds until the next tick is due
+     *
+     * @param now   current time in milliseconds
+     * @return
+     */
+    public long untilNextTick(long now) {
+        return Math.max(tickTime + TICK_MILLIS - now, 0);
+    }
+
+    /**
+     * Run all ticks that are due and expire their timers
+     *
+     * @param now   current time in milliseconds
+     */
+    public void advance(long now) {
+
+        while (tickTime + TICK_MILLIS <= now) {
+            tick++;
+            tickTime += TICK_MILLIS;
+
+            if (size == 0) {
+                // nothing to expire, skip straight to present
+                long behind = (now - tickTime) / TICK_MILLIS;
+                tick += behind;
+                tickTime += behind * TICK_MILLIS;
+                continue;
+            }
+
+            Timer head = slots[(int)(tick % WHEEL_SIZE)];
+            Timer timer = head.next;
+
+            // move due timers aside first so callbacks can freely re-arm or cancel timers
+            while (timer != head) {
+                Timer next = timer.next;
+
+                if (timer.rounds > 0) {
+                    timer.rounds--;
+                } else {
+                    timer.prev.next = timer.next;
+                    timer.next.prev = timer.prev;
+                    timer.prev = expired.prev;
+                    timer.next = expired;
+                    expired.prev.next = timer;
+                    expired.prev = timer;
+                }
+
+                timer = next;
+            }
+
+            while (expired.next != expired) {
+                timer = expired.next;
+                remove(timer);
+
+                try {
+                    timer.expire(now);
+                } catch (Exception e) {
+                    Log.log(Log.CORE, Log.ERROR, "TimerWheel: Unexpected exception in timer:", e);
+                }
+            }
+        }
+    }
+}
@@ -1,124 +1,222 @@
-/*
- * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
- * 
- * Permission to use, copy, modify, and distribute this software for any
- * purpose with or without fee is hereby granted, provided that the above
- * copyright notice and this permission notice appear in all copies.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
- * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
- * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
- * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
- * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
- * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
- * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
- */
-package wol;
-
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.net.InetAddress;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Iterator;
-import java.util.Properties;
-
-/**
- * Main WOL event loop
- *
- * @author Toni Spets
- */
-public class WOL {
-
-    static String hostname;
-
-    /**
-     * @param args the command line arguments
-     */
-    public static void main(String[] args) {
-
-        long lastThink = 0;
-
-        Properties config = new Properties();
-        try {
-            config.load(new FileInputStream("wol.prop"));
-        } catch (IOException e) {
-            System.out.println("Failed to load wol.ini: " + e.getMessage());
-            return;
-        }
-
-        hostname = config.getProperty("WOL.hostname");
-
-        if (hostname == null) {
-            System.out.println("No hostname defined in config.");
-            return;
-        }
-
-        try {
-            Selector selector = Selector.open();
-
-            ServerServer serv = new ServerServer(InetAddress.getByName("0.0.0.0"), 4005, selector);
-            ChatServer chat = new ChatServer(InetAddress.getByName("0.0.0.0"), 5000, selector);
-            GameresServer gameres = new GameresServer(InetAddress.getByName("0.0.0.0"), 4006, selector);
-            LadderServer ladder = new LadderServer(InetAddress.getByName("0.0.0.0"), 4002, selector);
-
-            while (true) {
-
-                if (selector.select(1000) > 0) {
-                    for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
-                        SelectionKey k = i.next();
-                        SocketEvent se = (SocketEvent)k.attachment();
-                        int ops = k.readyOps();
-
-                        try {
-                            if ((ops & SelectionKey.OP_ACCEPT) > 0)
-                                se.canAccept();
-
-                            if ((ops & SelectionKey.OP_CONNECT) > 0)
-                                se.canConnect();
-
-                            if ((ops & SelectionKey.OP_READ) > 0)
-                                se.canRead();
-
-                            if ((ops & SelectionKey.OP_WRITE) > 0)
-                                se.canWrite();
-
-                        } catch (IOException e) {
-                            System.out.println("IOException when handling event, forcing close: " + e.getMessage());
-
-                            // try closing, if it fails, just remove it anyway
-                            try {
-                                se.close();
-                            } catch (IOException d) {
-                                k.cancel();
-                            }
-                        }
-
-                        // remove key from selector if channel is closed gracefully
-                        if (!k.channel().isOpen())
-                            k.cancel();
-
-                        i.remove();
-                    }
-                }
-
-                // let everyone think once per second, approximately
-                long now = System.currentTimeMillis();
-                if (lastThink < now - 1000) {
-
-                    for (Iterator <SelectionKey> i = selector.keys().iterator(); i.hasNext();) {
-                        SelectionKey k = i.next();
-                        SocketEvent se = (SocketEvent)k.attachment();
-                        se.think(now);
-                    }
-
-                    lastThink = now;
-                }
-            }
-
-        } catch (Exception e) {
-            System.out.println("Unexpected exception in main:");
-            e.printStackTrace();
-        }
-    }
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Properties;
+
+/**
+ * Main WOL event loop
+ *
+ * @author Toni Spets
+ */
+public class WOL {
+
+    static String hostname;
+
+    static Properties config;
+
+    /**
+     * Get integer config value
+     * 
+     * @param key           property name
+     * @param defaultValue  value used when not set or invalid
+     * @return 
+     */
+    static int getInt(String key, int defaultValue) {
+        String value = config != null ? config.getProperty(key) : null;
+
+        if (value == null)
+            return defaultValue;
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Log.log(Log.CORE, Log.WARN, "Invalid integer value for " + key + ": ", value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get string config value
+     * 
+     * @param key           property name
+     * @param defaultValue  value used when not set
+     * @return 
+     */
+    static String getString(String key, String defaultValue) {
+        String value = config != null ? config.getProperty(key) : null;
+        return value != null ? value.trim() : defaultValue;
+    }
+
+    /**
+     * Is the listener enabled, ServerServer.enabled=0 turns it off
+     * 
+     * @param prefix        listener class name
+     * @return 
+     */
+    static boolean isEnabled(String prefix) {
+        return getInt(prefix + ".enabled", 1) > 0;
+    }
+
+    /**
+     * Get the address a listener binds to, ChatServer.address falls back
+     * to WOL.address and then the wildcard address
+     * 
+     * @param prefix        listener class name
+     * @return 
+     * @throws UnknownHostException 
+     */
+    static InetAddress getAddress(String prefix) throws UnknownHostException {
+        return InetAddress.getByName(getString(prefix + ".address", getString("WOL.address", "0.0.0.0")));
+    }
+
+    /**
+     * Get the port a listener binds to
+     * 
+     * @param prefix        listener class name
+     * @param defaultPort   port used when not configured
+     * @return 
+     */
+    static int getPort(String prefix, int defaultPort) {
+        return getInt(prefix + ".port", defaultPort);
+    }
+
+    /**
+     * Logs buffer pool occupancy and leaked buffers periodically
+     */
+    static class PoolReport extends TimerWheel.Timer {
+
+        private Reactor reactor;
+        private int interval;
+
+        PoolReport(Reactor reactor, int interval) {
+            this.reactor = reactor;
+            this.interval = interval;
+        }
+
+        public void expire(long now) {
+            BufferPool pool = BufferPool.getDefault();
+            Log.log(Log.CORE, Log.INFO, pool.toString());
+            pool.checkLeaks();
+            reactor.getTimers().schedule(this, interval);
+        }
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+
+        // separate processes can be given their own config
+        String configFile = args.length > 0 ? args[0] : "wol.prop";
+
+        config = new Properties();
+        try {
+            config.load(new FileInputStream(configFile));
+        } catch (IOException e) {
+            Log.log(Log.CORE, Log.ERROR, "Failed to load ", configFile, ": ", e.getMessage());
+            return;
+        }
+
+        Log.configure();
+
+        hostname = config.getProperty("WOL.hostname");
+
+        if (hostname == null) {
+            Log.log(Log.CORE, Log.ERROR, "No hostname defined in config.");
+            return;
+        }
+
+        try {
+            ReactorGroup reactors;
+
+            // only the selector transport is implemented, anything else falls back to it
+            String transport = getString("WOL.transport", "selector");
+            if (!transport.equals("selector")) {
+                Log.log(Log.CORE, Log.WARN, "Transport ", transport, " is not implemented, falling back to selector");
+            }
+
+            if ("threads".equals(getString("WOL.engine", "nio"))) {
+                // reactor only runs timers and tasks
+                reactors = new ReactorGroup(1, new ThreadEngine());
+            } else {
+                reactors = new ReactorGroup(getInt("WOL.reactors", Runtime.getRuntime().availableProcessors()));
+            }
+
+            ArrayList<TCPServer> servers = new ArrayList<TCPServer>();
+
+            // without reusePort the previous process has to let go of the ports first
+            String handoffSocket = getString("WOL.handoffSocket", null);
+            boolean reusePort = getInt("WOL.reusePort", 0) > 0;
+            if (handoffSocket != null && !reusePort) {
+                Handoff.requestDrain(handoffSocket);
+            }
+
+            if (isEnabled("ServerServer"))
+                servers.add(new ServerServer(getAddress("ServerServer"), getPort("ServerServer", ServerServer.DEFAULT_PORT), reactors));
+
+            if (isEnabled("ChatServer"))
+                servers.add(new ChatServer(getAddress("ChatServer"), getPort("ChatServer", ChatServer.DEFAULT_PORT), reactors));
+
+            if (isEnabled("GameresServer"))
+                servers.add(new GameresServer(getAddress("GameresServer"), getPort("GameresServer", GameresServer.DEFAULT_PORT), reactors));
+
+            if (isEnabled("LadderServer"))
+                servers.add(new LadderServer(getAddress("LadderServer"), getPort("LadderServer", LadderServer.DEFAULT_PORT), reactors));
+
+            if (servers.isEmpty()) {
+                Log.log(Log.CORE, Log.ERROR, "No listeners enabled in config.");
+                return;
+            }
+
+            // metrics are only served when a port is given
+            MetricsServer metricsServer = null;
+            int metricsPort = getPort("MetricsServer", 0);
+            if (metricsPort > 0) {
+                metricsServer = MetricsServer.start(InetAddress.getByName(getString("MetricsServer.address", "127.0.0.1")), metricsPort);
+            }
+
+            if (handoffSocket != null) {
+                if (reusePort)
+                    Handoff.requestDrain(handoffSocket);
+
+                Handoff handoff = new Handoff(handoffSocket, reactors, servers);
+                if (metricsServer != null)
+                    handoff.addListener(metricsServer);
+                handoff.start();
+            }
+
+            Watchdog.start(reactors);
+
+            int reportInterval = getInt("WOL.bufferPoolReport", 0) * 1000;
+            if (reportInterval > 0) {
+                Reactor reactor = reactors.getAcceptor();
+                reactor.schedule(new PoolReport(reactor, reportInterval), reportInterval);
+            }
+
+            Log.log(Log.CORE, Log.INFO, "Running " + reactors.size() + " reactors");
+            reactors.run();
+
+        } catch (Exception e) {
+            Log.log(Log.CORE, Log.ERROR, "Unexpected exception in main:", e);
+        }
+    }
 }
\ No newline at end of file
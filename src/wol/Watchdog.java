@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Detects reactors that are stuck in a single loop iteration
+ * <p>
+ * Every reactor marks the start of a loop iteration and what it is
+ * processing. The watchdog thread polls them and when an iteration has run
+ * longer than Watchdog.threshold milliseconds it samples the stack of the
+ * reactor thread together with the connection and command at hand. Stalls
+ * are logged, kept in a bounded in-memory log of Watchdog.keep entries
+ * and counted in the metrics.
+ *
+ * @author Toni Spets
+ */
+public class Watchdog implements Runnable {
+
+    public static final int DEFAULT_THRESHOLD = 500;
+    public static final int DEFAULT_KEEP = 100;
+
+    /**
+     * Stack frames included in the log message
+     */
+    private static final int LOG_FRAMES = 12;
+
+    private static Watchdog instance;
+
+    /**
+     * A single stall of a reactor
+     */
+    public static class Stall {
+        long time;
+        String reactor;
+        long since;
+        long nanos;
+        String current;
+        String command;
+        StackTraceElement[] stack;
+
+        /**
+         * Format the stall, optionally with the stack
+         *
+         * @param out       output
+         * @param frames    amount of stack frames to include
+         */
+        void write(StringBuilder out, int frames) {
+            out.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(time)))
+                .append(' ').append(reactor)
+                .append(" stalled ").append(TimeUnit.NANOSECONDS.toMillis(nanos)).append(" ms")
+                .append(" in ").append(current);
+
+            if (command != null)
+                out.append(" command ").append(command);
+
+            out.append('\n');
+
+            for (int i = 0; i < stack.length && i < frames; i++) {
+                out.append("\tat ").append(stack[i]).append('\n');
+            }
+        }
+    }
+
+    private ReactorGroup reactors;
+    private long threshold;
+    private int keep;
+    private ArrayDeque<Stall> stalls;
+
+    /**
+     * Stall in progress per reactor
+     */
+    private Stall[] open;
+
+    private Metrics.Counter[] counters;
+    private Metrics.Latency duration;
+
+    /**
+     * Creates a new Watchdog
+     *
+     * @param reactors      reactors to watch
+     * @param threshold     longest allowed loop iteration in milliseconds
+     * @param keep          amount of stalls kept in memory
+     */
+    public Watchdog(ReactorGroup reactors, int threshold, int keep) {
+        this.reactors = reactors;
+        this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+        this.keep = keep;
+        stalls = new ArrayDeque<Stall>();
+        open = new Stall[reactors.size()];
+        counters = new Metrics.Counter[reactors.size()];
+
+        for (int i = 0; i < reactors.size(); i++) {
+            counters[i] = Metrics.getDefault().counter("wol_reactor_stalls_total", "reactor=\"" + reactors.get(i).getName() + "\"", "Reactor loop iterations over the stall threshold");
+        }
+
+        duration = Metrics.getDefault().latency("wol_reactor_stall_seconds", "", "Duration of reactor stalls");
+    }
+
+    /**
+     * Start watching the reactors as configured, Watchdog.threshold=0 turns
+     * it off
+     *
+     * @param reactors      reactors to watch
+     * @return              the watchdog or null
+     */
+    public static synchronized Watchdog start(ReactorGroup reactors) {
+        int threshold = WOL.getInt("Watchdog.threshold", DEFAULT_THRESHOLD);
+
+        if (threshold <= 0)
+            return null;
+
+        instance = new Watchdog(reactors, threshold, WOL.getInt("Watchdog.keep", DEFAULT_KEEP));
+
+        Thread t = new Thread(instance, "watchdog");
+        t.setDaemon(true);
+        t.start();
+
+        Log.log(Log.CORE, Log.INFO, "Watchdog: Stall threshold " + threshold + " ms");
+        return instance;
+    }
+
+    /**
+     * Get the running watchdog
+     *
+     * @return              null when not running
+     */
+    public static synchronized Watchdog getDefault() {
+        return instance;
+    }
+
+    public void run() {
+        long interval = Math.max(threshold / 4, TimeUnit.MILLISECONDS.toNanos(10));
+
+        while (true) {
+            LockSupport.parkNanos(interval);
+
+            for (int i = 0; i < reactors.size(); i++) {
+                check(i, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Check a reactor for a stall
+     *
+     * @param index     reactor index
+     * @param now       current time in nanoseconds
+     */
+    private void check(int index, long now) {
+        Reactor reactor = reactors.get(index);
+        long since = reactor.getBusySince();
+        Stall stall = open[index];
+
+        // the stall we already know of is still going on
+        if (stall != null && stall.since == since) {
+            stall.nanos = now - since;
+            return;
+        }
+
+        // it ended some time after the previous check
+        if (stall != null) {
+            duration.record(stall.nanos);
+            open[index] = null;
+        }
+
+        if (since == 0 || now - since < threshold || reactor.getThread() == null)
+            return;
+
+        stall = new Stall();
+        stall.time = System.currentTimeMillis();
+        stall.reactor = reactor.getName();
+        stall.since = since;
+        stall.nanos = now - since;
+        stall.current = describe(reactor.getCurrent());
+        stall.command = reactor.getCommand();
+        stall.stack = reactor.getThread().getStackTrace();
+
+        // the loop may have moved on while the stack was taken
+        if (reactor.getBusySince() != since)
+            return;
+
+        open[index] = stall;
+        counters[index].inc();
+
+        synchronized (this) {
+            stalls.addLast(stall);
+            while (stalls.size() > keep) {
+                stalls.removeFirst();
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        stall.write(sb, LOG_FRAMES);
+        Log.log(Log.CORE, Log.WARN, "Watchdog: ", sb);
+    }
+
+    /**
+     * Describe what a reactor is processing
+     *
+     * @param current   event, task or timers
+     * @return
+     */
+    private static String describe(Object current) {
+
+        if (current == null)
+            return "selector";
+
+        if (current instanceof TimerWheel)
+            return "timers";
+
+        if (current instanceof SocketEvent)
+            return current.getClass().getSimpleName() + " " + current;
+
+        return "task " + current.getClass().getName();
+    }
+
+    /**
+     * Write the recent stalls with their stacks, oldest first
+     *
+     * @param out       output
+     */
+    public synchronized void write(StringBuilder out) {
+        for (Iterator<Stall> i = stalls.iterator(); i.hasNext();) {
+            i.next().write(out, Integer.MAX_VALUE);
+            out.append('\n');
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Outbound byte queue made of fixed size segments
+ * <p>
+ * Data is appended to the tail segment, full segments wait in the queue
+ * until the channel takes them. Writes are gathering and whatever the
+ * kernel did not take stays queued for the next round. Segments are leased
+ * from a BufferPool and released as soon as they have been written.
+ * <p>
+ * A SharedBuffer is queued as a view between the segments and written by
+ * the same gathering writes, the reference is dropped once written.
+ * <p>
+ * Not thread safe, callers synchronize on the owning connection.
+ *
+ * @author Toni Spets
+ */
+public class WriteQueue {
+
+    public static final int SEGMENT_SIZE = 4096;
+
+    /**
+     * Maximum amount of segments passed to a single gathering write
+     */
+    public static final int MAX_GATHER = 16;
+
+    /**
+     * Pool the segments are leased from
+     */
+    private BufferPool pool;
+
+    /**
+     * Channel that owns the leased segments
+     */
+    private Channel owner;
+
+    /**
+     * Segments ready to be written, in read mode
+     */
+    private ArrayDeque<ByteBuffer> segments;
+
+    /**
+     * Shared buffers of the queued views in the same order, views are the
+     * only read-only segments
+     */
+    private ArrayDeque<SharedBuffer> shared;
+
+    /**
+     * Segment currently being filled, in write mode, can be null
+     */
+    private ByteBuffer tail;
+
+    /**
+     * Reused array for gathering writes
+     */
+    private ByteBuffer[] gather;
+
+    /**
+     * Total amount of pending bytes
+     */
+    private int size;
+
+    /**
+     * Creates a new empty WriteQueue
+     *
+     * @param pool      pool to lease segments from
+     * @param owner     channel the segments are used for
+     */
+    public WriteQueue(BufferPool pool, Channel owner) {
+        this.pool = pool;
+        this.owner = owner;
+        segments = new ArrayDeque<ByteBuffer>();
+        shared = new ArrayDeque<SharedBuffer>();
+        gather = new ByteBuffer[MAX_GATHER];
+    }
+
+    /**
+     * Get amount of pending bytes
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Is there anything to write?
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Append bytes to the end of the queue
+     *
+     * @param data      source array
+     * @param offset    first byte
+     * @param length    amount of bytes
+     */
+    public void put(byte[] data, int offset, int length) {
+
+        size += length;
+
+        while (length > 0) {
+            reserve(1);
+
+            int chunk = Math.min(length, tail.remaining());
+            tail.put(data, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Append bytes to the end of the queue
+     *
+     * @param data      source array
+     */
+    public void put(byte[] data) {
+        put(data, 0, data.length);
+    }
+
+    /**
+     * Append a shared buffer by reference
+     *
+     * @param buffer    the buffer, a reference is taken
+     */
+    public void put(SharedBuffer buffer) {
+
+        // keep the order, an empty tail can still be filled later
+        if (tail != null && tail.position() > 0) {
+            tail.flip();
+            segments.add(tail);
+            tail = null;
+        }
+
+        ByteBuffer view = buffer.retain();
+        shared.add(buffer);
+        segments.add(view);
+        size += view.remaining();
+    }
+
+    /**
+     * Give back a segment or a view that is no longer queued
+     *
+     * @param segment   leased segment or view of a shared buffer
+     */
+    private void done(ByteBuffer segment) {
+        if (segment.isReadOnly())
+            shared.poll().release();
+        else
+            pool.release(segment);
+    }
+
+    /**
+     * Get the segment being filled, with room for at least min bytes
+     * <p>
+     * Bytes put into it directly are accounted for with commit.
+     *
+     * @param min       least amount of room, at most SEGMENT_SIZE
+     * @return          tail segment in write mode
+     */
+    public ByteBuffer reserve(int min) {
+
+        if (tail == null || tail.remaining() < min) {
+            if (tail != null) {
+                tail.flip();
+                segments.add(tail);
+            }
+            tail = pool.lease(SEGMENT_SIZE, owner);
+        }
+
+        return tail;
+    }
+
+    /**
+     * Account for bytes put into the reserved segment
+     *
+     * @param length    amount of bytes
+     */
+    public void commit(int length) {
+        size += length;
+    }
+
+    /**
+     * Write as much as the channel takes
+     *
+     * @param channel   target channel
+     * @return          amount of bytes written
+     * @throws IOException
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+
+        // seal the tail so it can be written too
+        if (tail != null && tail.position() > 0) {
+            tail.flip();
+            segments.add(tail);
+            tail = null;
+        }
+
+        long total = 0;
+
+        while (!segments.isEmpty()) {
+            int count = 0;
+            for (Iterator<ByteBuffer> i = segments.iterator(); i.hasNext() && count < gather.length;) {
+                gather[count++] = i.next();
+            }
+
+            long written = channel.write(gather, 0, count);
+            total += written;
+
+            // drop fully written segments, a partial one stays at the head
+            while (!segments.isEmpty() && !segments.peek().hasRemaining()) {
+                done(segments.poll());
+            }
+
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+
+            // socket buffer is full, wait for the next OP_WRITE
+            if (written == 0 || !segments.isEmpty() && count < gather.length)
+                break;
+        }
+
+        size -= total;
+        return total;
+    }
+
+    /**
+     * Move everything to another queue, leaving this one empty
+     *
+     * @param other     target queue
+     */
+    public void moveTo(WriteQueue other) {
+
+        if (tail != null && tail.position() > 0) {
+            tail.flip();
+            segments.add(tail);
+            tail = null;
+        }
+
+        ByteBuffer segment;
+        while ((segment = segments.poll()) != null) {
+            other.segments.add(segment);
+        }
+
+        SharedBuffer buffer;
+        while ((buffer = shared.poll()) != null) {
+            other.shared.add(buffer);
+        }
+
+        other.size += size;
+        size = 0;
+    }
+
+    /**
+     * Discard everything and return all segments to the pool
+     */
+    public void clear() {
+        ByteBuffer segment;
+
+        while ((segment = segments.poll()) != null) {
+            done(segment);
+        }
+
+        if (tail != null) {
+            pool.release(tail);
+            tail = null;
+        }
+
+        size = 0;
+    }
+}
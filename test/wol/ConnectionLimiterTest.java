@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012 Toni Spets <toni.spets@iki.fi>
+ * 
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package wol;
+
+import java.net.InetAddress;
+
+/**
+ * Checks that ConnectionLimiter counts every source address on its own
+ * <p>
+ * Usage: wol.ConnectionLimiterTest, exits with 1 on failure
+ *
+ * @author Toni Spets
+ */
+public class ConnectionLimiterTest {
+
+    private static int failures;
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.out.println("FAIL " + what);
+            failures++;
+        }
+    }
+
+    /**
+     * Two addresses must not share a count or free each others slots
+     *
+     * @param a         first address
+     * @param b         second address
+     * @throws Exception
+     */
+    static void distinct(String a, String b) throws Exception {
+        InetAddress first = InetAddress.getByName(a);
+        InetAddress second = InetAddress.getByName(b);
+        ConnectionLimiter limiter = new ConnectionLimiter(1);
+
+        check(limiter.acquire(first), a + " admitted");
+        check(limiter.acquire(second), b + " admitted next to " + a);
+        check(!limiter.acquire(first), a + " over its limit");
+        check(limiter.size() == 2, a + " and " + b + " counted apart");
+
+        limiter.release(second);
+        check(limiter.getCount(first) == 1, a + " kept its slot when " + b + " left");
+        check(limiter.getCount(second) == 0, b + " released");
+
+        limiter.release(first);
+        check(limiter.getTotal() == 0 && limiter.size() == 0, a + " and " + b + " released");
+    }
+
+    public static void main(String[] args) throws Exception {
+        // pairs that share a key when the address bytes are hashed together
+        distinct("10.0.1.0", "10.0.0.31");
+        distinct("0.0.0.0", "0.0.0.1");
+        distinct("2001:db8::1", "2001:db8::2");
+        distinct("2001:db8::1", "::1");
+        distinct("::2", "0.0.0.2");
+
+        // many addresses through growing and removing from the table
+        ConnectionLimiter limiter = new ConnectionLimiter(1);
+        boolean admitted = true, kept = true;
+
+        for (int i = 0; i < 4096; i++) {
+            admitted &= limiter.acquire(InetAddress.getByName("10.0." + (i >> 8) + "." + (i & 0xff)));
+        }
+        check(admitted && limiter.size() == 4096, "4096 addresses admitted");
+
+        for (int i = 0; i < 4096; i += 2) {
+            limiter.release(InetAddress.getByName("10.0." + (i >> 8) + "." + (i & 0xff)));
+        }
+        for (int i = 1; i < 4096; i += 2) {
+            kept &= limiter.getCount(InetAddress.getByName("10.0." + (i >> 8) + "." + (i & 0xff))) == 1;
+        }
+        check(kept && limiter.getTotal() == 2048, "other half kept when half released");
+
+        if (failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+
+        System.out.println("ConnectionLimiterTest: ok");
+    }
+}